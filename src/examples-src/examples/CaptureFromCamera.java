@@ -21,7 +21,7 @@
  */
  
 package examples;
-import static sj.opencv.jna.JNAOpenCV.HIGHGUI;
+import static sj.opencv.jna.JNAOpenCV.Highgui.HIGHGUI;
 
 import java.awt.Dimension;
 import java.awt.geom.Point2D;
@@ -0,0 +1,441 @@
+/* Description and License
+ * A Java library that wraps the functionality of the native image 
+ * processing library OpenCV
+ *
+ * (c) Sigurdur Orn Adalgeirsson (siggi@alum.mit.edu)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+ 
+package sj.opencv;
+
+import java.util.Arrays;
+
+import sj.opencv.Constants.PixelDepth;
+import sj.opencv.PixelKernels.Region;
+import sj.opencv.PixelKernels.Rows;
+
+/**
+ * Per pixel statistics of a stream of frames, for background models. An accumulator keeps two
+ * floating point planes of the frame size that are updated in place by one pass per frame:
+ * <ul>
+ * <li> {@link #accumulate(IplImage)} adds the frame and its square, for the mean and variance of all frames so far
+ * <li> {@link #runningAvg(IplImage, double, IplImage)} updates an exponentially weighted mean and variance
+ * </ul>
+ * {@link #meanVariance(IplImage, IplImage)} reads both statistics out in one pass.
+ * <pre>
+ * Accumulator background = new Accumulator(w, h, 1, PixelDepth.IPL_DEPTH_32F);
+ * while( ... ){
+ *     background.runningAvg(gray, 0.05, foreground_mask_inv);
+ *     background.meanVariance(mean, variance);
+ * }
+ * </pre>
+ * The planes are plain java arrays and no images or row buffers are allocated per frame, row buffers
+ * are kept per thread and shared by all accumulators. Large frames are processed in parallel bands on
+ * the pool of {@link PixelKernels}. An accumulator is meant for one stream and must not be updated
+ * from several threads at once. Frames can have depth
+ * <code>IPL_DEPTH_8U</code>, <code>IPL_DEPTH_8S</code>, <code>IPL_DEPTH_16U</code>, <code>IPL_DEPTH_16S</code>,
+ * <code>IPL_DEPTH_32F</code> or <code>IPL_DEPTH_64F</code>, only their ROI is read.
+ */
+public class Accumulator implements AutoCloseable {
+
+	private enum Mode { SUM, RUNNING }
+
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>(){
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	private final int width, height, channels, n;
+	private final PixelDepth depth;
+	// the planes, one pair is used depending on the depth
+	private float[] first_f, second_f;
+	private double[] first_d, second_d;
+	// pixels that have seen a frame in running mode, since masked pixels start later
+	private byte[] initialized;
+
+	private Mode mode;
+	private long count;
+
+	// arguments of the current pass, read by the row bodies
+	private Region frame_reg, mask_reg, out_reg, out2_reg;
+	private double alpha;
+
+	private final Rows update = new Rows() {
+		@Override
+		void run(int from, int to) {
+			updateRows(from, to);
+		}
+	};
+
+	private final Rows readout = new Rows() {
+		@Override
+		void run(int from, int to) {
+			readoutRows(from, to);
+		}
+	};
+
+	/**
+	 * @param depth of the planes, <code>IPL_DEPTH_32F</code> or <code>IPL_DEPTH_64F</code> for long sums
+	 */
+	public Accumulator(int width, int height, int channels, PixelDepth depth){
+		if( depth != PixelDepth.IPL_DEPTH_32F && depth != PixelDepth.IPL_DEPTH_64F ){
+			throw new IllegalArgumentException("Accumulator planes must be " + PixelDepth.IPL_DEPTH_32F + " or " + PixelDepth.IPL_DEPTH_64F);
+		}
+		this.width = width;
+		this.height = height;
+		this.channels = channels;
+		this.depth = depth;
+		this.n = width * channels;
+
+		int size = n * height;
+		if( depth == PixelDepth.IPL_DEPTH_64F ){
+			first_d = new double[size];
+			second_d = new double[size];
+		}
+		else{
+			first_f = new float[size];
+			second_f = new float[size];
+		}
+	}
+
+	public int getWidth(){
+		return width;
+	}
+
+	public int getHeight(){
+		return height;
+	}
+
+	public int getNumberOfChannels(){
+		return channels;
+	}
+
+	/**
+	 * @return the number of frames added since the last {@link #reset()}
+	 */
+	public long getCount(){
+		return count;
+	}
+
+	/**
+	 * Forgets all frames, afterwards either kind of update can be used.
+	 */
+	public void reset(){
+		if( first_d != null ){
+			Arrays.fill(first_d, 0);
+			Arrays.fill(second_d, 0);
+		}
+		else{
+			Arrays.fill(first_f, 0);
+			Arrays.fill(second_f, 0);
+		}
+		if( initialized != null ) Arrays.fill(initialized, (byte) 0);
+		count = 0;
+		mode = null;
+	}
+
+	/**
+	 * Adds a frame to the sum and the sum of squares of all frames.
+	 *
+	 * @throws IllegalStateException if running averages were used since the last reset
+	 */
+	public void accumulate(IplImage frame){
+		begin(Mode.SUM, frame, null);
+		execute(update);
+	}
+
+	/**
+	 * Updates the running mean and variance. The first frame that reaches a pixel after a reset
+	 * initializes its mean, so pixels that were masked out so far start at the frame they are first updated by.
+	 * <p>
+	 * <code>mean(i) += alpha * (frame(i) - mean(i))</code><br>
+	 * <code>variance(i) = (1 - alpha) * (variance(i) + alpha * (frame(i) - mean_before(i))^2)</code>
+	 *
+	 * @param alpha weight of the new frame, between 0 and 1
+	 * @param mask optional 8 bit single channel mask, pixels where it is 0 are not updated
+	 * @throws IllegalStateException if {@link #accumulate(IplImage)} was used since the last reset
+	 */
+	public void runningAvg(IplImage frame, double alpha, IplImage mask){
+		this.alpha = alpha;
+		begin(Mode.RUNNING, frame, mask);
+		if( initialized == null ) initialized = new byte[width * height];
+		execute(update);
+	}
+
+	/**
+	 * Writes the per pixel mean and variance of the frames, integer destinations are rounded and saturated.
+	 * Without frames both are 0, as are pixels that running averages have not reached yet.
+	 *
+	 * @param mean destination of the mean, may be null
+	 * @param variance destination of the variance, may be null
+	 */
+	public void meanVariance(IplImage mean, IplImage variance){
+		out_reg = mean == null ? null : checkImage(mean);
+		out2_reg = variance == null ? null : checkImage(variance);
+		if( mean != null ) mean.beforeWrite();
+		if( variance != null ) variance.beforeWrite();
+		try{
+			if( out_reg != null || out2_reg != null ){
+				PixelKernels.execute(out_reg != null ? out_reg : out2_reg, readout);
+			}
+		}finally{
+			out_reg = out2_reg = null;
+		}
+	}
+
+	/**
+	 * Releases the planes, the accumulator can not be used afterwards
+	 */
+	@Override
+	public void close(){
+		first_f = second_f = null;
+		first_d = second_d = null;
+		initialized = null;
+	}
+
+	private void begin(Mode m, IplImage frame, IplImage mask){
+		if( mode != null && mode != m ){
+			throw new IllegalStateException("Accumulator was used in " + mode + " mode, call reset() before switching");
+		}
+		frame_reg = checkImage(frame);
+		if( mask != null ){
+			mask_reg = new Region(mask);
+			if( mask.getPixelDepth() != PixelDepth.IPL_DEPTH_8U || mask.getNumberOfChannels() != 1 ||
+					mask_reg.width != width || mask_reg.height != height ){
+				mask_reg = null;
+				throw new IllegalArgumentException("Mask must be an 8 bit single channel image of " + width + "x" + height);
+			}
+		}
+		mode = m;
+	}
+
+	private void execute(Rows rows){
+		try{
+			PixelKernels.execute(frame_reg, rows);
+			count++;
+		}finally{
+			frame_reg = mask_reg = null;
+		}
+	}
+
+	private Region checkImage(IplImage im){
+		if( first_f == null && first_d == null ){
+			throw new IllegalStateException("Accumulator is closed");
+		}
+		Region r = new Region(im);
+		if( r.width != width || r.height != height || im.getNumberOfChannels() != channels ||
+				im.getPixelDepth() == PixelDepth.IPL_DEPTH_32S ){
+			throw new IllegalArgumentException("Image must be " + width + "x" + height + " (ROI) with " + channels +
+					" channel(s) and a depth other than " + PixelDepth.IPL_DEPTH_32S);
+		}
+		return r;
+	}
+
+	/* ******************************************************************************
+	 *  						ROWS			                                    *
+	 * ******************************************************************************/
+
+	private void updateRows(int from, int to){
+		Scratch s = scratch.get().ensure(n, width);
+		double[] v = s.values, a = s.a, b = s.b;
+		byte[] m = mask_reg == null ? null : s.mask;
+		byte[] init = initialized;
+		PixelDepth frame_depth = frame_reg.image.getPixelDepth();
+		Object raw = s.raw(frame_depth);
+		double alpha = this.alpha, keep = 1 - alpha;
+
+		for(int y=from; y<to; y++){
+			Reductions.readRow(frame_reg, y, frame_depth, raw, v);
+			readPlanes(y, a, b);
+			if( m != null ){
+				mask_reg.image.readData(mask_reg.row(y), m, 0, width);
+			}
+
+			if( mode == Mode.SUM ){
+				for(int i=0; i<n; i++){
+					a[i] += v[i];
+					b[i] += v[i] * v[i];
+				}
+			}
+			else{
+				for(int x=0, i=0, p=y*width; x<width; x++, p++){
+					if( m != null && m[x] == 0 ){
+						i += channels;
+						continue;
+					}
+					if( init[p] == 0 ){
+						init[p] = 1;
+						for(int c=0; c<channels; c++, i++){
+							a[i] = v[i];
+							b[i] = 0;
+						}
+						continue;
+					}
+					for(int c=0; c<channels; c++, i++){
+						double d = v[i] - a[i];
+						a[i] += alpha * d;
+						b[i] = keep * (b[i] + alpha * d * d);
+					}
+				}
+			}
+
+			writePlanes(y, a, b);
+		}
+	}
+
+	private void readoutRows(int from, int to){
+		Scratch s = scratch.get().ensure(n, width);
+		double[] a = s.a, b = s.b;
+		double frames = count;
+		boolean sums = mode == Mode.SUM;
+
+		for(int y=from; y<to; y++){
+			readPlanes(y, a, b);
+			if( count == 0 ){
+				for(int i=0; i<n; i++) a[i] = b[i] = 0;
+			}
+			else if( sums ){
+				for(int i=0; i<n; i++){
+					double mean = a[i] / frames;
+					a[i] = mean;
+					b[i] = Math.max(0, b[i] / frames - mean * mean);
+				}
+			}
+			if( out_reg != null ) writeRow(out_reg, y, a, n, s);
+			if( out2_reg != null ) writeRow(out2_reg, y, b, n, s);
+		}
+	}
+
+	private void readPlanes(int y, double[] a, double[] b){
+		int off = y * n;
+		if( first_d != null ){
+			System.arraycopy(first_d, off, a, 0, n);
+			System.arraycopy(second_d, off, b, 0, n);
+		}
+		else{
+			float[] fa = first_f, fb = second_f;
+			for(int i=0; i<n; i++){
+				a[i] = fa[off + i];
+				b[i] = fb[off + i];
+			}
+		}
+	}
+
+	private void writePlanes(int y, double[] a, double[] b){
+		int off = y * n;
+		if( first_d != null ){
+			System.arraycopy(a, 0, first_d, off, n);
+			System.arraycopy(b, 0, second_d, off, n);
+		}
+		else{
+			float[] fa = first_f, fb = second_f;
+			for(int i=0; i<n; i++){
+				fa[off + i] = (float) a[i];
+				fb[off + i] = (float) b[i];
+			}
+		}
+	}
+
+	private static void writeRow(Region out, int y, double[] values, int n, Scratch s){
+		long offset = out.row(y);
+		switch( out.image.getPixelDepth() ){
+		case IPL_DEPTH_8U: {
+			byte[] row = (byte[]) s.raw(PixelDepth.IPL_DEPTH_8U);
+			for(int i=0; i<n; i++) row[i] = (byte) JavaOps.saturate8U(Math.rint(values[i]));
+			out.image.writeData(offset, row, 0, n);
+			break;
+		}
+		case IPL_DEPTH_8S: {
+			byte[] row = (byte[]) s.raw(PixelDepth.IPL_DEPTH_8U);
+			for(int i=0; i<n; i++) row[i] = (byte) Math.max(-128, Math.min(127, Math.rint(values[i])));
+			out.image.writeData(offset, row, 0, n);
+			break;
+		}
+		case IPL_DEPTH_16U: {
+			short[] row = (short[]) s.raw(PixelDepth.IPL_DEPTH_16U);
+			for(int i=0; i<n; i++) row[i] = (short) JavaOps.saturate16U(Math.rint(values[i]));
+			out.image.writeData(offset, row, 0, n);
+			break;
+		}
+		case IPL_DEPTH_16S: {
+			short[] row = (short[]) s.raw(PixelDepth.IPL_DEPTH_16U);
+			for(int i=0; i<n; i++) row[i] = (short) Math.max(-32768, Math.min(32767, Math.rint(values[i])));
+			out.image.writeData(offset, row, 0, n);
+			break;
+		}
+		case IPL_DEPTH_32F: {
+			float[] row = (float[]) s.raw(PixelDepth.IPL_DEPTH_32F);
+			for(int i=0; i<n; i++) row[i] = (float) values[i];
+			out.image.writeData(offset, row, 0, n);
+			break;
+		}
+		default:
+			out.image.writeData(offset, values, 0, n);
+		}
+	}
+
+	/**
+	 * Row buffers of one thread, resized when the thread moves to an accumulator of another size
+	 */
+	private static final class Scratch {
+		int n = -1;
+		double[] values, a, b;
+		byte[] mask;
+		private byte[] bytes;
+		private short[] shorts;
+		private float[] floats;
+
+		Scratch ensure(int elements, int width){
+			if( elements != n ){
+				n = elements;
+				values = new double[n];
+				a = new double[n];
+				b = new double[n];
+				bytes = null;
+				shorts = null;
+				floats = null;
+			}
+			if( mask == null || mask.length != width ){
+				mask = new byte[width];
+			}
+			return this;
+		}
+
+		/**
+		 * @return the row buffer for frames and outputs of a depth, null for 64F
+		 */
+		Object raw(PixelDepth d){
+			switch( d ){
+			case IPL_DEPTH_8U:
+			case IPL_DEPTH_8S:
+				if( bytes == null ) bytes = new byte[n];
+				return bytes;
+			case IPL_DEPTH_16U:
+			case IPL_DEPTH_16S:
+				if( shorts == null ) shorts = new short[n];
+				return shorts;
+			case IPL_DEPTH_32F:
+				if( floats == null ) floats = new float[n];
+				return floats;
+			default:
+				return null;
+			}
+		}
+	}
+}
@@ -22,100 +22,293 @@
  
 package sj.opencv;
 
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.sun.jna.Pointer;
 
 /**
  * Author: siggi
  * Date: Jul 28, 2010
+ *
+ * Base class of every wrapper that owns native memory. Native resources are released
+ * deterministically by calling {@link #close()} (or {@link #deAllocate()}), which also makes every
+ * BasePointer usable in a try-with-resources block:
+ * <pre>
+ * IplImage gray = CxCore.createImage(w, h, PixelDepth.IPL_DEPTH_8U, ColorModel.GRAY);
+ * try {
+ *     ...
+ * } finally {
+ *     gray.close();
+ * }
+ * </pre>
+ * Objects that are never closed are released by a cleaner thread once they become phantom
+ * reachable, instead of waiting in the finalizer queue.
+ * <p>
+ * Subclasses written against the old {@link #BasePointer(Pointer)} constructor and
+ * {@link #deAllocateNativeResource()} hook keep working, they are still released through finalization.
  */
-public abstract class BasePointer {
+public abstract class BasePointer implements AutoCloseable {
 
-	private static HashSet<WeakReference<BasePointer>> pointers_to_deallocate;
-	private static boolean is_stopping = false;
+	private static final ReferenceQueue<BasePointer> cleaner_queue = new ReferenceQueue<BasePointer>();
+	private static final Set<Cleanup> live_cleanups = Collections.newSetFromMap(new ConcurrentHashMap<Cleanup, Boolean>());
+	private static final Set<WeakReference<BasePointer>> legacy_managed = Collections.newSetFromMap(new ConcurrentHashMap<WeakReference<BasePointer>, Boolean>());
+	private static final AtomicBoolean initialized = new AtomicBoolean(false);
+	private static volatile boolean is_stopping = false;
 
 	protected static void initialize(){
 
-		if( pointers_to_deallocate == null ){
-			pointers_to_deallocate = new HashSet<WeakReference<BasePointer>>();
+		if( !initialized.compareAndSet(false, true) ) return;
 
-			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+		Thread cleaner = new Thread(new Runnable() {
 
-				@Override
-				public void run() {
-					stop();
+			@Override
+			public void run() {
+				while( true ){
 					try {
-						Thread.sleep(500);
+						((Cleanup)cleaner_queue.remove()).clean();
 					} catch (InterruptedException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
+						return;
+					} catch (Throwable t) {
+						t.printStackTrace();
 					}
-					synchronized (pointers_to_deallocate) {
-						for (WeakReference<BasePointer> ref : pointers_to_deallocate) {
-							BasePointer p = ref.get();
-							if( p != null ){
-								synchronized (p) {
-									p.deAllocate();
-								}
-							}
+				}
+			}
+		}, "opencv-java native cleaner");
+		cleaner.setDaemon(true);
+		cleaner.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				stop();
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+				for (Cleanup cleanup : live_cleanups) {
+					if( cleanup.managed ){
+						cleanup.clean();
+					}
+				}
+				for (WeakReference<BasePointer> ref : legacy_managed) {
+					BasePointer p = ref.get();
+					if( p != null ){
+						synchronized (p) {
+							p.deAllocate();
 						}
 					}
 				}
-			}));
-		}
+				NativeMemoryTracker.reportLeaks();
+			}
+		}));
 	}
 
-	protected synchronized static void stop(){
+	protected static void stop(){
 		is_stopping = true;
 	}
 
-	protected synchronized static boolean isStopping(){
+	protected static boolean isStopping(){
 		return is_stopping;
 	}
 
+	/**
+	 * Releases the native resource of one BasePointer exactly once, either from
+	 * close() or from the cleaner thread. It only holds the releaser, never the
+	 * BasePointer itself, so it doesn't keep the owner reachable.
+	 */
+	private static class Cleanup extends PhantomReference<BasePointer> {
+
+		private final Runnable releaser;
+		private final AtomicBoolean done = new AtomicBoolean(false);
+		private volatile boolean managed = false;
+		private volatile NativeMemoryTracker.Allocation allocation;
+
+		Cleanup(BasePointer owner, Runnable releaser) {
+			super(owner, cleaner_queue);
+			this.releaser = releaser;
+			live_cleanups.add(this);
+		}
+
+		/**
+		 * Forgets the native resource without releasing it
+		 */
+		void discard(){
+			if( done.compareAndSet(false, true) ){
+				live_cleanups.remove(this);
+				clear();
+				NativeMemoryTracker.Allocation a = allocation;
+				if( a != null ){
+					NativeMemoryTracker.released(a);
+				}
+			}
+		}
+
+		void clean(){
+			if( done.compareAndSet(false, true) ){
+				live_cleanups.remove(this);
+				releaser.run();
+				NativeMemoryTracker.Allocation a = allocation;
+				if( a != null ){
+					NativeMemoryTracker.released(a);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Releases a subclass that still implements {@link BasePointer#deAllocateNativeResource()} when its
+	 * owner is finalized. Only the owner references it, so both become unreachable together.
+	 */
+	private static class LegacyGuardian {
+		private final BasePointer owner;
+
+		LegacyGuardian(BasePointer owner){
+			this.owner = owner;
+		}
+
+		@Override
+		protected void finalize() throws Throwable {
+			super.finalize();
+			owner.deAllocate();
+		}
+	}
+
 	protected Pointer pointer;
+	private volatile Cleanup cleanup;
+	private final LegacyGuardian legacy_guardian;
 
+	/**
+	 * @param pointer the native pointer wrapped by this object
+	 * @param releaser frees the native resource, or null if there is nothing to free.
+	 * It must not reference this BasePointer (keep it a static nested class holding only
+	 * the native handles) or the object will never be cleaned up automatically.
+	 */
+	protected BasePointer(Pointer pointer, Runnable releaser){
+		this.pointer = pointer;
+		this.cleanup = (pointer == null || releaser == null) ? null : new Cleanup(this, releaser);
+		this.legacy_guardian = null;
+	}
+
+	/**
+	 * @param pointer the native pointer wrapped by this object, released by {@link #deAllocateNativeResource()}
+	 * @deprecated pass a releaser to {@link #BasePointer(Pointer, Runnable)} instead, objects created with
+	 * this constructor are released through finalization rather than by the cleaner thread
+	 */
+	@Deprecated
 	protected BasePointer(Pointer pointer){
 		this.pointer = pointer;
+		this.cleanup = null;
+		this.legacy_guardian = new LegacyGuardian(this);
 	}
 
 	public Pointer getPointer(){
 		return pointer;
 	}
 
+	/**
+	 * Gives an object that was created without native memory its native pointer, e.g. when a heap
+	 * backed image moves to native memory. The same rules as for the constructor apply to the releaser.
+	 */
+	protected void attachPointer(Pointer pointer, Runnable releaser){
+		if( this.pointer != null || cleanup != null ){
+			throw new IllegalStateException("Already has a native pointer");
+		}
+		this.cleanup = new Cleanup(this, releaser);
+		this.pointer = pointer;
+	}
+
+	/**
+	 * Gives up the native resource without releasing it, after another object took it over. The
+	 * memory recorded by {@link #trackNativeMemory(long)} is no longer counted for this object.
+	 */
+	protected void detachPointer(){
+		Cleanup c = cleanup;
+		if( c != null ){
+			c.discard();
+		}
+		cleanup = null;
+		pointer = null;
+	}
+
 	/**
 	 * This method should be called inside of constructors of resources that need to be deallocated
 	 * when the process shuts down (capture devices, videowriters etc).
 	 */
 	protected void addToManagedPointerSet(){
-		synchronized (pointers_to_deallocate) {
-			pointers_to_deallocate.add( new WeakReference<BasePointer>(this) );
+		if( cleanup != null ){
+			cleanup.managed = true;
+		}
+		else if( legacy_guardian != null ){
+			legacy_managed.add(new WeakReference<BasePointer>(this));
 		}
 	}
 
 	/**
-	 * This method should be implemented for each different basepointer and deallocate any native memory
-	 * It should also set any reference to native memory or jna objects to null
-	 * This method should only be called internally, use deAllocate externally
-	 * @return true if successfully deallocated
+	 * Records the native memory owned by this object with the {@link NativeMemoryTracker},
+	 * called once by the factory method that allocated it.
 	 */
-	protected abstract void deAllocateNativeResource();
+	protected void trackNativeMemory(long bytes){
+		if( cleanup != null && cleanup.allocation == null ){
+			cleanup.allocation = NativeMemoryTracker.allocated(getClass(), bytes);
+		}
+	}
+
+	/**
+	 * @return the bytes recorded by {@link #trackNativeMemory(long)}, 0 if nothing was recorded
+	 */
+	protected long getTrackedNativeMemory(){
+		NativeMemoryTracker.Allocation a = cleanup == null ? null : cleanup.allocation;
+		return a == null ? 0 : a.bytes;
+	}
+
+	/**
+	 * Called once by {@link #deAllocate()} after the native resource has been released, subclasses should
+	 * set any reference to native memory or jna objects to null here. Objects released by the cleaner thread
+	 * are already unreachable and this method is not called for them, so anything that has to happen in
+	 * both cases belongs into the releaser.
+	 */
+	protected void clearReferences(){
+	}
+
+	/**
+	 * Releases the native resource of subclasses created with {@link #BasePointer(Pointer)}, called by
+	 * {@link #deAllocate()} before {@link #clearReferences()}.
+	 * @deprecated pass a releaser to {@link #BasePointer(Pointer, Runnable)} and clear references in
+	 * {@link #clearReferences()} instead
+	 */
+	@Deprecated
+	protected void deAllocateNativeResource(){
+	}
 
 	/**
 	 * Release native resources
 	 */
 	public void deAllocate(){
 		if( pointer != null ){
-			deAllocateNativeResource();
+			if( cleanup != null ){
+				cleanup.clean();
+			}
+			else if( legacy_guardian != null ){
+				deAllocateNativeResource();
+			}
+			clearReferences();
 		}
 		pointer = null;
 	}
 
+	/**
+	 * Same as {@link #deAllocate()}, allows BasePointers to be used in try-with-resources blocks
+	 */
 	@Override
-	protected void finalize() throws Throwable {
-		super.finalize();
+	public void close(){
 		deAllocate();
 	}
 }
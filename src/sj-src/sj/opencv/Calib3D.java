@@ -27,7 +27,7 @@ import java.awt.geom.Point2D;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
-import static sj.opencv.jna.JNAOpenCV.*;
+import static sj.opencv.jna.JNAOpenCV.Calib3d.CALIB3D;
 
 import sj.opencv.jna.calib3d.Calib3dLibrary;
 import sj.opencv.jna.cxcore.CvMat;
@@ -123,26 +123,31 @@ public class Calib3D {
 			intflags = intflags | f.open_cv_constant;
 		}
 
-		int nExamples = pointCounts.length;
+		ImageScope scope = ImageScope.open();
+		try {
+			int nExamples = pointCounts.length;
 
-		CvMat pointCountsMat = CxCore.createMat(nExamples, 1, pointCounts).getJNACvMat();
-		CvMat cameraMatrixMat = CxCore.createMat(3,3, cameraMatrix).getJNACvMat();
-		CvMat distortionMat = CxCore.createMat(distortion.length, 1, distortion).getJNACvMat();
+			CvMat pointCountsMat = CxCore.createMat(nExamples, 1, pointCounts).getJNACvMat();
+			CvMat cameraMatrixMat = CxCore.createMat(3,3, cameraMatrix).getJNACvMat();
+			CvMat distortionMat = CxCore.createMat(distortion.length, 1, distortion).getJNACvMat();
 
-		int totalPoints = 0;
-		for(int i = 0; i < nExamples; i++){
-			totalPoints += pointCounts[i];
-		}
+			int totalPoints = 0;
+			for(int i = 0; i < nExamples; i++){
+				totalPoints += pointCounts[i];
+			}
 
-		CvMat imagePointsMat = CxCore.createMat(totalPoints, 1,imagePoints).getJNACvMat();
-		CvMat objectPointsMat = CxCore.createMat(totalPoints, 1, objectPoints).getJNACvMat();
-		CvMat rotationsMat = null;
-		CvMat translationsMat = null;
+			CvMat imagePointsMat = CxCore.createMat(totalPoints, 1,imagePoints).getJNACvMat();
+			CvMat objectPointsMat = CxCore.createMat(totalPoints, 1, objectPoints).getJNACvMat();
+			CvMat rotationsMat = null;
+			CvMat translationsMat = null;
 
-		if(rotations != null) rotationsMat = CxCore.createMat(nExamples, 3, rotations).getJNACvMat();
-		if(translations != null) translationsMat = CxCore.createMat(nExamples, 3, translations).getJNACvMat();
+			if(rotations != null) rotationsMat = CxCore.createMat(nExamples, 3, rotations).getJNACvMat();
+			if(translations != null) translationsMat = CxCore.createMat(nExamples, 3, translations).getJNACvMat();
 
-		CALIB3D.cvCalibrateCamera2(objectPointsMat, imagePointsMat, pointCountsMat, new CvSize.ByValue(imageSize.width, imageSize.height), cameraMatrixMat, distortionMat, rotationsMat, translationsMat, intflags, null);
+			CALIB3D.cvCalibrateCamera2(objectPointsMat, imagePointsMat, pointCountsMat, new CvSize.ByValue(imageSize.width, imageSize.height), cameraMatrixMat, distortionMat, rotationsMat, translationsMat, intflags, null);
+		} finally {
+			scope.close();
+		}
 	}
 
 	/**
@@ -159,25 +164,30 @@ public class Calib3D {
 	 * @param mode - And integer indicating the operation mode, i.e. either <code>RODRIGUES_VECTOR_TO_MATRIX</code> or <code>RODRIGUES_MATRIX_TO_VECTOR</code>.
 	 */
 	public static void rodrigues2(float[] src_arr, float[] dst_arr, float[] jacobian_arr) {
-		CvMat src = null;
-		CvMat dst = null;
-
-		if (src_arr.length == 3) {
-			src = CxCore.createMat(3, 1, src_arr).getJNACvMat();
-			dst = CxCore.createMat(3, 3, dst_arr).getJNACvMat();
-		} else if (src_arr.length == 9) {
-			src = CxCore.createMat(3, 3, src_arr).getJNACvMat();
-			dst = CxCore.createMat(3, 1, dst_arr).getJNACvMat();
-		}
-		else{
-			throw new RuntimeException("src_arr needs to be either dim(3) or dim(9)");
-		}
-
-		if (jacobian_arr != null) {
-			CvMat jacobian = CxCore.createMat(9, 3, jacobian_arr).getJNACvMat();
-			CALIB3D.cvRodrigues2(src, dst, jacobian);
-		} else {
-			CALIB3D.cvRodrigues2(src, dst, null);
+		ImageScope scope = ImageScope.open();
+		try {
+			CvMat src = null;
+			CvMat dst = null;
+
+			if (src_arr.length == 3) {
+				src = CxCore.createMat(3, 1, src_arr).getJNACvMat();
+				dst = CxCore.createMat(3, 3, dst_arr).getJNACvMat();
+			} else if (src_arr.length == 9) {
+				src = CxCore.createMat(3, 3, src_arr).getJNACvMat();
+				dst = CxCore.createMat(3, 1, dst_arr).getJNACvMat();
+			}
+			else{
+				throw new RuntimeException("src_arr needs to be either dim(3) or dim(9)");
+			}
+
+			if (jacobian_arr != null) {
+				CvMat jacobian = CxCore.createMat(9, 3, jacobian_arr).getJNACvMat();
+				CALIB3D.cvRodrigues2(src, dst, jacobian);
+			} else {
+				CALIB3D.cvRodrigues2(src, dst, null);
+			}
+		} finally {
+			scope.close();
 		}
 	}
 }
@@ -0,0 +1,111 @@
+/* Description and License
+ * A Java library that wraps the functionality of the native image 
+ * processing library OpenCV
+ *
+ * (c) Sigurdur Orn Adalgeirsson (siggi@alum.mit.edu)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+ 
+package sj.opencv;
+
+import sj.opencv.jna.cxcore.CvPoint;
+import sj.opencv.jna.cxcore.CvRect;
+import sj.opencv.jna.cxcore.CvScalar;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.PointerByReference;
+
+/**
+ * Per thread argument structures for the facade methods. Creating a JNA structure allocates
+ * native memory and several Java objects, so the hot paths fill these in place instead.
+ * A structure is only valid until the next call on the same thread that uses the same slot.
+ */
+final class CallScratch {
+
+	private static final ThreadLocal<CallScratch> local = new ThreadLocal<CallScratch>(){
+		@Override
+		protected CallScratch initialValue() {
+			return new CallScratch();
+		}
+	};
+
+	static CallScratch get(){
+		return local.get();
+	}
+
+	private final CvScalar.ByValue scalar = new CvScalar.ByValue();
+	private final CvScalar.ByValue scalar2 = new CvScalar.ByValue();
+	private final CvPoint.ByValue point = new CvPoint.ByValue(0, 0);
+	private final CvPoint.ByValue point2 = new CvPoint.ByValue(0, 0);
+	private final CvRect.ByValue rect = new CvRect.ByValue();
+	private final PointerByReference src = new PointerByReference();
+	private final PointerByReference dst = new PointerByReference();
+
+	private CallScratch(){
+	}
+
+	CvScalar.ByValue scalar(Scalar s){
+		System.arraycopy(s.getArray(), 0, scalar.val, 0, 4);
+		return scalar;
+	}
+
+	CvScalar.ByValue scalar(double v0, double v1, double v2, double v3){
+		double[] val = scalar.val;
+		val[0] = v0;
+		val[1] = v1;
+		val[2] = v2;
+		val[3] = v3;
+		return scalar;
+	}
+
+	CvScalar.ByValue scalar2(Scalar s){
+		System.arraycopy(s.getArray(), 0, scalar2.val, 0, 4);
+		return scalar2;
+	}
+
+	CvPoint.ByValue point(int x, int y){
+		point.x = x;
+		point.y = y;
+		return point;
+	}
+
+	CvPoint.ByValue point2(int x, int y){
+		point2.x = x;
+		point2.y = y;
+		return point2;
+	}
+
+	CvRect.ByValue rect(int x, int y, int width, int height){
+		rect.x = x;
+		rect.y = y;
+		rect.width = width;
+		rect.height = height;
+		return rect;
+	}
+
+	/** @return a pointer to a one element array holding <code>p</code>, for CvArr** arguments */
+	Pointer src(Pointer p){
+		src.setValue(p);
+		return src.getPointer();
+	}
+
+	/** @return a pointer to a one element array holding <code>p</code>, for CvArr** arguments */
+	Pointer dst(Pointer p){
+		dst.setValue(p);
+		return dst.getPointer();
+	}
+}
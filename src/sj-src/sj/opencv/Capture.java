@@ -22,7 +22,7 @@
  
 package sj.opencv;
 
-import static sj.opencv.jna.JNAOpenCV.HIGHGUI;
+import static sj.opencv.jna.JNAOpenCV.Highgui.HIGHGUI;
 import sj.opencv.jna.highgui.HighguiLibrary.CvCapture;
 
 import com.sun.jna.Pointer;
@@ -37,7 +37,7 @@ public class Capture extends BasePointer{
 	private CvCapture cap;
 
 	protected Capture(CvCapture capture) {
-		super(capture.getPointer());
+		super(capture.getPointer(), new Releaser(capture));
 		this.cap = capture;
 		addToManagedPointerSet();
 	}
@@ -46,11 +46,18 @@ public class Capture extends BasePointer{
 		return cap;
 	}
 
-	@Override
-	protected void deAllocateNativeResource() {
-		if( cap != null ){
+	private static class Releaser implements Runnable {
+		private final CvCapture cap;
+		Releaser(CvCapture cap){ this.cap = cap; }
+
+		@Override
+		public void run() {
 			HIGHGUI.cvReleaseCapture( new CvCapture[]{ cap } );
-			cap = null;
 		}
 	}
+
+	@Override
+	protected void clearReferences() {
+		cap = null;
+	}
 }
@@ -30,11 +30,13 @@ import java.nio.ByteOrder;
 
 import com.sun.jna.Native;
 import com.sun.jna.Pointer;
+import com.sun.jna.ptr.DoubleByReference;
 import com.sun.jna.ptr.PointerByReference;
 
 import sj.opencv.Constants.ColorModel;
 import sj.opencv.Constants.PixelDepth;
 import sj.opencv.Constants.TermCriteriaType;
+import sj.opencv.jna.CxcoreDirect;
 import sj.opencv.jna.cxcore.CvBox2D;
 import sj.opencv.jna.cxcore.CvFont;
 import sj.opencv.jna.cxcore.CvMat;
@@ -51,7 +53,7 @@ import sj.opencv.jna.cxcore.CxcoreLibrary;
 import sj.opencv.jna.cxcore.JNAIplImage;
 import sj.opencv.jna.highgui.HighguiLibrary.CvArr;
 
-import static sj.opencv.jna.JNAOpenCV.*;
+import static sj.opencv.jna.JNAOpenCV.Core.CXCORE;
 
 /**
  * @author siggi
@@ -63,6 +65,14 @@ public class CxCore {
 		OpenCV.initialize();
 	}
 
+	// band bodies of the masked operations, shared since they capture nothing
+	private static final NativeBands.Op ADD = new NativeBands.Op(){
+		void run(Pointer[] b){ CxcoreDirect.cvAdd(b[0], b[1], b[2], b[3]); }
+	};
+	private static final NativeBands.Op SUB = new NativeBands.Op(){
+		void run(Pointer[] b){ CxcoreDirect.cvSub(b[0], b[1], b[2], b[3]); }
+	};
+
 	/**
 	 * Creates a CvMat of type CV_32SC1, backed by a java buffer
 	 * @param rows
@@ -78,7 +88,9 @@ public class CxCore {
 		CvMat mat_header = CXCORE.cvCreateMatHeader(rows, cols, CxcoreLibrary.CV_32SC1);
 		CXCORE.cvSetData(new CvArr(mat_header.getPointer()), Native.getDirectBufferPointer(bb), 0);
 		mat_header.read();
-		return new Mat(mat_header);
+		Mat mat = new Mat(mat_header);
+		mat.trackNativeMemory(mat_header.size() + bb.capacity());
+		return mat;
 	}
 
 	/**
@@ -96,7 +108,9 @@ public class CxCore {
 		CvMat mat_header = CXCORE.cvCreateMatHeader(rows, cols, CxcoreLibrary.CV_32FC1);
 		CXCORE.cvSetData(new CvArr(mat_header.getPointer()), Native.getDirectBufferPointer(bb), 0);
 		mat_header.read();
-		return new Mat(mat_header);
+		Mat mat = new Mat(mat_header);
+		mat.trackNativeMemory(mat_header.size() + bb.capacity());
+		return mat;
 	}
 
 
@@ -302,7 +316,7 @@ public class CxCore {
 	 * @param roi - a rectangle specifying the ROI.
 	 */
 	public static void setImageROI(IplImage img, Rectangle roi) {
-		CXCORE.cvSetImageROI(img.getJNAIPLImage(), new CvRect.ByValue(roi.x, roi.y, roi.width, roi.height));
+		CxcoreDirect.cvSetImageROI(img.getPointer(), CallScratch.get().rect(roi.x, roi.y, roi.width, roi.height));
 	}
 
     public enum SolveMethod {
@@ -332,10 +346,25 @@ public class CxCore {
 
 	public static void split(IplImage src, IplImage dst0, IplImage dst1, IplImage dst2, IplImage dst3) {
 //		System.out.println("src: " + src.getNumberOfChannels() + " dst0: " + dst0.getNumberOfChannels());
-		CXCORE.cvSplit(src.getCvArr(), dst0==null?null:dst0.getCvArr(), dst1==null?null:dst1.getCvArr(), dst2==null?null:dst2.getCvArr(), dst3==null?null:dst3.getCvArr());
+		CXCORE.cvSplit(src.getCvArr(), dst0==null?null:dst0.getWritableCvArr(), dst1==null?null:dst1.getWritableCvArr(), dst2==null?null:dst2.getWritableCvArr(), dst3==null?null:dst3.getWritableCvArr());
 //		System.out.println("past ----");
 	}
 
+	/**
+	 * Composes a multi-channel array from several single-channel arrays, the inverse of
+	 * {@link #split(IplImage, IplImage, IplImage, IplImage, IplImage)}.
+	 * Unused sources are <code>null</code>, dst must have as many channels as there are sources.
+	 *
+	 * @param src0 - the first source channel
+	 * @param src1 - the second source channel, or null
+	 * @param src2 - the third source channel, or null
+	 * @param src3 - the fourth source channel, or null
+	 * @param dst - the destination image
+	 */
+	public static void merge(IplImage src0, IplImage src1, IplImage src2, IplImage src3, IplImage dst) {
+		CXCORE.cvMerge(src0==null?null:src0.getCvArr(), src1==null?null:src1.getCvArr(), src2==null?null:src2.getCvArr(), src3==null?null:src3.getCvArr(), dst.getWritableCvArr());
+	}
+
 
 	/* ******************************************************************************
 	 *  						OPERATIONS ON ARRAYS                                *
@@ -359,17 +388,48 @@ public class CxCore {
 			
 		}
 		
-		CXCORE.cvMixChannels(new PointerByReference(src.getPointer()), 1, new PointerByReference(dst.getPointer()), 1, channelsFromTo, channelsFromTo.length/2);
+		CallScratch scratch = CallScratch.get();
+		CxcoreDirect.cvMixChannels(scratch.src(src.getPointer()), 1, scratch.dst(dst.getWritablePointer()), 1, channelsFromTo, channelsFromTo.length/2);
 	}
 
 	/**
-	 * Sets every value of an image to a scalar
+	 * Sets every value of an image to a scalar, only inside the ROI if one is set
 	 * @param im
 	 * @param val
-	 * @param mask
+	 * @param mask optional, only values where the mask is non zero are set
 	 */
 	public static void set(IplImage im, Scalar val, IplImage mask){
-		CXCORE.cvSet(im.getCvArr(), new ByValue(val.getArray()), mask==null?null:mask.getCvArr());
+		if( JavaOps.use(im, mask) ){
+			JavaOps.set(im, val);
+			return;
+		}
+		CxcoreDirect.cvSet(im.getWritablePointer(), CallScratch.get().scalar(val), mask==null?null:mask.getPointer());
+	}
+
+	/**
+	 * Sets every channel of every value of an image to <code>value</code>
+	 * @param im
+	 * @param value
+	 * @param mask
+	 */
+	public static void set(IplImage im, double value, IplImage mask){
+		if( JavaOps.use(im, mask) ){
+			JavaOps.set(im, new Scalar(value, value, value, value));
+			return;
+		}
+		CxcoreDirect.cvSet(im.getWritablePointer(), CallScratch.get().scalar(value, value, value, value), mask==null?null:mask.getPointer());
+	}
+
+	/**
+	 * Sets every value of an image to zero, only inside the ROI if one is set
+	 * @param im
+	 */
+	public static void setZero(IplImage im){
+		if( JavaOps.use(im, null) ){
+			JavaOps.setZero(im);
+			return;
+		}
+		CxcoreDirect.cvSetZero(im.getWritablePointer());
 	}
 
 	/**
@@ -381,9 +441,10 @@ public class CxCore {
 	public static IplImage cloneImage(IplImage img) {
 		JNAIplImage clone = CXCORE.cvCloneImage(img.getJNAIPLImage());
 		ByteBuffer buffer = clone.imageData.getByteBuffer(0, clone.imageSize);
-		buffer.order( ByteOrder.BIG_ENDIAN );
+		buffer.order( ByteOrder.nativeOrder() );
 
 		IplImage im = new IplImage(clone, img.getWidth(), img.getHeight(), img.getWidthStep(), buffer, img.getPixelDepth(), img.getColorModel());
+		im.trackNativeMemory(clone.nSize + clone.imageSize);
 
 		return im;
 	}
@@ -401,7 +462,7 @@ public class CxCore {
 	 * @param dst - the destination array
 	 */
 	public static void copy(IplImage src, IplImage dst) {
-		CXCORE.cvCopy(src.getCvArr(), dst.getCvArr(), null);
+		CxcoreDirect.cvCopy(src.getPointer(), dst.getWritablePointer(), null);
 	}
 
 	/**
@@ -420,7 +481,7 @@ public class CxCore {
 	 * of the destination array to be changed
 	 */
 	public static void copy(IplImage src, IplImage dst, IplImage mask) {
-		CXCORE.cvCopy(src.getCvArr(), dst.getCvArr(), mask==null?null:mask.getCvArr());
+		CxcoreDirect.cvCopy(src.getPointer(), dst.getWritablePointer(), mask==null?null:mask.getPointer());
 	}
 
 	/**
@@ -432,7 +493,54 @@ public class CxCore {
 	 * @return the number of non-zero elements in <code>img</code>
 	 */
 	public static int countNonZero(IplImage img) {
-		return CXCORE.cvCountNonZero(img.getCvArr());
+		return CxcoreDirect.cvCountNonZero(img.getPointer());
+	}
+
+	/**
+	 * Performs a look-up table transform of an array.
+	 * <p>
+	 * <code>dst(i) = lut(src(i) + (src is 8s ? 128 : 0))</code>
+	 * <p>
+	 * See {@link LookupTable} for composing and caching tables of point operations.
+	 *
+	 * @param src - the 8-bit source array
+	 * @param dst - the destination array of the same size and channels, and the depth of lut
+	 * @param lut - the table of 256 elements, with one channel or as many channels as src
+	 */
+	public static void lut(IplImage src, IplImage dst, IplImage lut) {
+		CXCORE.cvLUT(src.getCvArr(), dst.getWritableCvArr(), lut.getCvArr());
+	}
+
+	/**
+	 * Finds the global minimum and maximum in an array and their locations.
+	 * <p>
+	 * In the case of <code>IplImage</code> both ROI and COI are supported. Multi-channel images
+	 * need a COI, see {@link Reductions} for the statistics of every channel in one pass.
+	 *
+	 * @param img - the single-channel source array
+	 * @param min_max - receives the minimum at index 0 and the maximum at index 1
+	 * @param min_loc - receives the location of the minimum, may be null
+	 * @param max_loc - receives the location of the maximum, may be null
+	 * @param mask - the optional mask used to select a sub-array
+	 */
+	@SuppressWarnings("deprecation")
+	public static void minMaxLoc(IplImage img, double[] min_max, Point min_loc, Point max_loc, IplImage mask) {
+		DoubleByReference min_val = new DoubleByReference();
+		DoubleByReference max_val = new DoubleByReference();
+		CvPoint cvmin_loc = new CvPoint();
+		CvPoint cvmax_loc = new CvPoint();
+		CXCORE.cvMinMaxLoc(img.getCvArr(), min_val, max_val, cvmin_loc, cvmax_loc, mask==null?null:mask.getCvArr());
+
+		min_max[0] = min_val.getValue();
+		min_max[1] = max_val.getValue();
+		if( min_loc != null ){
+			cvmin_loc.read();
+			min_loc.setLocation(cvmin_loc.x, cvmin_loc.y);
+		}
+		if( max_loc != null ){
+			cvmax_loc.read();
+			max_loc.setLocation(cvmax_loc.x, cvmax_loc.y);
+		}
 	}
 
 
@@ -446,7 +554,7 @@ public class CxCore {
     * @param dst – The destination array, must have 8u or 8s type
 	 */
 	public static void inRange(IplImage src, IplImage lower, IplImage upper, IplImage dst){
-		CXCORE.cvInRange(src.getCvArr(), lower.getCvArr(), upper.getCvArr(), dst.getCvArr());
+		CXCORE.cvInRange(src.getCvArr(), lower.getCvArr(), upper.getCvArr(), dst.getWritableCvArr());
 	}
 
 
@@ -460,7 +568,12 @@ public class CxCore {
     * @param dst – The destination array, must have 8u or 8s type
 	 */
 	public static void inRangeS(IplImage src, Scalar lower, Scalar upper, IplImage dst){
-		CXCORE.cvInRangeS(src.getCvArr(), new CvScalar.ByValue(lower.getArray()), new CvScalar.ByValue(upper.getArray()), dst.getCvArr());
+		if( JavaOps.use(src, null) ){
+			JavaOps.inRangeS(src, lower, upper, dst);
+			return;
+		}
+		CallScratch scratch = CallScratch.get();
+		CxcoreDirect.cvInRangeS(src.getPointer(), scratch.scalar(lower), scratch.scalar2(upper), dst.getWritablePointer());
 	}
 
 	public enum CompareMode{
@@ -469,7 +582,7 @@ public class CxCore {
 		CV_CMP_GREATER_OR_EQUAL( CxcoreLibrary.CV_CMP_GE ),
 		CV_CMP_LESS_THAN( CxcoreLibrary.CV_CMP_LT ),
 		CV_CMP_LESS_OR_EQUAL( CxcoreLibrary.CV_CMP_LE ),
-		CV_CMP_NOT_EQUAL( CxcoreLibrary.CV_CMP_EQ );
+		CV_CMP_NOT_EQUAL( CxcoreLibrary.CV_CMP_NE );
 
 		private final int open_cv_constant;
 		CompareMode(int constant){this.open_cv_constant=constant;}
@@ -488,7 +601,32 @@ public class CxCore {
 	 * @param mask – Operation mask, 8-bit single channel array; specifies elements of the destination array to be changed
 	 */
 	public static void sub(IplImage src1, IplImage src2, IplImage dst, IplImage mask){
-		CXCORE.cvSub(src1.getCvArr(), src2.getCvArr(), dst.getCvArr(), mask==null?null:mask.getCvArr());
+		if( JavaOps.use(src1, mask) ){
+			JavaOps.sub(src1, src2, dst);
+			return;
+		}
+		if( NativeBands.run(SUB, 2, src1, src2, dst, mask) ) return;
+		CxcoreDirect.cvSub(src1.getPointer(), src2.getPointer(), dst.getWritablePointer(), mask==null?null:mask.getPointer());
+	}
+
+	/**
+	 * Calculates the per-element scaled product of two arrays.
+	 * <p>
+	 * <code>dst(i) = scale * src1(i) * src2(i)</code>
+	 * <p>
+	 * All the arrays must have the same type and the same size (or ROI size).
+	 * For types that have limited range this operation is saturating.
+	 *
+	 * @param src1 - the first source array
+	 * @param src2 - the second source array
+	 * @param dst - the destination array
+	 * @param scale - optional scale factor
+	 */
+	public static void mul(IplImage src1, IplImage src2, IplImage dst, final double scale){
+		if( NativeBands.run(new NativeBands.Op(){
+				void run(Pointer[] b){ CxcoreDirect.cvMul(b[0], b[1], b[2], scale); }
+			}, 2, src1, src2, dst) ) return;
+		CxcoreDirect.cvMul(src1.getPointer(), src2.getPointer(), dst.getWritablePointer(), scale);
 	}
 
 	/**
@@ -504,7 +642,7 @@ public class CxCore {
 	 */
 	public static void subS(IplImage src1, Scalar value, IplImage dst, IplImage mask){
 		throw new RuntimeException("subS dropped from opencv.2.4.0 (not implemented in arith.cpp)");
-		//		CXCORE.cvSubS(src1.getCvArr(), new ByValue(value.getArray()), dst.getCvArr(), mask==null?null:mask.getCvArr());
+		//		CXCORE.cvSubS(src1.getCvArr(), new ByValue(value.getArray()), dst.getWritableCvArr(), mask==null?null:mask.getCvArr());
 	}
 
 	/**
@@ -519,7 +657,14 @@ public class CxCore {
 	 * @param mask – Operation mask, 8-bit single channel array; specifies elements of the destination array to be changed
 	 */
 	public static void subRS(IplImage src1, Scalar value, IplImage dst, IplImage mask){
-		CXCORE.cvSubRS(src1.getCvArr(), new ByValue(value.getArray()), dst.getCvArr(), mask==null?null:mask.getCvArr());
+		CxcoreDirect.cvSubRS(src1.getPointer(), CallScratch.get().scalar(value), dst.getWritablePointer(), mask==null?null:mask.getPointer());
+	}
+
+	/**
+	 * Same as {@link #subRS(IplImage, Scalar, IplImage, IplImage)} with <code>value</code> in every channel.
+	 */
+	public static void subRS(IplImage src1, double value, IplImage dst, IplImage mask){
+		CxcoreDirect.cvSubRS(src1.getPointer(), CallScratch.get().scalar(value, value, value, value), dst.getWritablePointer(), mask==null?null:mask.getPointer());
 	}
 
 	/**
@@ -582,7 +727,11 @@ public class CxCore {
 	 * @param dst – the destination image
 	 */
 	public static void absDiff(IplImage src1, IplImage src2, IplImage dst){
-		CXCORE.cvAbsDiff(src1.getCvArr(), src2.getCvArr(), dst.getCvArr());
+		if( JavaOps.use(src1, null) ){
+			JavaOps.absDiff(src1, src2, dst);
+			return;
+		}
+		CxcoreDirect.cvAbsDiff(src1.getPointer(), src2.getPointer(), dst.getWritablePointer());
 	}
 
 	/**
@@ -597,7 +746,14 @@ public class CxCore {
 	 * @param value – the scalar
 	 */
 	public static void absDiffS(IplImage src1, IplImage dst, Scalar value){
-		CXCORE.cvAbsDiffS(src1.getCvArr(), dst.getCvArr(), new ByValue(value.getArray()));
+		CxcoreDirect.cvAbsDiffS(src1.getPointer(), dst.getWritablePointer(), CallScratch.get().scalar(value));
+	}
+
+	/**
+	 * Same as {@link #absDiffS(IplImage, IplImage, Scalar)} with <code>value</code> in every channel.
+	 */
+	public static void absDiffS(IplImage src1, IplImage dst, double value){
+		CxcoreDirect.cvAbsDiffS(src1.getPointer(), dst.getWritablePointer(), CallScratch.get().scalar(value, value, value, value));
 	}
 
 	/**
@@ -613,7 +769,12 @@ public class CxCore {
 	 * @param dst - the destination array
 	 */
 	public static void add(IplImage src1, IplImage src2, IplImage dst) {
-		CXCORE.cvAdd(src1.getCvArr(), src2.getCvArr(), dst.getCvArr(), null);
+		if( JavaOps.use(src1, null) ){
+			JavaOps.add(src1, src2, dst);
+			return;
+		}
+		if( NativeBands.run(ADD, 2, src1, src2, dst, null) ) return;
+		CxcoreDirect.cvAdd(src1.getPointer(), src2.getPointer(), dst.getWritablePointer(), null);
 	}
 	
 	/**
@@ -648,7 +809,12 @@ public class CxCore {
 	 * the destination array to be changed
 	 */
 	public static void add(IplImage src1, IplImage src2, IplImage dst, IplImage mask) {
-		CXCORE.cvAdd(src1.getCvArr(), src2.getCvArr(), dst.getCvArr(), mask==null?null:mask.getCvArr());
+		if( JavaOps.use(src1, mask) ){
+			JavaOps.add(src1, src2, dst);
+			return;
+		}
+		if( NativeBands.run(ADD, 2, src1, src2, dst, mask) ) return;
+		CxcoreDirect.cvAdd(src1.getPointer(), src2.getPointer(), dst.getWritablePointer(), mask==null?null:mask.getPointer());
 	}
 
 	/**
@@ -664,7 +830,11 @@ public class CxCore {
 	 * @param dst - the destination array
 	 */
 	public static void addS(IplImage src, Scalar value, IplImage dst) {
-		CXCORE.cvAddS(src.getCvArr(), new ByValue(value.getArray()), dst.getCvArr(), null);
+		if( JavaOps.use(src, null) ){
+			JavaOps.addS(src, value, dst);
+			return;
+		}
+		CxcoreDirect.cvAddS(src.getPointer(), CallScratch.get().scalar(value), dst.getWritablePointer(), null);
 	}
 
 	/**
@@ -683,7 +853,22 @@ public class CxCore {
 	 * the destination array to be changed
 	 */
 	public static void addS(IplImage src, Scalar value, IplImage dst, IplImage mask) {
-		CXCORE.cvAddS(src.getCvArr(), new ByValue(value.getArray()), dst.getCvArr(), mask==null?null:mask.getCvArr());
+		if( JavaOps.use(src, mask) ){
+			JavaOps.addS(src, value, dst);
+			return;
+		}
+		CxcoreDirect.cvAddS(src.getPointer(), CallScratch.get().scalar(value), dst.getWritablePointer(), mask==null?null:mask.getPointer());
+	}
+
+	/**
+	 * Same as {@link #addS(IplImage, Scalar, IplImage, IplImage)} with <code>value</code> in every channel.
+	 */
+	public static void addS(IplImage src, double value, IplImage dst, IplImage mask) {
+		if( JavaOps.use(src, mask) ){
+			JavaOps.addS(src, new Scalar(value, value, value, value), dst);
+			return;
+		}
+		CxcoreDirect.cvAddS(src.getPointer(), CallScratch.get().scalar(value, value, value, value), dst.getWritablePointer(), mask==null?null:mask.getPointer());
 	}
 
 	/**
@@ -701,8 +886,11 @@ public class CxCore {
 	 * @param gamma - scalar added to each sum
 	 * @param dst - the destination array
 	 */
-	public static void addWeighted(IplImage src1, double alpha, IplImage src2, double beta, double gamma, IplImage dst) {
-		CXCORE.cvAddWeighted(src1.getCvArr(), alpha, src2.getCvArr(), beta, gamma, dst.getCvArr());
+	public static void addWeighted(IplImage src1, final double alpha, IplImage src2, final double beta, final double gamma, IplImage dst) {
+		if( NativeBands.run(new NativeBands.Op(){
+				void run(Pointer[] b){ CxcoreDirect.cvAddWeighted(b[0], alpha, b[1], beta, gamma, b[2]); }
+			}, 2, src1, src2, dst) ) return;
+		CxcoreDirect.cvAddWeighted(src1.getPointer(), alpha, src2.getPointer(), beta, gamma, dst.getWritablePointer());
 	}
 
 	/**
@@ -728,7 +916,11 @@ public class CxCore {
 	 * </ul>
 	 */
 	public static void cmpS(IplImage src, double value, IplImage dst, CompareMode mode){
-		CXCORE.cvCmpS(src.getCvArr(), value, dst.getCvArr(), mode.getConstant());
+		if( JavaOps.use(src, null) ){
+			JavaOps.cmpS(src, value, dst, mode);
+			return;
+		}
+		CxcoreDirect.cvCmpS(src.getPointer(), value, dst.getWritablePointer(), mode.getConstant());
 	}
 
 	/**
@@ -744,7 +936,11 @@ public class CxCore {
 	 * @param dst - the destination array
 	 */
 	public static void and(IplImage src1, IplImage src2, IplImage dst, IplImage mask) {
-		CXCORE.cvAnd(src1.getCvArr(), src2.getCvArr(), dst.getCvArr(), mask==null?null:mask.getCvArr());
+		if( JavaOps.use(src1, mask) ){
+			JavaOps.and(src1, src2, dst);
+			return;
+		}
+		CxcoreDirect.cvAnd(src1.getPointer(), src2.getPointer(), dst.getWritablePointer(), mask==null?null:mask.getPointer());
 	}
 
 	/**
@@ -764,7 +960,7 @@ public class CxCore {
 	 * of the destination array to be changed
 	 */
 	public static void andS(IplImage src, Scalar value, IplImage dst, IplImage mask) {
-		CXCORE.cvAndS(src.getCvArr(), new ByValue(value.getArray()), dst.getCvArr(), mask==null?null:mask.getCvArr());
+		CxcoreDirect.cvAndS(src.getPointer(), CallScratch.get().scalar(value), dst.getWritablePointer(), mask==null?null:mask.getPointer());
 	}
 
 
@@ -826,7 +1022,11 @@ public class CxCore {
 	 * </ul>
 	 */
 	public static void cmp(IplImage src1, IplImage src2, IplImage dst, CompareMode mode){
-		CXCORE.cvCmp(src1.getCvArr(), src2.getCvArr(), dst.getCvArr(), mode.getConstant());
+		final int cmp_op = mode.getConstant();
+		if( NativeBands.run(new NativeBands.Op(){
+				void run(Pointer[] b){ CxcoreDirect.cvCmp(b[0], b[1], b[2], cmp_op); }
+			}, 2, src1, src2, dst) ) return;
+		CxcoreDirect.cvCmp(src1.getPointer(), src2.getPointer(), dst.getWritablePointer(), mode.getConstant());
 	}
 
 	/**
@@ -865,8 +1065,11 @@ public class CxCore {
 	 * @param scale - the scale factor
 	 * @param shift - the value added to the scaled source array elements
 	 */
-	public static void convertScale(IplImage src, IplImage dst, double scale, double shift) {
-		CXCORE.cvConvertScale(src.getCvArr(), dst.getCvArr(), scale, shift);
+	public static void convertScale(IplImage src, IplImage dst, final double scale, final double shift) {
+		if( NativeBands.run(new NativeBands.Op(){
+				void run(Pointer[] b){ CxcoreDirect.cvConvertScale(b[0], b[1], scale, shift); }
+			}, 1, src, dst) ) return;
+		CxcoreDirect.cvConvertScale(src.getPointer(), dst.getWritablePointer(), scale, shift);
 	}
 	
 	/**
@@ -923,7 +1126,7 @@ public class CxCore {
 	 * @param shift - the value added to the scaled source array elements
 	 */
 	public static void convertScaleAbs(IplImage src, IplImage dst, double scale, double shift) {
-		CXCORE.cvConvertScaleAbs(src.getCvArr(), dst.getCvArr(), scale, shift);
+		CxcoreDirect.cvConvertScaleAbs(src.getPointer(), dst.getWritablePointer(), scale, shift);
 	}
 
 	/**
@@ -959,7 +1162,7 @@ public class CxCore {
 	 * @param scale - the optional scale factor
 	 */
 	public static void div(IplImage src1, IplImage src2, IplImage dst, double scale) {
-		CXCORE.cvDiv(src1==null?null:src1.getCvArr(), src2.getCvArr(), dst.getCvArr(), scale);
+		CXCORE.cvDiv(src1==null?null:src1.getCvArr(), src2.getCvArr(), dst.getWritableCvArr(), scale);
 	}
 
 	/**
@@ -975,7 +1178,7 @@ public class CxCore {
 
 	 */
 	public static void exp(IplImage src, IplImage dst) {
-		CXCORE.cvExp(src.getCvArr(), dst.getCvArr());
+		CXCORE.cvExp(src.getCvArr(), dst.getWritableCvArr());
 	}
 
     public enum FlipMode{
@@ -996,7 +1199,7 @@ public class CxCore {
 	 *
 	 */
 	public static void flip(IplImage src, IplImage dst, FlipMode mode){
-		CXCORE.cvFlip(src.getCvArr(), dst.getCvArr(), mode.open_cv_constant);
+		CXCORE.cvFlip(src.getCvArr(), dst.getWritableCvArr(), mode.open_cv_constant);
 	}
 
     public enum GEMMFlag {
@@ -1038,7 +1241,7 @@ public class CxCore {
 			}
 		}
 
-		CXCORE.cvGEMM(src1.getCvArr(), src2.getCvArr(), alpha, src3==null?null:src3.getCvArr(), beta, dst.getCvArr(), flags);
+		CXCORE.cvGEMM(src1.getCvArr(), src2.getCvArr(), alpha, src3==null?null:src3.getCvArr(), beta, dst.getWritableCvArr(), flags);
 	}
 
 	/**
@@ -1078,6 +1281,9 @@ public class CxCore {
 	 *  							DYNAMIC STRUCTURES                              *
 	 * ******************************************************************************/
 
+	/** block size OpenCV uses when 0 is passed to cvCreateMemStorage (CV_STORAGE_BLOCK_SIZE) */
+	private static final int DEFAULT_STORAGE_BLOCK_SIZE = (1 << 16) - 128;
+
 	/**
 	 * Creates an empty memory storage.
 	 *
@@ -1087,6 +1293,8 @@ public class CxCore {
 	public static MemStorage createMemStorage(int blockSize) {
 		CvMemStorage cvCreateMemStorage = CXCORE.cvCreateMemStorage(blockSize);
 		MemStorage mem = new MemStorage(cvCreateMemStorage);
+		// blocks are allocated on demand, count the storage header and its first block
+		mem.trackNativeMemory(cvCreateMemStorage.size() + (blockSize > 0 ? blockSize : DEFAULT_STORAGE_BLOCK_SIZE));
 
 		return mem;
 	}
@@ -1135,7 +1343,7 @@ public class CxCore {
 	}
 
 	public static void putText(IplImage img, String text, Point pos, Font font, Scalar color) {
-		CXCORE.cvPutText(img.getCvArr(), text, new CvPoint.ByValue(pos.x, pos.y), font.getJNACvFont(), new ByValue(color.getArray()));
+		CXCORE.cvPutText(img.getWritableCvArr(), text, new CvPoint.ByValue(pos.x, pos.y), font.getJNACvFont(), new ByValue(color.getArray()));
 	}
 
 	/**
@@ -1160,7 +1368,8 @@ public class CxCore {
 	 * @param shift - Number of fractional bits in the center coordinates and radius value.
 	 */
 	public static void circle(IplImage img, Point center, int radius, Scalar color, int thickness, LineType lineType, int shift) {
-		CXCORE.cvCircle(img.getCvArr(), new CvPoint.ByValue(center.x, center.y), radius, new CvScalar.ByValue(color.getArray()), thickness, lineType.open_cv_constant, shift);
+		CallScratch scratch = CallScratch.get();
+		CxcoreDirect.cvCircle(img.getWritablePointer(), scratch.point(center.x, center.y), radius, scratch.scalar(color), thickness, lineType.open_cv_constant, shift);
 	}
 
 	public static void ellipseBox(IplImage img, float x, float y, float width, float height, float angle, Scalar color) {
@@ -1169,7 +1378,7 @@ public class CxCore {
 
 	public static void ellipseBox(IplImage img, float x, float y, float width, float height, float angle, Scalar color, int thickness, LineType lineType, int shift) {
 		CvBox2D.ByValue box2 = new CvBox2D.ByValue(new CvPoint2D32f(x, y), new CvSize2D32f(width, height), angle);
-		CXCORE.cvEllipseBox(img.getCvArr(), box2, new CvScalar.ByValue(color.getArray()), thickness, lineType.open_cv_constant, shift);
+		CXCORE.cvEllipseBox(img.getWritableCvArr(), box2, new CvScalar.ByValue(color.getArray()), thickness, lineType.open_cv_constant, shift);
 	}
 
 	public static void line(IplImage img, Point pt1, Point pt2, Scalar color) {
@@ -1192,7 +1401,8 @@ public class CxCore {
 	 * @param shift
 	 */
 	public static void line(IplImage img, Point pt1, Point pt2, Scalar color, int thickness, LineType lineType, int shift) {
-		CXCORE.cvLine(img.getCvArr(), new CvPoint.ByValue(pt1.x, pt1.y), new CvPoint.ByValue(pt2.x, pt2.y), new CvScalar.ByValue(color.getArray()), thickness, lineType.open_cv_constant, shift);
+		CallScratch scratch = CallScratch.get();
+		CxcoreDirect.cvLine(img.getWritablePointer(), scratch.point(pt1.x, pt1.y), scratch.point2(pt2.x, pt2.y), scratch.scalar(color), thickness, lineType.open_cv_constant, shift);
 	}
 
 	/**
@@ -1226,7 +1436,7 @@ public class CxCore {
 			ptsArray[j].write();
 		}
 
-		CXCORE.cvPolyLine(img.getCvArr(), ptsArray, npts, 1, isClosed?1:0, new CvScalar.ByValue(color.getArray()), thickness, lineType.open_cv_constant, shift);
+		CXCORE.cvPolyLine(img.getWritableCvArr(), ptsArray, npts, 1, isClosed?1:0, new CvScalar.ByValue(color.getArray()), thickness, lineType.open_cv_constant, shift);
 	}
 
 	public static void fillPoly(IplImage img, Point[] pts, Scalar color) {
@@ -1242,7 +1452,7 @@ public class CxCore {
 			ptsArray[j].write();
 		}
 
-		CXCORE.cvFillPoly(img.getCvArr(), ptsArray, npts, 1, new CvScalar.ByValue(color.getArray()), lineType.open_cv_constant, shift);
+		CXCORE.cvFillPoly(img.getWritableCvArr(), ptsArray, npts, 1, new CvScalar.ByValue(color.getArray()), lineType.open_cv_constant, shift);
 	}
 
 
@@ -1267,7 +1477,8 @@ public class CxCore {
 	 * @param shift - Number of fractional bits in the point coordinates.
 	 */
 	public static void rectangle(IplImage img, Rectangle rect, Scalar color, int thickness, LineType lineType, int shift) {
-		rectangle(img, new Point(rect.x, rect.y), new Point(rect.x+rect.width, rect.y+rect.height), color, thickness, lineType, shift);
+		CallScratch scratch = CallScratch.get();
+		CxcoreDirect.cvRectangle(img.getWritablePointer(), scratch.point(rect.x, rect.y), scratch.point2(rect.x+rect.width, rect.y+rect.height), scratch.scalar(color), thickness, lineType.open_cv_constant, shift);
 	}
 
 	/**
@@ -1292,7 +1503,8 @@ public class CxCore {
 	 * @param shift - Number of fractional bits in the point coordinates.
 	 */
 	public static void rectangle(IplImage img, Point pt1, Point pt2, Scalar color, int thickness, LineType lineType, int shift) {
-		CXCORE.cvRectangle(img.getCvArr(), new CvPoint.ByValue(pt1.x, pt1.y), new CvPoint.ByValue(pt2.x, pt2.y), new CvScalar.ByValue(color.getArray()), thickness, lineType.open_cv_constant, shift);
+		CallScratch scratch = CallScratch.get();
+		CxcoreDirect.cvRectangle(img.getWritablePointer(), scratch.point(pt1.x, pt1.y), scratch.point2(pt2.x, pt2.y), scratch.scalar(color), thickness, lineType.open_cv_constant, shift);
 	}
 
 	/**
@@ -1310,13 +1522,35 @@ public class CxCore {
 
 		// Retrieve the bytebuffer
 		ByteBuffer buffer = jnaim.imageData.getByteBuffer(0, jnaim.imageSize);
-		buffer.order( ByteOrder.BIG_ENDIAN );
+		buffer.order( ByteOrder.nativeOrder() );
 
 		IplImage im = new IplImage(jnaim, width, height, jnaim.widthStep, buffer, pixel_depth, color_model);
+		im.trackNativeMemory(jnaim.nSize + jnaim.imageSize);
 
 		return im;
 	}
 
+	/**
+	 * Gets an image from the default {@link ImagePool}, only allocating natively if no pooled image
+	 * of that format is available. Hand the image back with {@link #releaseImage(IplImage)}.
+	 * @param width of image
+	 * @param height of image
+	 * @param pixel_depth of image
+	 * @param color_model of image
+	 * @return an IplImage whose pixel contents are undefined
+	 */
+	public static IplImage acquireImage(int width, int height, PixelDepth pixel_depth, ColorModel color_model){
+		return ImagePool.getDefault().acquire(width, height, pixel_depth, color_model);
+	}
+
+	/**
+	 * Returns an image obtained from {@link #acquireImage(int, int, PixelDepth, ColorModel)} to the default pool
+	 * @param im the image, must not be used afterwards
+	 */
+	public static void releaseImage(IplImage im){
+		ImagePool.getDefault().release(im);
+	}
+
 	/**
 	 * Natively allocates an IplImage with the given data buffer and returns a pointer to it
 	 * Also puts that into a collection that will be deallocated when application exits
@@ -1335,10 +1569,43 @@ public class CxCore {
 		jnaim.write();
 
 		IplImage im = new IplImage(jnaim, width, height, jnaim.widthStep, bytebuffer, pixel_depth, color_model);
+		// only the header is native, the pixels belong to the buffer
+		im.trackNativeMemory(jnaim.nSize);
 
 		return im;
 	}
 
+	/**
+	 * Creates an image whose pixels live in a java array instead of native memory, which is cheaper for
+	 * small images that are only processed in java (PixelKernels, JavaOps, the pixel accessors). The pixels
+	 * are copied to a natively allocated image the first time the image is passed to a native function,
+	 * see {@link IplImage#moveToNative()}.
+	 * @param width of image
+	 * @param height of image
+	 * @param pixel_depth of image
+	 * @param color_model of image
+	 * @param data the pixels in native byte order with rows of {@link IplImage#getAlignedWidthStep(int, PixelDepth, ColorModel)}
+	 * bytes, or null to allocate a zeroed array
+	 * @return a heap backed IplImage
+	 */
+	public static IplImage createImage(int width, int height, PixelDepth pixel_depth, ColorModel color_model, byte[] data){
+		int width_step = IplImage.getAlignedWidthStep(width, pixel_depth, color_model);
+		if( data == null ){
+			data = new byte[height * width_step];
+		}
+		else if( data.length < (long) height * width_step ){
+			throw new IllegalArgumentException("Expected an array of at least " + (long) height * width_step + " bytes and not " + data.length);
+		}
+		return new IplImage(data, width, height, width_step, pixel_depth, color_model);
+	}
+
+	/**
+	 * Same as {@link #createImage(int, int, PixelDepth, ColorModel, byte[])} with a newly allocated array
+	 */
+	public static IplImage createHeapImage(int width, int height, PixelDepth pixel_depth, ColorModel color_model){
+		return createImage(width, height, pixel_depth, color_model, (byte[]) null);
+	}
+
 	public static void kMeans2(float[] samples, int sampleSize, int nSamples, int clusterCount,
 			int[] labels, TermCriteriaType[] criteria, int max_iter, double epsilon) {
 
@@ -1347,10 +1614,15 @@ public class CxCore {
 			criteriaType = criteriaType | t.getConstant();
 		}
 
-		Mat samplesMat = createMat(nSamples, sampleSize, samples);
-		Mat labelsMat = createMat(nSamples, 1, labels);
+		ImageScope scope = ImageScope.open();
+		try {
+			Mat samplesMat = createMat(nSamples, sampleSize, samples);
+			Mat labelsMat = createMat(nSamples, 1, labels);
 
-		CXCORE.cvKMeans2(new CvArr(samplesMat.pointer), clusterCount, new CvArr(labelsMat.pointer), new CvTermCriteria.ByValue((int)criteriaType, max_iter, epsilon), 1, null, 0, null, null);
+			CXCORE.cvKMeans2(new CvArr(samplesMat.pointer), clusterCount, new CvArr(labelsMat.pointer), new CvTermCriteria.ByValue((int)criteriaType, max_iter, epsilon), 1, null, 0, null, null);
+		} finally {
+			scope.close();
+		}
 	}
 
 }
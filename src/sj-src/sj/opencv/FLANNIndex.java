@@ -28,11 +28,13 @@ import com.sun.jna.Pointer;
 public class FLANNIndex extends BasePointer {
 
 	protected FLANNIndex(Pointer pointer) {
-		super(pointer);
+		super(pointer, new Releaser());
 	}
 
-	@Override
-	protected void deAllocateNativeResource() {
-		throw new RuntimeException("To be implemented");
+	private static class Releaser implements Runnable {
+		@Override
+		public void run() {
+			throw new RuntimeException("To be implemented");
+		}
 	}
 }
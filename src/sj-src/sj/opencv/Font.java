@@ -31,7 +31,7 @@ public class Font extends BasePointer {
 	private CvFont jnacvfont;
 
 	protected Font(CvFont jnacvfont) {
-		super(jnacvfont.getPointer());
+		super(jnacvfont.getPointer(), null);
 		this.jnacvfont = jnacvfont;
 	}
 
@@ -40,7 +40,7 @@ public class Font extends BasePointer {
 	}
 
 	@Override
-	protected void deAllocateNativeResource() {
+	protected void clearReferences() {
 		jnacvfont = null;
 	}
 }
@@ -33,7 +33,7 @@ public class HaarClassifierCascade extends BasePointer {
 	private CvHaarClassifierCascade cvcascade;
 
 	protected HaarClassifierCascade(CvHaarClassifierCascade cvcascade) {
-		super(cvcascade.getPointer());
+		super(cvcascade.getPointer(), new Releaser(cvcascade.getPointer()));
 		this.cvcascade  = cvcascade;
 
 		addToManagedPointerSet();
@@ -43,9 +43,18 @@ public class HaarClassifierCascade extends BasePointer {
 		return cvcascade;
 	}
 
+	private static class Releaser implements Runnable {
+		private final Pointer pointer;
+		Releaser(Pointer pointer){ this.pointer = pointer; }
+
+		@Override
+		public void run() {
+			JNAOpenCV.Objdetect.OBJDETECT.cvReleaseHaarClassifierCascade( new CvHaarClassifierCascade.ByReference[]{ new CvHaarClassifierCascade.ByReference(pointer) } );
+		}
+	}
+
 	@Override
-	protected void deAllocateNativeResource() {
-		JNAOpenCV.OBJDETECT.cvReleaseHaarClassifierCascade( new CvHaarClassifierCascade.ByReference[]{ new CvHaarClassifierCascade.ByReference(pointer) } );
+	protected void clearReferences() {
 		cvcascade = null;
 	}
 }
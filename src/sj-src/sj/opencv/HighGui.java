@@ -22,9 +22,9 @@
  
 package sj.opencv;
 
-import static sj.opencv.jna.JNAOpenCV.CXCORE;
-import static sj.opencv.jna.JNAOpenCV.HIGHGUI;
-import static sj.opencv.jna.JNAOpenCV.IMGPROC;
+import static sj.opencv.jna.JNAOpenCV.Core.CXCORE;
+import static sj.opencv.jna.JNAOpenCV.Highgui.HIGHGUI;
+import static sj.opencv.jna.JNAOpenCV.Imgproc.IMGPROC;
 
 import java.awt.Dimension;
 import java.io.File;
@@ -34,9 +34,13 @@ import java.nio.charset.Charset;
 import java.util.Arrays;
 
 import com.sun.jna.Native;
+import com.sun.jna.Pointer;
 
 import sj.opencv.Constants.ColorModel;
 import sj.opencv.Constants.PixelDepth;
+import sj.opencv.jna.CxcoreDirect;
+import sj.opencv.jna.HighguiDirect;
+import sj.opencv.jna.ImgprocDirect;
 import sj.opencv.jna.cxcore.CvSize;
 import sj.opencv.jna.cxcore.JNAIplImage;
 import sj.opencv.jna.highgui.HighguiLibrary;
@@ -353,29 +357,39 @@ public class HighGui {
 	}
 
 
+	// IplImage { int nSize, ID, nChannels, alphaChannel, depth; char colorModel[4], channelSeq[4]; int dataOrder, origin, align, width, height; ... }
+	private static final int IPL_N_CHANNELS_OFFSET = 8;
+	private static final int IPL_DEPTH_OFFSET = 16;
+	private static final int IPL_WIDTH_OFFSET = 40;
+	private static final int IPL_HEIGHT_OFFSET = 44;
+
 	/**
 	 * Grabs and retrieves a frame from a capture source
 	 * The function provides a modifiable image dst with the image data
+	 * If dst has open snapshots ({@link IplImage#snapshot()}) they keep the previous frame
 	 * @param camera
 	 * @param dst
 	 * @return true if a frame was successfully copied
 	 */
 	public static boolean queryFrame(Capture capture, IplImage dst){
 		if( BasePointer.isStopping() ) return false;
-		JNAIplImage jnacamim = null;
 		synchronized (capture) {
 			if( capture.getJNACvCapture() == null ) return false;
-			jnacamim = HIGHGUI.cvQueryFrame( capture.getJNACvCapture() );
-			if( jnacamim == null ) return false;
-
-			if( jnacamim.nChannels != dst.getNumberOfChannels() ) throw new RuntimeException("Capture image and dst image don't have the same number of channels: "+jnacamim.nChannels+" and "+dst.getNumberOfChannels());
-			if( jnacamim.depth != dst.getPixelDepth().getConstant() ) throw new RuntimeException("Capture image and dst image don't have the same pixel depth");;
-
-			if( jnacamim.width != dst.getWidth() || jnacamim.height != dst.getHeight() ){
-				IMGPROC.cvResize(new CvArr(jnacamim.getPointer()), new CvArr(dst.getPointer()), ImgprocLibrary.CV_INTER_LINEAR);
+			// read the header fields in place instead of mapping the returned IplImage to a structure
+			Pointer camim = HighguiDirect.cvQueryFrame( capture.getJNACvCapture().getPointer() );
+			if( camim == null ) return false;
+
+			int nChannels = camim.getInt(IPL_N_CHANNELS_OFFSET);
+			if( nChannels != dst.getNumberOfChannels() ) throw new RuntimeException("Capture image and dst image don't have the same number of channels: "+nChannels+" and "+dst.getNumberOfChannels());
+			if( camim.getInt(IPL_DEPTH_OFFSET) != dst.getPixelDepth().getConstant() ) throw new RuntimeException("Capture image and dst image don't have the same pixel depth");;
+			// the whole frame is overwritten, so snapshots of the previous frame keep theirs without a copy
+			dst.makeWritable(false);
+
+			if( camim.getInt(IPL_WIDTH_OFFSET) != dst.getWidth() || camim.getInt(IPL_HEIGHT_OFFSET) != dst.getHeight() ){
+				ImgprocDirect.cvResize(camim, dst.getPointer(), ImgprocLibrary.CV_INTER_LINEAR);
 			}
 			else{
-				CXCORE.cvCopy(new CvArr(jnacamim.getPointer()), dst.getCvArr(), null);
+				CxcoreDirect.cvCopy(camim, dst.getPointer(), null);
 			}
 		}
 
@@ -35,12 +35,19 @@ public class Histogram extends BasePointer {
 	CvHistogram hist;
 
 	protected Histogram(CvHistogram hist) {
-		super(hist.getPointer());
+		super(hist.getPointer(), new Releaser(hist.getPointer()));
+		this.hist = hist;
+		ImageScope.track(this);
 	}
 
-	@Override
-	protected void deAllocateNativeResource() {
-		JNAOpenCV.IMGPROC.cvReleaseHist( new PointerByReference(hist.getPointer()) );
+	private static class Releaser implements Runnable {
+		private final Pointer pointer;
+		Releaser(Pointer pointer){ this.pointer = pointer; }
+
+		@Override
+		public void run() {
+			JNAOpenCV.Imgproc.IMGPROC.cvReleaseHist( new PointerByReference(pointer) );
+		}
 	}
 	
 	public CvArr getCvArr() {
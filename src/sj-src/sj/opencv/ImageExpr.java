@@ -0,0 +1,413 @@
+/* Description and License
+ * A Java library that wraps the functionality of the native image 
+ * processing library OpenCV
+ *
+ * (c) Sigurdur Orn Adalgeirsson (siggi@alum.mit.edu)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+ 
+package sj.opencv;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sj.opencv.Constants.PixelDepth;
+import sj.opencv.CxCore.CompareMode;
+import sj.opencv.PixelKernels.Region;
+import sj.opencv.PixelKernels.Rows;
+
+/**
+ * Records a chain of element-wise operations and runs them in a single pass over the images, one
+ * row at a time, without intermediate images. Chains of CxCore calls such as
+ * <pre>
+ * CxCore.absDiff(frame, background, diff);
+ * ImgProc.threshold(diff, diff, 30, 255, ThresholdType.CV_THRESH_BINARY);
+ * CxCore.and(diff, mask, diff, null);
+ * int moving = CxCore.countNonZero(diff);
+ * </pre>
+ * become
+ * <pre>
+ * long moving = ImageExpr.of(frame).absDiff(background).threshold(30, 255).and(mask).countNonZero();
+ * </pre>
+ * Nothing is computed until {@link #evaluate(IplImage)}, {@link #countNonZero()} or {@link #sum()} is called.
+ * Expressions are immutable and can be evaluated many times, every evaluation reads the current pixels.
+ * <p>
+ * Every step rounds and saturates to the depth of its operands like the CxCore function would, so results
+ * match the unfused chain, comparisons give <code>IPL_DEPTH_8U</code> masks. Images must have depth
+ * <code>IPL_DEPTH_8U</code>, <code>IPL_DEPTH_16U</code> or <code>IPL_DEPTH_32F</code>, and the same number
+ * of channels and (ROI) size. Both operands of a binary step must have the same depth. Large images are
+ * evaluated in parallel bands of rows, see {@link PixelKernels#getParallelThreshold()}.
+ */
+public final class ImageExpr {
+
+	private enum Op { IMAGE, ABS_DIFF, ADD, SUB, AND, MIN, MAX, ADD_S, MUL_S, THRESHOLD, CMP_S }
+
+	private final Op op;
+	private final ImageExpr a, b;
+	private final IplImage image;
+	private final double p1, p2;
+	private final CompareMode mode;
+	private final PixelDepth depth;
+	private final int channels;
+
+	private ImageExpr(Op op, ImageExpr a, ImageExpr b, IplImage image, double p1, double p2, CompareMode mode){
+		this.op = op;
+		this.a = a;
+		this.b = b;
+		this.image = image;
+		this.p1 = p1;
+		this.p2 = p2;
+		this.mode = mode;
+		if( image != null ){
+			if( !JavaOps.isSupported(image.getPixelDepth()) ){
+				throw new UnsupportedOperationException("Expressions only support images of depth " +
+						PixelDepth.IPL_DEPTH_8U + ", " + PixelDepth.IPL_DEPTH_16U + " or " + PixelDepth.IPL_DEPTH_32F);
+			}
+			depth = image.getPixelDepth();
+			channels = image.getNumberOfChannels();
+		}
+		else{
+			// comparisons produce 8 bit masks whatever they compare
+			depth = op == Op.CMP_S ? PixelDepth.IPL_DEPTH_8U : a.depth;
+			channels = a.channels;
+			if( b != null && b.channels != channels ){
+				throw new IllegalArgumentException("Operands must have the same number of channels");
+			}
+			if( b != null && b.depth != depth ){
+				throw new IllegalArgumentException("Operands must have the same depth, not " + depth + " and " + b.depth);
+			}
+		}
+	}
+
+	/**
+	 * @return an expression reading the pixels of the image (inside its ROI)
+	 */
+	public static ImageExpr of(IplImage im){
+		return new ImageExpr(Op.IMAGE, null, null, im, 0, 0, null);
+	}
+
+	private ImageExpr binary(Op op, ImageExpr other){
+		return new ImageExpr(op, this, other, null, 0, 0, null);
+	}
+
+	/** <code>| this - other |</code> */
+	public ImageExpr absDiff(ImageExpr other){ return binary(Op.ABS_DIFF, other); }
+	public ImageExpr absDiff(IplImage other){ return absDiff(of(other)); }
+
+	/** <code>this + other</code> */
+	public ImageExpr add(ImageExpr other){ return binary(Op.ADD, other); }
+	public ImageExpr add(IplImage other){ return add(of(other)); }
+
+	/** <code>this - other</code> */
+	public ImageExpr sub(ImageExpr other){ return binary(Op.SUB, other); }
+	public ImageExpr sub(IplImage other){ return sub(of(other)); }
+
+	/** <code>this & other</code>, float values are combined by their bit representation */
+	public ImageExpr and(ImageExpr other){ return binary(Op.AND, other); }
+	public ImageExpr and(IplImage other){ return and(of(other)); }
+
+	/** <code>min(this, other)</code> */
+	public ImageExpr min(ImageExpr other){ return binary(Op.MIN, other); }
+	public ImageExpr min(IplImage other){ return min(of(other)); }
+
+	/** <code>max(this, other)</code> */
+	public ImageExpr max(ImageExpr other){ return binary(Op.MAX, other); }
+	public ImageExpr max(IplImage other){ return max(of(other)); }
+
+	/** <code>this + value</code>, for integer depths the value is rounded first like in cvAddS */
+	public ImageExpr addS(double value){
+		return new ImageExpr(Op.ADD_S, this, null, null, value, 0, null);
+	}
+
+	/** <code>this * scale</code> */
+	public ImageExpr mulS(double scale){
+		return new ImageExpr(Op.MUL_S, this, null, null, scale, 0, null);
+	}
+
+	/** <code>this > threshold ? max_value : 0</code>, like CV_THRESH_BINARY */
+	public ImageExpr threshold(double threshold, double max_value){
+		return new ImageExpr(Op.THRESHOLD, this, null, null, threshold, max_value, null);
+	}
+
+	/** <code>this op value ? 255 : 0</code> */
+	public ImageExpr cmpS(double value, CompareMode mode){
+		return new ImageExpr(Op.CMP_S, this, null, null, value, 0, mode);
+	}
+
+	/* ******************************************************************************
+	 *  						EVALUATION			                                *
+	 * ******************************************************************************/
+
+	/**
+	 * Writes the result to dst, saturated to the depth of dst.
+	 */
+	public void evaluate(IplImage dst){
+		if( !JavaOps.isSupported(dst.getPixelDepth()) || dst.getNumberOfChannels() != channels ){
+			throw new IllegalArgumentException("Destination must have " + channels + " channel(s) and depth " +
+					PixelDepth.IPL_DEPTH_8U + ", " + PixelDepth.IPL_DEPTH_16U + " or " + PixelDepth.IPL_DEPTH_32F);
+		}
+		final Program program = new Program(this);
+		final Region out = program.checkSize(new Region(dst));
+		final PixelDepth out_depth = dst.getPixelDepth();
+		dst.beforeWrite();
+
+		PixelKernels.execute(program.bounds, new Rows() {
+			@Override
+			void run(int from, int to) {
+				float[][] values = program.newValues();
+				Object[] raw = program.newRaw();
+				int n = out.elements;
+				byte[] bytes = out_depth == PixelDepth.IPL_DEPTH_8U ? new byte[n] : null;
+				short[] shorts = out_depth == PixelDepth.IPL_DEPTH_16U ? new short[n] : null;
+				for(int y=from; y<to; y++){
+					float[] v = program.run(y, values, raw);
+					if( bytes != null ){
+						for(int i=0; i<n; i++) bytes[i] = (byte) JavaOps.saturate8U(Math.rint(v[i]));
+						out.image.writeData(out.row(y), bytes, 0, n);
+					}
+					else if( shorts != null ){
+						for(int i=0; i<n; i++) shorts[i] = (short) JavaOps.saturate16U(Math.rint(v[i]));
+						out.image.writeData(out.row(y), shorts, 0, n);
+					}
+					else{
+						out.image.writeData(out.row(y), v, 0, n);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the number of non zero values of the result
+	 */
+	public long countNonZero(){
+		final Program program = new Program(this);
+		final AtomicLong count = new AtomicLong();
+		PixelKernels.execute(program.bounds, new Rows() {
+			@Override
+			void run(int from, int to) {
+				float[][] values = program.newValues();
+				Object[] raw = program.newRaw();
+				long c = 0;
+				for(int y=from; y<to; y++){
+					float[] v = program.run(y, values, raw);
+					for(int i=0; i<v.length; i++){
+						if( v[i] != 0 ) c++;
+					}
+				}
+				count.addAndGet(c);
+			}
+		});
+		return count.get();
+	}
+
+	/**
+	 * @return the sum of all values of the result, over all channels
+	 */
+	public double sum(){
+		final Program program = new Program(this);
+		final double[] partial = new double[program.bounds.height];
+		PixelKernels.execute(program.bounds, new Rows() {
+			@Override
+			void run(int from, int to) {
+				float[][] values = program.newValues();
+				Object[] raw = program.newRaw();
+				for(int y=from; y<to; y++){
+					float[] v = program.run(y, values, raw);
+					double s = 0;
+					for(int i=0; i<v.length; i++) s += v[i];
+					partial[y] = s;
+				}
+			}
+		});
+		double total = 0;
+		for(double s : partial) total += s;
+		return total;
+	}
+
+	/**
+	 * The nodes of an expression in evaluation order, every node computes one row into its own buffer
+	 */
+	private static final class Program {
+		final ImageExpr[] nodes;
+		final Region[] regions;
+		final int[] left, right;
+		final Region bounds;
+
+		Program(ImageExpr root){
+			List<ImageExpr> order = new ArrayList<ImageExpr>();
+			IdentityHashMap<ImageExpr, Integer> index = new IdentityHashMap<ImageExpr, Integer>();
+			collect(root, order, index);
+
+			int count = order.size();
+			nodes = order.toArray(new ImageExpr[count]);
+			regions = new Region[count];
+			left = new int[count];
+			right = new int[count];
+			Region first = null;
+			for(int i=0; i<count; i++){
+				ImageExpr e = nodes[i];
+				left[i] = e.a == null ? -1 : index.get(e.a);
+				right[i] = e.b == null ? -1 : index.get(e.b);
+				if( e.image != null ){
+					regions[i] = first == null ? new Region(e.image) : checkSize(new Region(e.image), first);
+					if( first == null ) first = regions[i];
+				}
+			}
+			bounds = first;
+		}
+
+		private static void collect(ImageExpr e, List<ImageExpr> order, IdentityHashMap<ImageExpr, Integer> index){
+			if( index.containsKey(e) ) return;
+			if( e.a != null ) collect(e.a, order, index);
+			if( e.b != null ) collect(e.b, order, index);
+			index.put(e, order.size());
+			order.add(e);
+		}
+
+		Region checkSize(Region r){
+			return checkSize(r, bounds);
+		}
+
+		private static Region checkSize(Region r, Region first){
+			if( r.width != first.width || r.height != first.height ){
+				throw new IllegalArgumentException("All images must have the same (ROI) size");
+			}
+			return r;
+		}
+
+		float[][] newValues(){
+			return new float[nodes.length][bounds.elements];
+		}
+
+		Object[] newRaw(){
+			Object[] raw = new Object[nodes.length];
+			for(int i=0; i<nodes.length; i++){
+				if( nodes[i].image == null ) continue;
+				PixelDepth d = nodes[i].depth;
+				raw[i] = d == PixelDepth.IPL_DEPTH_8U ? new byte[bounds.elements] :
+					d == PixelDepth.IPL_DEPTH_16U ? (Object) new short[bounds.elements] : null;
+			}
+			return raw;
+		}
+
+		/**
+		 * @return the result row y
+		 */
+		float[] run(int y, float[][] values, Object[] raw){
+			for(int i=0; i<nodes.length; i++){
+				ImageExpr e = nodes[i];
+				float[] out = values[i];
+				if( e.op == Op.IMAGE ){
+					load(regions[i], y, e.depth, raw[i], out);
+				}
+				else{
+					e.apply(values[left[i]], right[i] < 0 ? null : values[right[i]], out);
+				}
+			}
+			return values[nodes.length - 1];
+		}
+
+		private static void load(Region r, int y, PixelDepth depth, Object raw, float[] out){
+			int n = out.length;
+			if( depth == PixelDepth.IPL_DEPTH_8U ){
+				byte[] bytes = (byte[]) raw;
+				r.image.readData(r.row(y), bytes, 0, n);
+				for(int i=0; i<n; i++) out[i] = bytes[i] & 0xff;
+			}
+			else if( depth == PixelDepth.IPL_DEPTH_16U ){
+				short[] shorts = (short[]) raw;
+				r.image.readData(r.row(y), shorts, 0, n);
+				for(int i=0; i<n; i++) out[i] = shorts[i] & 0xffff;
+			}
+			else{
+				r.image.readData(r.row(y), out, 0, n);
+			}
+		}
+	}
+
+	/**
+	 * Computes one row of this node from the rows of its operands
+	 */
+	private void apply(float[] x, float[] z, float[] out){
+		int n = out.length;
+		switch( op ){
+		case ABS_DIFF:	for(int i=0; i<n; i++) out[i] = Math.abs(x[i] - z[i]); break;
+		case ADD:		for(int i=0; i<n; i++) out[i] = x[i] + z[i]; break;
+		case SUB:		for(int i=0; i<n; i++) out[i] = x[i] - z[i]; break;
+		case MIN:		for(int i=0; i<n; i++) out[i] = Math.min(x[i], z[i]); break;
+		case MAX:		for(int i=0; i<n; i++) out[i] = Math.max(x[i], z[i]); break;
+		case AND:
+			if( depth == PixelDepth.IPL_DEPTH_32F ){
+				for(int i=0; i<n; i++) out[i] = Float.intBitsToFloat(Float.floatToRawIntBits(x[i]) & Float.floatToRawIntBits(z[i]));
+			}
+			else{
+				for(int i=0; i<n; i++) out[i] = (int) x[i] & (int) z[i];
+			}
+			break;
+		case ADD_S: {
+			// like cvAddS the value is converted to the depth first
+			float v = (float) (depth == PixelDepth.IPL_DEPTH_32F ? p1 : Math.rint(p1));
+			for(int i=0; i<n; i++) out[i] = x[i] + v;
+			break;
+		}
+		case MUL_S: {
+			double s = p1;
+			for(int i=0; i<n; i++) out[i] = (float) (x[i] * s);
+			break;
+		}
+		case THRESHOLD: {
+			double t = p1;
+			float max_value = (float) saturate(p2);
+			for(int i=0; i<n; i++) out[i] = x[i] > t ? max_value : 0;
+			break;
+		}
+		case CMP_S: {
+			// compared at the depth of the operand, this node itself is 8U
+			double v = JavaOps.toDepth(p1, a.depth);
+			switch( mode ){
+			case CV_CMP_EQUAL:				for(int i=0; i<n; i++) out[i] = x[i] == v ? 255 : 0; break;
+			case CV_CMP_NOT_EQUAL:			for(int i=0; i<n; i++) out[i] = x[i] != v ? 255 : 0; break;
+			case CV_CMP_GREATER_THAN:		for(int i=0; i<n; i++) out[i] = x[i] > v ? 255 : 0; break;
+			case CV_CMP_GREATER_OR_EQUAL:	for(int i=0; i<n; i++) out[i] = x[i] >= v ? 255 : 0; break;
+			case CV_CMP_LESS_THAN:			for(int i=0; i<n; i++) out[i] = x[i] < v ? 255 : 0; break;
+			case CV_CMP_LESS_OR_EQUAL:		for(int i=0; i<n; i++) out[i] = x[i] <= v ? 255 : 0; break;
+			}
+			// already a valid 8 bit mask
+			return;
+		}
+		default:
+			throw new IllegalStateException("Not an operation: " + op);
+		}
+
+		// integer depths round and saturate after every step, like the CxCore functions
+		if( depth == PixelDepth.IPL_DEPTH_8U ){
+			for(int i=0; i<n; i++) out[i] = JavaOps.saturate8U(Math.rint(out[i]));
+		}
+		else if( depth == PixelDepth.IPL_DEPTH_16U ){
+			for(int i=0; i<n; i++) out[i] = JavaOps.saturate16U(Math.rint(out[i]));
+		}
+	}
+
+	private double saturate(double v){
+		if( depth == PixelDepth.IPL_DEPTH_8U ) return JavaOps.saturate8U(Math.rint(v));
+		if( depth == PixelDepth.IPL_DEPTH_16U ) return JavaOps.saturate16U(Math.rint(v));
+		return v;
+	}
+}
@@ -0,0 +1,262 @@
+/* Description and License
+ * A Java library that wraps the functionality of the native image 
+ * processing library OpenCV
+ *
+ * (c) Sigurdur Orn Adalgeirsson (siggi@alum.mit.edu)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+ 
+package sj.opencv;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sj.opencv.Constants.ColorModel;
+import sj.opencv.Constants.PixelDepth;
+
+/**
+ * A bounded pool of natively allocated images, keyed by width, height, pixel depth and color model.
+ * Per frame temporaries (gray, edges, masks) can be acquired and released every frame without
+ * going through cvCreateImage/cvReleaseImage each time.
+ * <p>
+ * Every thread first looks in its own small cache so the common acquire/release cycle takes no lock,
+ * after that a shared lock free pool is used. Released images keep their pixel contents, the ROI and COI
+ * are reset.
+ * <pre>
+ * IplImage gray = pool.acquire(w, h, PixelDepth.IPL_DEPTH_8U, ColorModel.GRAY);
+ * ...
+ * pool.release(gray);
+ * </pre>
+ */
+public class ImagePool {
+
+	private static final ImagePool default_pool = new ImagePool(64, 4);
+
+	/**
+	 * @return a process wide pool holding at most 64 shared images and 4 images per format per thread
+	 */
+	public static ImagePool getDefault(){
+		return default_pool;
+	}
+
+	private static final class Key {
+		private final int width, height;
+		private final PixelDepth depth;
+		private final ColorModel color_model;
+
+		Key(int width, int height, PixelDepth depth, ColorModel color_model){
+			this.width = width;
+			this.height = height;
+			this.depth = depth;
+			this.color_model = color_model;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((width * 31 + height) * 31 + depth.ordinal()) * 31 + color_model.ordinal();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if( !(obj instanceof Key) ) return false;
+			Key k = (Key) obj;
+			return width == k.width && height == k.height && depth == k.depth && color_model == k.color_model;
+		}
+	}
+
+	private final int max_shared_images;
+	private final int max_local_images_per_key;
+
+	private final ConcurrentHashMap<Key, Queue<IplImage>> shared = new ConcurrentHashMap<Key, Queue<IplImage>>();
+	private final AtomicInteger shared_size = new AtomicInteger();
+
+	private final ThreadLocal<HashMap<Key, ArrayDeque<IplImage>>> local = new ThreadLocal<HashMap<Key, ArrayDeque<IplImage>>>(){
+		@Override
+		protected HashMap<Key, ArrayDeque<IplImage>> initialValue() {
+			return new HashMap<Key, ArrayDeque<IplImage>>();
+		}
+	};
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param max_shared_images upper bound on the images kept in the shared pool
+	 * @param max_local_images_per_key upper bound on images of one format cached by each thread
+	 */
+	public ImagePool(int max_shared_images, int max_local_images_per_key){
+		if( max_shared_images < 0 || max_local_images_per_key < 0 ) throw new IllegalArgumentException("Pool sizes can't be negative");
+		this.max_shared_images = max_shared_images;
+		this.max_local_images_per_key = max_local_images_per_key;
+	}
+
+	/**
+	 * Returns an image of the requested format, reusing a pooled one when available.
+	 * The pixel contents of a reused image are undefined.
+	 */
+	public IplImage acquire(int width, int height, PixelDepth pixel_depth, ColorModel color_model){
+		Key key = new Key(width, height, pixel_depth, color_model);
+
+		ArrayDeque<IplImage> local_images = local.get().get(key);
+		if( local_images != null ){
+			IplImage im = local_images.pollFirst();
+			if( im != null ) im.leavePool();
+			if( im != null && im.getPointer() != null ){
+				hits.incrementAndGet();
+				return im;
+			}
+		}
+
+		Queue<IplImage> shared_images = shared.get(key);
+		if( shared_images != null ){
+			IplImage im = shared_images.poll();
+			if( im != null ){
+				shared_size.decrementAndGet();
+				im.leavePool();
+			}
+			if( im != null && im.getPointer() != null ){
+				hits.incrementAndGet();
+				return im;
+			}
+		}
+
+		misses.incrementAndGet();
+		IplImage im = CxCore.createImage(width, height, pixel_depth, color_model);
+		// Pooled images are owned by the pool, not by an enclosing ImageScope
+		ImageScope.untrack(im);
+		return im;
+	}
+
+	/**
+	 * Same as {@link #acquire(int, int, PixelDepth, ColorModel)} with the format of <code>like</code>
+	 */
+	public IplImage acquire(IplImage like){
+		return acquire(like.getWidth(), like.getHeight(), like.getPixelDepth(), like.getColorModel());
+	}
+
+	/**
+	 * Hands an image back to the pool. If the pool is full the image is deallocated.
+	 * The image must not be used by the caller after this. Only native images that own their
+	 * pixels can be pooled, so views, snapshots, heap backed images and images with a row
+	 * size other than the one {@link #acquire(int, int, PixelDepth, ColorModel)} allocates are rejected.
+	 *
+	 * @throws IllegalArgumentException if the image can't be pooled
+	 * @throws IllegalStateException if the image is already in a pool
+	 */
+	public void release(IplImage im){
+		if( im == null ) return;
+		if( im.isHeapBacked() || im.getParent() != null || im.isReadOnly() ||
+				im.getWidthStep() != IplImage.getAlignedWidthStep(im.getWidth(), im.getPixelDepth(), im.getColorModel()) ){
+			throw new IllegalArgumentException("Only native images that own their pixels can be pooled, not views, snapshots or heap backed images");
+		}
+		if( im.getPointer() == null ) return;
+		if( !im.enterPool(this) ){
+			throw new IllegalStateException("Image was released twice");
+		}
+
+		CxCore.resetImageROI(im);
+		CxCore.setImageCOI(im, 0);
+
+		Key key = new Key(im.getWidth(), im.getHeight(), im.getPixelDepth(), im.getColorModel());
+
+		HashMap<Key, ArrayDeque<IplImage>> local_map = local.get();
+		ArrayDeque<IplImage> local_images = local_map.get(key);
+		if( local_images == null ){
+			local_images = new ArrayDeque<IplImage>();
+			local_map.put(key, local_images);
+		}
+		if( local_images.size() < max_local_images_per_key ){
+			local_images.addFirst(im);
+			return;
+		}
+
+		if( shared_size.incrementAndGet() <= max_shared_images ){
+			Queue<IplImage> shared_images = shared.get(key);
+			if( shared_images == null ){
+				Queue<IplImage> fresh = new ConcurrentLinkedQueue<IplImage>();
+				shared_images = shared.putIfAbsent(key, fresh);
+				if( shared_images == null ) shared_images = fresh;
+			}
+			shared_images.offer(im);
+			return;
+		}
+		shared_size.decrementAndGet();
+
+		evictions.incrementAndGet();
+		im.leavePool();
+		im.deAllocate();
+	}
+
+	/**
+	 * Deallocates every image in the shared pool and in the calling thread's cache.
+	 * Images cached by other threads are only freed when those threads call clear(), or by the
+	 * garbage collector once the threads have died or the pool is no longer reachable.
+	 */
+	public void clear(){
+		for (ArrayDeque<IplImage> images : local.get().values()) {
+			for (IplImage im : images) {
+				evictions.incrementAndGet();
+				im.leavePool();
+				im.deAllocate();
+			}
+			images.clear();
+		}
+		for (Queue<IplImage> images : shared.values()) {
+			IplImage im;
+			while( (im = images.poll()) != null ){
+				shared_size.decrementAndGet();
+				evictions.incrementAndGet();
+				im.leavePool();
+				im.deAllocate();
+			}
+		}
+	}
+
+	/**
+	 * @return number of acquires that were served by a pooled image
+	 */
+	public long getHitCount(){
+		return hits.get();
+	}
+
+	/**
+	 * @return number of acquires that had to allocate a new image
+	 */
+	public long getMissCount(){
+		return misses.get();
+	}
+
+	/**
+	 * @return number of images deallocated because the pool was full or cleared
+	 */
+	public long getEvictionCount(){
+		return evictions.get();
+	}
+
+	/**
+	 * @return number of images currently held by the shared pool (thread caches not included)
+	 */
+	public int getSharedSize(){
+		return shared_size.get();
+	}
+}
@@ -0,0 +1,144 @@
+/* Description and License
+ * A Java library that wraps the functionality of the native image 
+ * processing library OpenCV
+ *
+ * (c) Sigurdur Orn Adalgeirsson (siggi@alum.mit.edu)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+ 
+package sj.opencv;
+
+import java.util.ArrayList;
+
+/**
+ * A per thread arena for short lived native objects. Every IplImage, Mat, MemStorage and Histogram
+ * created on a thread while an ImageScope is open on it is tracked by that scope and deallocated
+ * when the scope is closed, most recently created first.
+ * <pre>
+ * ImageScope scope = ImageScope.open();
+ * try {
+ *     IplImage gray = CxCore.createImage(w, h, PixelDepth.IPL_DEPTH_8U, ColorModel.GRAY);
+ *     ...
+ *     result = scope.keep( CxCore.cloneImage(gray) );
+ * } finally {
+ *     scope.close();
+ * }
+ * </pre>
+ * Scopes nest; closing a scope makes its parent current again. A scope is not thread safe and must
+ * be closed on the thread that opened it.
+ */
+public class ImageScope implements AutoCloseable {
+
+	private static final ThreadLocal<ImageScope> current = new ThreadLocal<ImageScope>();
+
+	/**
+	 * Opens a new scope on the calling thread, nested inside the current one if there is one
+	 */
+	public static ImageScope open(){
+		ImageScope scope = new ImageScope(current.get());
+		current.set(scope);
+		return scope;
+	}
+
+	/**
+	 * @return the innermost open scope of the calling thread, or null
+	 */
+	public static ImageScope getCurrent(){
+		return current.get();
+	}
+
+	/**
+	 * Called from the constructors of scoped resource types
+	 */
+	static void track(BasePointer p){
+		ImageScope scope = current.get();
+		if( scope != null ){
+			scope.tracked.add(p);
+		}
+	}
+
+	/**
+	 * Removes p from the current scope (if it is tracked there), for allocations that are owned elsewhere
+	 */
+	static void untrack(BasePointer p){
+		ImageScope scope = current.get();
+		if( scope != null ){
+			scope.remove(p);
+		}
+	}
+
+	private final ImageScope parent;
+	private final ArrayList<BasePointer> tracked = new ArrayList<BasePointer>();
+	private final Thread owner;
+	private boolean closed = false;
+
+	private ImageScope(ImageScope parent){
+		this.parent = parent;
+		this.owner = Thread.currentThread();
+	}
+
+	/**
+	 * Stops tracking p so it survives this scope. If a parent scope is open p moves to it,
+	 * otherwise the caller becomes responsible for releasing it.
+	 * @return p
+	 */
+	public <T extends BasePointer> T keep(T p){
+		if( remove(p) && parent != null ){
+			parent.tracked.add(p);
+		}
+		return p;
+	}
+
+	/**
+	 * @return number of objects currently tracked by this scope
+	 */
+	public int size(){
+		return tracked.size();
+	}
+
+	/**
+	 * Deallocates every object tracked by this scope and makes the parent scope current
+	 */
+	@Override
+	public void close(){
+		if( closed ) return;
+		if( Thread.currentThread() != owner || current.get() != this ){
+			throw new IllegalStateException("ImageScope must be closed innermost first, on the thread that opened it");
+		}
+		closed = true;
+		try {
+			for(int i=tracked.size()-1; i>=0; i--){
+				tracked.get(i).deAllocate();
+			}
+		} finally {
+			tracked.clear();
+			if( parent == null ) current.remove();
+			else current.set(parent);
+		}
+	}
+
+	private boolean remove(BasePointer p){
+		// Most of the time the object was created last, so search from the end
+		for(int i=tracked.size()-1; i>=0; i--){
+			if( tracked.get(i) == p ){
+				tracked.remove(i);
+				return true;
+			}
+		}
+		return false;
+	}
+}
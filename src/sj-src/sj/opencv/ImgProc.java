@@ -22,7 +22,7 @@
  
 package sj.opencv;
 
-import static sj.opencv.jna.JNAOpenCV.*;
+import static sj.opencv.jna.JNAOpenCV.Imgproc.IMGPROC;
 
 import java.awt.Dimension;
 import java.awt.Point;
@@ -43,6 +43,7 @@ import sj.opencv.Constants.InterpolationMode;
 import sj.opencv.Constants.TermCriteriaType;
 import sj.opencv.Constants.WarpMode;
 import sj.opencv.CxCore.CompareMode;
+import sj.opencv.jna.ImgprocDirect;
 import sj.opencv.jna.cxcore.CvHistogram;
 import sj.opencv.jna.cxcore.CvMat;
 import sj.opencv.jna.cxcore.CvPoint;
@@ -75,6 +76,7 @@ public class ImgProc {
 
 		private final int open_cv_constant;
 		SmoothType(int constant){this.open_cv_constant=constant;}
+		public final int getConstant(){return open_cv_constant;};
 	}
 
 	public enum InterpType{
@@ -86,6 +88,7 @@ public class ImgProc {
 
 		private final int open_cv_constant;
 		InterpType(int constant){this.open_cv_constant=constant;}
+		public final int getConstant(){return open_cv_constant;};
 	}
 	
 	public enum HistogramCompType {
@@ -132,7 +135,7 @@ public class ImgProc {
 			flags = flags | WarpMode.CV_WARP_FILL_OUTLIERS.getConstant();
 		}
 
-		IMGPROC.cvRemap(src.getCvArr(), dst.getCvArr(), mapx.getCvArr(), mapy.getCvArr(), (int)flags, new ByValue(fillValue.getArray()));
+		IMGPROC.cvRemap(src.getCvArr(), dst.getWritableCvArr(), mapx.getCvArr(), mapy.getCvArr(), (int)flags, new ByValue(fillValue.getArray()));
 	}
 
 	public static void calcHist(IplImage image, Histogram hist, int accumulate, IplImage mask) {
@@ -179,7 +182,7 @@ public class ImgProc {
 	}
 
 	public static void resize(IplImage src, IplImage dst, InterpType interpolation){
-		IMGPROC.cvResize(src.getCvArr(), dst.getCvArr(), interpolation.open_cv_constant);
+		ImgprocDirect.cvResize(src.getPointer(), dst.getWritablePointer(), interpolation.open_cv_constant);
 	}
 
 	/**
@@ -187,7 +190,7 @@ public class ImgProc {
 	 */
 	public static void smooth(IplImage src, IplImage dst, SmoothType smooth_type, int size1, int size2, double sigma1, double sigma2){
 		if( size1%2 == 0 || size2%2 == 0) throw new IllegalArgumentException("size1 and size2 need to be odd numbers");
-		IMGPROC.cvSmooth(src.getCvArr(), dst.getCvArr(), smooth_type.open_cv_constant, size1, size2, sigma1, sigma2);
+		ImgprocDirect.cvSmooth(src.getPointer(), dst.getWritablePointer(), smooth_type.open_cv_constant, size1, size2, sigma1, sigma2);
 	}
 
 
@@ -204,7 +207,7 @@ public class ImgProc {
 	public static void canny(IplImage src, IplImage dst, double threshold1, double threshold2, int aperture_size){
 		if( !(aperture_size == 3 || aperture_size == 5 || aperture_size == 7)) throw new IllegalArgumentException("aperture_size needs to be one of 1, 3, 5 or 7");
 
-		IMGPROC.cvCanny(src.getCvArr(), dst.getCvArr(), threshold1, threshold2, aperture_size);
+		ImgprocDirect.cvCanny(src.getPointer(), dst.getWritablePointer(), threshold1, threshold2, aperture_size);
 	}
 
 
@@ -231,7 +234,7 @@ public class ImgProc {
 	 * @param thresholdType  Thresholding type (see the discussion)
 	 */
 	public static void threshold(IplImage src, IplImage dst, double threshold, double maxValue, ThresholdType threshold_type){
-		IMGPROC.cvThreshold(src.getCvArr(), dst.getCvArr(), threshold, maxValue, threshold_type.open_cv_constant);
+		ImgprocDirect.cvThreshold(src.getPointer(), dst.getWritablePointer(), threshold, maxValue, threshold_type.open_cv_constant);
 	}
 	
 	/**
@@ -243,7 +246,50 @@ public class ImgProc {
 	 */
 	public static void filter2d(IplImage src, IplImage dst, Mat kernel, Point anchor){
 		CvMat cvKernel = kernel.getJNACvMat();
-		IMGPROC.cvFilter2D(src.getCvArr(), dst.getCvArr(), cvKernel, new CvPoint.ByValue(anchor.x, anchor.y));
+		IMGPROC.cvFilter2D(src.getCvArr(), dst.getWritableCvArr(), cvKernel, new CvPoint.ByValue(anchor.x, anchor.y));
+	}
+
+	/**
+	 * Adds a frame to an accumulator: <code>sum(i) += image(i), if mask(i) != 0</code><br>
+	 * See {@link Accumulator} for sum, squares and running averages in one pass.
+	 * @param image Input image, 8-bit or 32-bit floating point, 1 or 3 channels
+	 * @param sum Accumulator of the same size and channels, 32-bit or 64-bit floating point
+	 * @param mask Optional operation mask
+	 */
+	public static void acc(IplImage image, IplImage sum, IplImage mask){
+		IMGPROC.cvAcc(image.getCvArr(), sum.getWritableCvArr(), mask==null?null:mask.getCvArr());
+	}
+
+	/**
+	 * Adds the square of a frame to an accumulator: <code>sqsum(i) += image(i)^2, if mask(i) != 0</code>
+	 * @param image Input image, 8-bit or 32-bit floating point, 1 or 3 channels
+	 * @param sqsum Accumulator of the same size and channels, 32-bit or 64-bit floating point
+	 * @param mask Optional operation mask
+	 */
+	public static void squareAcc(IplImage image, IplImage sqsum, IplImage mask){
+		IMGPROC.cvSquareAcc(image.getCvArr(), sqsum.getWritableCvArr(), mask==null?null:mask.getCvArr());
+	}
+
+	/**
+	 * Adds the product of two frames to an accumulator: <code>acc(i) += image1(i) * image2(i), if mask(i) != 0</code>
+	 * @param image1 First input image, 8-bit or 32-bit floating point, 1 or 3 channels
+	 * @param image2 Second input image of the same format
+	 * @param acc Accumulator of the same size and channels, 32-bit or 64-bit floating point
+	 * @param mask Optional operation mask
+	 */
+	public static void multiplyAcc(IplImage image1, IplImage image2, IplImage acc, IplImage mask){
+		IMGPROC.cvMultiplyAcc(image1.getCvArr(), image2.getCvArr(), acc.getWritableCvArr(), mask==null?null:mask.getCvArr());
+	}
+
+	/**
+	 * Updates a running average: <code>acc(i) = (1 - alpha) * acc(i) + alpha * image(i), if mask(i) != 0</code>
+	 * @param image Input image, 8-bit or 32-bit floating point, 1 or 3 channels
+	 * @param acc Accumulator of the same size and channels, 32-bit or 64-bit floating point
+	 * @param alpha Weight of the input image
+	 * @param mask Optional operation mask
+	 */
+	public static void runningAvg(IplImage image, IplImage acc, double alpha, IplImage mask){
+		IMGPROC.cvRunningAvg(image.getCvArr(), acc.getWritableCvArr(), alpha, mask==null?null:mask.getCvArr());
 	}
 	
 	
@@ -295,7 +341,7 @@ public class ImgProc {
 		for (FloodFillFlags floodFillFlags : flags) {
 			intflag |= floodFillFlags.open_cv_constant;
 		}
-		IMGPROC.cvFloodFill(src.getCvArr(), new CvPoint.ByValue(seed_point.x, seed_point.y), new CvScalar.ByValue(new_val.getArray()), new CvScalar.ByValue(lo_diff.getArray()), new CvScalar.ByValue(up_diff.getArray()), null, intflag, mask==null?null:mask.getCvArr());
+		IMGPROC.cvFloodFill(src.getWritableCvArr(), new CvPoint.ByValue(seed_point.x, seed_point.y), new CvScalar.ByValue(new_val.getArray()), new CvScalar.ByValue(lo_diff.getArray()), new CvScalar.ByValue(up_diff.getArray()), null, intflag, mask==null?null:mask.getCvArr());
 	}
 
 	public enum AdaptiveThreshAlg{
@@ -339,7 +385,7 @@ public class ImgProc {
 	public static void adaptiveThreshold(IplImage src, IplImage dst, double maxValue, AdaptiveThreshAlg thresh_alg, AdaptiveThreshType thresh_type, int block_size, double param1){
 		if( block_size % 2 != 1 ) throw new IllegalArgumentException("adaptiveThreshold: Block size must be an odd number: "+block_size);
 
-		IMGPROC.cvAdaptiveThreshold(src.getCvArr(), dst.getCvArr(), maxValue, thresh_alg.getConstant(), thresh_type.getConstant(), block_size, param1);
+		IMGPROC.cvAdaptiveThreshold(src.getCvArr(), dst.getWritableCvArr(), maxValue, thresh_alg.getConstant(), thresh_type.getConstant(), block_size, param1);
 	}
 
 	public enum ColorConversion {
@@ -567,7 +613,7 @@ public class ImgProc {
 		if( src.getColorModel().getNumberOfChannels() != conversion.getSrcChannels() || dst.getColorModel().getNumberOfChannels() != conversion.getDstChannels() )
 			throw new RuntimeException("Number of channels must match between IPLImages and conversion code");
 
-		IMGPROC.cvCvtColor(new CvArr(src.getPointer()), new CvArr(dst.getPointer()), conversion.getConstant());
+		ImgprocDirect.cvCvtColor(src.getPointer(), dst.getWritablePointer(), conversion.getConstant());
 	}
 
 	/**
@@ -589,7 +635,7 @@ public class ImgProc {
 				throw new RuntimeException("Can't convert from "+src.getColorModel().toString()+" to "+dst.getColorModel().toString());
 			}
 
-			IMGPROC.cvCvtColor(new CvArr(src.getPointer()), new CvArr(dst.getPointer()), convert.getConstant());
+			ImgprocDirect.cvCvtColor(src.getPointer(), dst.getWritablePointer(), convert.getConstant());
 		}
 	}
 
@@ -610,10 +656,15 @@ public class ImgProc {
 	 * a 16-bit unsigned short one channel image).
 	 */
 	public static void initUndistortMap(float[] cameraMatrix, float[] distortion, IplImage mapx, IplImage mapy) {
-		CvMat cam_mat = CxCore.createMat(3, 3, cameraMatrix).getJNACvMat();
-		CvMat dist_mat = CxCore.createMat(4, 1, distortion).getJNACvMat();
-
-		IMGPROC.cvInitUndistortMap(cam_mat, dist_mat, mapx.getCvArr(), mapy.getCvArr());
+		ImageScope scope = ImageScope.open();
+		try {
+			CvMat cam_mat = CxCore.createMat(3, 3, cameraMatrix).getJNACvMat();
+			CvMat dist_mat = CxCore.createMat(4, 1, distortion).getJNACvMat();
+
+			IMGPROC.cvInitUndistortMap(cam_mat, dist_mat, mapx.getWritableCvArr(), mapy.getWritableCvArr());
+		} finally {
+			scope.close();
+		}
 	}
 
 
@@ -632,10 +683,15 @@ public class ImgProc {
 	 * @param distortion - The distortion coefficients of the camera.
 	 */
 	public static void undistort2(IplImage src, IplImage dst, float[] cameraMatrix, float[] distortion) {
-		CvMat cam_mat = CxCore.createMat(3, 3, cameraMatrix).getJNACvMat();
-		CvMat dist_mat = CxCore.createMat(4, 1, distortion).getJNACvMat();
-
-		IMGPROC.cvUndistort2(src.getCvArr(), dst.getCvArr(), cam_mat, dist_mat, null);
+		ImageScope scope = ImageScope.open();
+		try {
+			CvMat cam_mat = CxCore.createMat(3, 3, cameraMatrix).getJNACvMat();
+			CvMat dist_mat = CxCore.createMat(4, 1, distortion).getJNACvMat();
+
+			IMGPROC.cvUndistort2(src.getCvArr(), dst.getWritableCvArr(), cam_mat, dist_mat, null);
+		} finally {
+			scope.close();
+		}
 	}
 
 	public static void 	findCornerSubPix(IplImage img, Point2D.Float[] corners, Dimension winSize, Dimension zeroZoneSize, TermCriteriaType criteria[], int max_iter, double epsilon){
@@ -663,7 +719,13 @@ public class ImgProc {
 
 	public static Histogram createHist(int dims, int[] sizes, HistogramType type, float[][] ranges, int uniform) {
 		CvHistogram cvCreateHist = IMGPROC.cvCreateHist(dims, sizes, (int)type.getConstant(), ranges, uniform);
-		return new Histogram(cvCreateHist);
+		Histogram hist = new Histogram(cvCreateHist);
+
+		// float bins for dense histograms, sparse ones start out empty
+		long bins = 1;
+		for(int i=0; i<dims; i++) bins *= sizes[i];
+		hist.trackNativeMemory(cvCreateHist.size() + (type == HistogramType.CV_HIST_ARRAY ? bins * 4 : 0));
+		return hist;
 	}
 	
 	public static void clearHist(Histogram hist) {
@@ -675,6 +737,8 @@ public class ImgProc {
 		CvHistogram cvH = new CvHistogram();
 		
 		IMGPROC.cvCopyHist(src.hist, new PointerByReference(cvH.getPointer()));
-		return new Histogram(cvH);
+		Histogram hist = new Histogram(cvH);
+		hist.trackNativeMemory(src.getTrackedNativeMemory());
+		return hist;
 	}
 }
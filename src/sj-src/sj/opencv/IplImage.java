@@ -22,16 +22,22 @@
  
 package sj.opencv;
 
-import static sj.opencv.jna.JNAOpenCV.CXCORE;
+import static sj.opencv.jna.JNAOpenCV.Core.CXCORE;
 
+import java.awt.Rectangle;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import sj.opencv.Constants.ColorModel;
 import sj.opencv.Constants.PixelDepth;
+import sj.opencv.jna.cxcore.CvSize;
 import sj.opencv.jna.cxcore.CvSize.ByValue;
 import sj.opencv.jna.cxcore.JNAIplImage;
 import sj.opencv.jna.highgui.HighguiLibrary.CvArr;
@@ -53,9 +59,54 @@ public class IplImage extends BasePointer{
 	private int width, height, widthStep;
 	private CvArr cvarr;
 	private JNAIplImage jnaiplimage;
+	// typed views in native byte order, created on first use
+	private ShortBuffer shortView;
+	private FloatBuffer floatView;
+	private DoubleBuffer doubleView;
+	// the image owning the pixels of a view, kept reachable for as long as the view is
+	private IplImage parent;
+	// pixels of a heap backed image until it is moved to native memory
+	private volatile byte[] heap;
+	// native order view of heap, only read with absolute indices so that threads can share it
+	private volatile ByteBuffer heap_buffer;
+	// set while the pixels are shared with snapshots
+	private volatile Shared shared;
+	private volatile boolean read_only;
+	// the pool holding this image between release and acquire
+	private volatile ImagePool pool;
+
+	private static final AtomicReferenceFieldUpdater<IplImage, ImagePool> POOL =
+			AtomicReferenceFieldUpdater.newUpdater(IplImage.class, ImagePool.class, "pool");
+
+	/**
+	 * The reference count of pixels shared between an image and its snapshots. The owner is the
+	 * image that frees the pixels, it is kept reachable until the last snapshot is released.
+	 */
+	private static final class Shared {
+		final AtomicInteger refs = new AtomicInteger(1);
+		volatile IplImage owner;
+		volatile boolean detached;
+
+		Shared(IplImage owner){
+			this.owner = owner;
+		}
+
+		void release(){
+			if( refs.decrementAndGet() == 0 && detached ){
+				owner.deAllocate();
+			}
+		}
+	}
 
 	protected IplImage(JNAIplImage jnaiplimage, int width, int height, int widthStep, ByteBuffer data_buffer, PixelDepth pixel_depth, ColorModel color_model) {
-		super(jnaiplimage.getPointer());
+		this(jnaiplimage, width, height, widthStep, data_buffer, pixel_depth, color_model, null);
+	}
+
+	/**
+	 * @param shared the pixels of a snapshot, released together with its header
+	 */
+	private IplImage(JNAIplImage jnaiplimage, int width, int height, int widthStep, ByteBuffer data_buffer, PixelDepth pixel_depth, ColorModel color_model, Shared shared) {
+		super(jnaiplimage.getPointer(), new Releaser(jnaiplimage.getPointer(), shared));
 		this.widthStep = widthStep;
 		this.depth = pixel_depth;
 		this.imageData = data_buffer;
@@ -64,13 +115,89 @@ public class IplImage extends BasePointer{
 		this.height = height;
 		cvarr = new CvArr(getPointer());
 		this.jnaiplimage = jnaiplimage;
+		ImageScope.track(this);
+	}
+
+	/**
+	 * Creates a heap backed image, see {@link CxCore#createImage(int, int, PixelDepth, ColorModel, byte[])}
+	 */
+	protected IplImage(byte[] data, int width, int height, int widthStep, PixelDepth pixel_depth, ColorModel color_model) {
+		super(null, null);
+		this.widthStep = widthStep;
+		this.depth = pixel_depth;
+		this.imageData = ByteBuffer.wrap(data);
+		this.imageData.order( ByteOrder.nativeOrder() );
+		this.colorModel = color_model;
+		this.width = width;
+		this.height = height;
+		this.heap_buffer = ByteBuffer.wrap(data).order(ByteOrder.nativeOrder());
+		this.heap = data;
+		ImageScope.track(this);
+	}
+
+	/**
+	 * @return the row size OpenCV uses for an image, rows are aligned to 4 bytes
+	 */
+	public static int getAlignedWidthStep(int width, PixelDepth pixel_depth, ColorModel color_model){
+		return (width * color_model.getNumberOfChannels() * pixel_depth.getBytesPerPixel() + 3) & ~3;
+	}
+
+	/**
+	 * @return true while the pixels of this image are in a java array rather than in native memory
+	 */
+	public boolean isHeapBacked(){
+		return heap != null;
+	}
+
+	/**
+	 * Moves the pixels of a heap backed image into a natively allocated image, which happens
+	 * automatically the first time the image is passed to a native function. Afterwards
+	 * {@link #getByteBuffer()} returns a new buffer, buffers obtained before no longer belong to the image.
+	 * Does nothing if the image is already native.
+	 */
+	public synchronized void moveToNative(){
+		byte[] data = heap;
+		if( data == null ) return;
+
+		JNAIplImage jnaim = CXCORE.cvCreateImage(new CvSize.ByValue(width, height), depth.getConstant(), getNumberOfChannels());
+		if( jnaim.widthStep == widthStep ){
+			jnaim.imageData.write(0, data, 0, Math.min(data.length, jnaim.imageSize));
+		}
+		else{
+			int row_bytes = width * getNumberOfChannels() * depth.getBytesPerPixel();
+			for(int y=0; y<height; y++){
+				jnaim.imageData.write((long) y * jnaim.widthStep, data, y * widthStep, row_bytes);
+			}
+		}
+
+		ByteBuffer buffer = jnaim.imageData.getByteBuffer(0, jnaim.imageSize);
+		buffer.order( ByteOrder.nativeOrder() );
+		imageData = buffer;
+		widthStep = jnaim.widthStep;
+		shortView = null;
+		floatView = null;
+		doubleView = null;
+		jnaiplimage = jnaim;
+		cvarr = new CvArr(jnaim.getPointer());
+		attachPointer(jnaim.getPointer(), new Releaser(jnaim.getPointer()));
+		trackNativeMemory(jnaim.nSize + jnaim.imageSize);
+		heap_buffer = null;
+		heap = null;
+	}
+
+	@Override
+	public Pointer getPointer(){
+		if( heap != null ) moveToNative();
+		return super.getPointer();
 	}
 
 	protected JNAIplImage getJNAIPLImage(){
+		if( heap != null ) moveToNative();
 		return jnaiplimage;
 	}
 
 	protected CvArr getCvArr(){
+		if( heap != null ) moveToNative();
 		return cvarr;
 	}
 
@@ -142,6 +269,269 @@ public class IplImage extends BasePointer{
 		return widthStep;
 	}
 
+	/**
+	 * Creates a sub-image that shares the pixel memory of this image. The view has its own
+	 * header, so its ROI and lifetime are independent of this image and of other views, which
+	 * lets several threads work on different tiles of one image at the same time. Every
+	 * CxCore and ImgProc operation accepts a view like any other image.
+	 * <p>
+	 * The view keeps this image from being released by the cleaner, but calling
+	 * {@link #deAllocate()} on this image invalidates all of its views. A view has the
+	 * width step of this image, so it is only of the same format as images with the same row padding.
+	 *
+	 * @param rect the area of the view in image coordinates, the ROI of this image is ignored
+	 * @return an image header pointing into this image
+	 * @throws IndexOutOfBoundsException if rect is empty or not inside the image
+	 */
+	public IplImage view(Rectangle rect) throws IndexOutOfBoundsException {
+		if( rect.width <= 0 || rect.height <= 0 || rect.x < 0 || rect.y < 0 ||
+				rect.x + rect.width > width || rect.y + rect.height > height ){
+			throw new IndexOutOfBoundsException("View " + rect + " is outside of this image's bounds.");
+		}
+
+		int offset = rect.y * widthStep + rect.x * getNumberOfChannels() * depth.getBytesPerPixel();
+		IplImage im = createHeader(offset, rect.width, rect.height, null);
+		im.parent = parent == null ? this : parent;
+		if( read_only ){
+			// views of a snapshot share its pixels and are just as read-only
+			im.makeReadOnly();
+		}
+		return im;
+	}
+
+	/**
+	 * Creates an image header for w x h pixels starting at a byte offset into the pixels of this image.
+	 * The header has no data of its own, so releasing it never frees the pixels.
+	 *
+	 * @param shared the reference a snapshot holds on the pixels, released together with the header
+	 */
+	private IplImage createHeader(int offset, int w, int h, Shared shared){
+		int size = (h - 1) * widthStep + w * getNumberOfChannels() * depth.getBytesPerPixel();
+
+		JNAIplImage jnaim = CXCORE.cvCreateImageHeader(new CvSize.ByValue(w, h), depth.getConstant(), getNumberOfChannels());
+		jnaim.imageData = getJNAIPLImage().imageData.share(offset);
+		jnaim.widthStep = widthStep;
+		jnaim.imageSize = size;
+		jnaim.write();
+
+		ByteBuffer buffer = jnaim.imageData.getByteBuffer(0, size);
+		buffer.order( ByteOrder.nativeOrder() );
+
+		IplImage im = new IplImage(jnaim, w, h, widthStep, buffer, depth, colorModel, shared);
+		im.shared = shared;
+		im.trackNativeMemory(jnaim.nSize);
+		return im;
+	}
+
+	/**
+	 * Marks a snapshot or a view of one, its buffers no longer allow writes
+	 */
+	private void makeReadOnly(){
+		read_only = true;
+		imageData = imageData.asReadOnlyBuffer();
+		imageData.order( ByteOrder.nativeOrder() );
+	}
+
+	/**
+	 * Returns a read-only handle to the current pixels of this image without copying them. The pixels
+	 * are reference counted: as long as snapshots are open, {@link #makeWritable(boolean)} (called by the
+	 * java side setters and by {@link HighGui#queryFrame(Capture, IplImage)}) gives this image fresh pixels
+	 * instead of overwriting the shared ones. Many consumers of one frame therefore cost one copy at most.
+	 * <pre>
+	 * IplImage frame = camera_frame.snapshot();
+	 * try{
+	 *   ... read frame on another thread ...
+	 * }finally{
+	 *   frame.close();
+	 * }
+	 * </pre>
+	 * Java side setters of a snapshot throw UnsupportedOperationException, native functions must not
+	 * be given a snapshot as destination. Snapshots of snapshots share the same pixels.
+	 *
+	 * @return a header only image sharing the pixels of this image, close it when done
+	 */
+	public synchronized IplImage snapshot(){
+		if( shared == null ){
+			shared = new Shared(this);
+		}
+		shared.refs.incrementAndGet();
+
+		IplImage im = createHeader(0, width, height, shared);
+		im.makeReadOnly();
+		return im;
+	}
+
+	/**
+	 * @return true for snapshots, whose pixels must not be changed
+	 */
+	public boolean isReadOnly(){
+		return read_only;
+	}
+
+	/**
+	 * Marks this image as held by a pool
+	 * @return false if it already is, in this or another pool
+	 */
+	boolean enterPool(ImagePool p){
+		return POOL.compareAndSet(this, null, p);
+	}
+
+	void leavePool(){
+		pool = null;
+	}
+
+	/**
+	 * Makes sure no snapshot shares the pixels of this image before they are changed. If snapshots are
+	 * still open this image gets newly allocated pixels and the old ones stay with the snapshots
+	 * until the last of them is closed.
+	 * <p>
+	 * Views created with {@link #view(Rectangle)} keep pointing at the old pixels.
+	 *
+	 * @param keep_contents copy the current pixels into the new ones, false if the caller overwrites the whole image anyway
+	 * @throws UnsupportedOperationException if this image is a snapshot
+	 */
+	public synchronized void makeWritable(boolean keep_contents){
+		checkWritable();
+		Shared s = shared;
+		if( s == null ) return;
+		if( s.refs.get() == 1 ){
+			// every snapshot has been closed already
+			s.refs.decrementAndGet();
+			shared = null;
+			return;
+		}
+
+		// swap the pixels of this image with those of a new image, which then owns the shared pixels
+		JNAIplImage fresh = CXCORE.cvCreateImage(new CvSize.ByValue(width, height), depth.getConstant(), getNumberOfChannels());
+		JNAIplImage own = jnaiplimage;
+		Pointer data = own.imageData, origin = own.imageDataOrigin;
+		own.imageData = fresh.imageData;
+		own.imageDataOrigin = fresh.imageDataOrigin;
+		fresh.imageData = data;
+		fresh.imageDataOrigin = origin;
+		own.writeField("imageData");
+		own.writeField("imageDataOrigin");
+		fresh.writeField("imageData");
+		fresh.writeField("imageDataOrigin");
+
+		ByteBuffer buffer = own.imageData.getByteBuffer(0, own.imageSize);
+		buffer.order( ByteOrder.nativeOrder() );
+		if( keep_contents ){
+			buffer.put(data.getByteBuffer(0, own.imageSize));
+			buffer.clear();
+		}
+		// the old buffer goes to the owner, which keeps the memory of images created on a java buffer reachable
+		IplImage owner = new IplImage(fresh, width, height, fresh.widthStep, imageData, depth, colorModel);
+		imageData = buffer;
+		shortView = null;
+		floatView = null;
+		doubleView = null;
+		// writers check shared without the lock, so it is cleared only once the new pixels are in place,
+		// and the volatile write publishes them
+		shared = null;
+
+		owner.trackNativeMemory(fresh.nSize + fresh.imageSize);
+		ImageScope.untrack(owner);
+		s.owner = owner;
+		s.detached = true;
+		s.release();
+	}
+
+	/**
+	 * Images with open snapshots hand their pixels over to the snapshots instead of freeing them
+	 */
+	@Override
+	public void deAllocate(){
+		synchronized(this){
+			Shared s = shared;
+			if( s != null && !read_only && pointer != null ){
+				shared = null;
+				if( s.refs.get() > 1 ){
+					// a new owner takes over this header and its pixels, nothing is allocated or freed
+					IplImage owner = new IplImage(jnaiplimage, width, height, widthStep, imageData, depth, colorModel);
+					owner.parent = parent;
+					ImageScope.untrack(owner);
+					long bytes = getTrackedNativeMemory();
+					detachPointer();
+					owner.trackNativeMemory(bytes);
+					clearReferences();
+					s.owner = owner;
+					s.detached = true;
+				}
+				s.release();
+				if( pointer == null ) return;
+			}
+		}
+		super.deAllocate();
+	}
+
+	private void checkWritable(){
+		if( read_only ){
+			throw new UnsupportedOperationException("Snapshots are read-only");
+		}
+	}
+
+	/**
+	 * Called before pixels are changed from java or by a native function: throws for snapshots and
+	 * gives this image pixels of its own while snapshots share them.
+	 */
+	void beforeWrite(){
+		if( read_only || shared != null ){
+			makeWritable(true);
+		}
+	}
+
+	/**
+	 * Same as {@link #beforeWrite()} for callers that overwrite every pixel of the image, the pixels
+	 * the snapshots keep are not copied into the new ones first.
+	 */
+	void beforeOverwrite(){
+		if( read_only || shared != null ){
+			makeWritable(false);
+		}
+	}
+
+	/**
+	 * @return the pointer to pass to a native function that writes to this image, see {@link #beforeWrite()}
+	 */
+	Pointer getWritablePointer(){
+		beforeWrite();
+		return getPointer();
+	}
+
+	/**
+	 * @return the CvArr to pass to a native function that writes to this image, see {@link #beforeWrite()}
+	 */
+	CvArr getWritableCvArr(){
+		beforeWrite();
+		return getCvArr();
+	}
+
+	/**
+	 * @return the current address of the first pixel, which changes when {@link #makeWritable(boolean)} copies
+	 */
+	Pointer getDataPointer(){
+		return getJNAIPLImage().imageData;
+	}
+
+	/**
+	 * Returns long addressed access to the pixel memory of this image, which is not limited to
+	 * 2GB like {@link #getByteBuffer()}.
+	 *
+	 * @return a segment spanning all rows of the image, for a view this includes the parent's pixels between the rows
+	 */
+	public PixelSegment segment(){
+		return new PixelSegment(this, (long) (height - 1) * widthStep +
+				(long) width * getNumberOfChannels() * depth.getBytesPerPixel());
+	}
+
+	/**
+	 * @return the image whose pixels this view shares, or null if this image owns its pixels
+	 */
+	public IplImage getParent(){
+		return parent;
+	}
+
 	/**
 	 * Returns the byte buffer containing the pixel data of the image.
 	 * Any change to this buffer will be visible in the image.
@@ -155,37 +545,71 @@ public class IplImage extends BasePointer{
 	/**
 	 * Returns a view to the image byte buffer as a short buffer. This
 	 * operation is only available when the image has depth <code>SHORT</code>.
+	 * The view is in native byte order. Every call returns a new buffer over
+	 * the same pixels, so its position and limit belong to the caller.
 	 *
 	 * @return A short buffer containing the image data.
 	 * @throws UnsupportedOperationException If the image is not of depth <code>SHORT</code>.
 	 */
 	public ShortBuffer getImageDataAsShort() throws UnsupportedOperationException {
 		checkDepth(PixelDepth.IPL_DEPTH_16U);
-		return imageData.asShortBuffer();
+		return shortView().duplicate();
 	}
 
 	/**
 	 * Returns a view to the image byte buffer as a float buffer. This
 	 * operation is only available when the image has depth <code>FLOAT</code>.
+	 * The view is in native byte order. Every call returns a new buffer over
+	 * the same pixels, so its position and limit belong to the caller.
 	 *
 	 * @return A float buffer containing the image data.
 	 * @throws UnsupportedOperationException If the image is not of depth <code>FLOAT</code>.
 	 */
 	public FloatBuffer getImageDataAsFloat() throws UnsupportedOperationException {
 		checkDepth(PixelDepth.IPL_DEPTH_32F);
-		return imageData.asFloatBuffer();
+		return floatView().duplicate();
 	}
 
 	/**
 	 * Returns a view to the image byte buffer as a double buffer. This
 	 * operation is only available when the image has depth <code>DOUBLE</code>.
+	 * The view is in native byte order. Every call returns a new buffer over
+	 * the same pixels, so its position and limit belong to the caller.
 	 *
 	 * @return A double buffer containing the image data.
 	 * @throws UnsupportedOperationException If the image is not of depth <code>DOUBLE</code>.
 	 */
 	public DoubleBuffer getImageDataAsDouble() throws UnsupportedOperationException {
 		checkDepth(PixelDepth.IPL_DEPTH_64F);
-		return imageData.asDoubleBuffer();
+		return doubleView().duplicate();
+	}
+
+	/**
+	 * @return the image data in native byte order, which is how OpenCV writes it
+	 */
+	private ByteBuffer nativeOrderData(){
+		ByteBuffer data = imageData.duplicate();
+		data.clear();
+		data.order(ByteOrder.nativeOrder());
+		return data;
+	}
+
+	/*
+	 * The cached views are only used with absolute indices or through duplicates, callers never see them
+	 */
+	private ShortBuffer shortView(){
+		if( shortView == null ) shortView = nativeOrderData().asShortBuffer();
+		return shortView;
+	}
+
+	private FloatBuffer floatView(){
+		if( floatView == null ) floatView = nativeOrderData().asFloatBuffer();
+		return floatView;
+	}
+
+	private DoubleBuffer doubleView(){
+		if( doubleView == null ) doubleView = nativeOrderData().asDoubleBuffer();
+		return doubleView;
 	}
 
 	/**
@@ -206,6 +630,7 @@ public class IplImage extends BasePointer{
 	 * capacity from the image's byte buffer.
 	 */
 	public void putImageData(ByteBuffer src) throws IllegalArgumentException{
+		beforeWrite();
 		checkCapacity(src);
 		src.rewind();
 		imageData.clear();
@@ -226,15 +651,15 @@ public class IplImage extends BasePointer{
 	 */
 	public void putImageData(ShortBuffer src)
 		throws UnsupportedOperationException, IllegalArgumentException {
+		beforeWrite();
 
 		checkDepth(PixelDepth.IPL_DEPTH_16U);
 		checkCapacity(src);
 		src.rewind();
-		imageData.clear();
-		for (int i = 0 ; i < src.capacity() ; i++) {
-			imageData.putShort(src.get(i));
-		}
-		imageData.rewind();
+		// a duplicate, so the position of the cached view stays untouched for other threads
+		ShortBuffer view = shortView().duplicate();
+		view.clear();
+		view.put(src);
 		src.rewind();
 	}
 
@@ -250,15 +675,15 @@ public class IplImage extends BasePointer{
 	 */
 	public void putImageData(FloatBuffer src)
 		throws UnsupportedOperationException, IllegalArgumentException {
+		beforeWrite();
 
 		checkDepth(PixelDepth.IPL_DEPTH_32F);
 		checkCapacity(src);
 		src.rewind();
-		imageData.clear();
-		for (int i = 0 ; i < src.capacity() ; i++) {
-			imageData.putFloat(src.get(i));
-		}
-		imageData.rewind();
+		// a duplicate, so the position of the cached view stays untouched for other threads
+		FloatBuffer view = floatView().duplicate();
+		view.clear();
+		view.put(src);
 		src.rewind();
 	}
 
@@ -273,14 +698,14 @@ public class IplImage extends BasePointer{
 	 * the capacity of the image's byte buffer.
 	 */
 	public void putImageData(DoubleBuffer src)  throws UnsupportedOperationException, IllegalArgumentException {
+		beforeWrite();
 		checkDepth(PixelDepth.IPL_DEPTH_64F);
 		checkCapacity(src);
 		src.rewind();
-		imageData.clear();
-		for (int i = 0 ; i < src.capacity() ; i++) {
-			imageData.putDouble(src.get(i));
-		}
-		imageData.rewind();
+		// a duplicate, so the position of the cached view stays untouched for other threads
+		DoubleBuffer view = doubleView().duplicate();
+		view.clear();
+		view.put(src);
 		src.rewind();
 	}
 
@@ -439,9 +864,9 @@ public class IplImage extends BasePointer{
 		}
 
 		short[] pixel = new short[getNumberOfChannels()];
-		int pos = y * getWidthStep() + x * getNumberOfChannels();
+		int pos = y * getWidthStep() / 2 + x * getNumberOfChannels();
 		for (int i=0 ; i < getNumberOfChannels() ; i++) {
-			pixel[i] = imageData.asShortBuffer().get(pos + i);
+			pixel[i] = shortView().get(pos + i);
 		}
 		return pixel;
 	}
@@ -474,9 +899,9 @@ public class IplImage extends BasePointer{
 					+ getNumberOfChannels() + " and not " + pixel.length);
 		}
 
-		int pos = y * getWidthStep() + x * getNumberOfChannels();
+		int pos = y * getWidthStep() / 2 + x * getNumberOfChannels();
 		for (int i=0 ; i < getNumberOfChannels() ; i++) {
-			pixel[i] = imageData.asShortBuffer().get(pos + i);
+			pixel[i] = shortView().get(pos + i);
 		}
 	}
 
@@ -570,9 +995,9 @@ public class IplImage extends BasePointer{
 		}
 
 		float[] pixel = new float[getNumberOfChannels()];
-		int pos = y * getWidthStep() + x * getNumberOfChannels();
+		int pos = y * getWidthStep() / 4 + x * getNumberOfChannels();
 		for (int i=0 ; i < getNumberOfChannels() ; i++) {
-			pixel[i] = imageData.asFloatBuffer().get(pos + i);
+			pixel[i] = floatView().get(pos + i);
 		}
 		return pixel;
 	}
@@ -605,9 +1030,9 @@ public class IplImage extends BasePointer{
 					+ getNumberOfChannels() + " and not " + pixel.length);
 		}
 
-		int pos = y * getWidthStep() + x * getNumberOfChannels();
+		int pos = y * getWidthStep() / 4 + x * getNumberOfChannels();
 		for (int i=0 ; i < getNumberOfChannels() ; i++) {
-			pixel[i] = imageData.asFloatBuffer().get(pos + i);
+			pixel[i] = floatView().get(pos + i);
 		}
 	}
 
@@ -701,9 +1126,9 @@ public class IplImage extends BasePointer{
 		}
 
 		double[] pixel = new double[getNumberOfChannels()];
-		int pos = y * getWidthStep() + x * getNumberOfChannels();
+		int pos = y * getWidthStep() / 8 + x * getNumberOfChannels();
 		for (int i=0 ; i < getNumberOfChannels() ; i++) {
-			pixel[i] = imageData.asDoubleBuffer().get(pos + i);
+			pixel[i] = doubleView().get(pos + i);
 		}
 		return pixel;
 	}
@@ -736,9 +1161,9 @@ public class IplImage extends BasePointer{
 					+ getNumberOfChannels() + " and not " + pixel.length);
 		}
 
-		int pos = y * getWidthStep() + x * getNumberOfChannels();
+		int pos = y * getWidthStep() / 8 + x * getNumberOfChannels();
 		for (int i=0 ; i < getNumberOfChannels() ; i++) {
-			pixel[i] = imageData.asDoubleBuffer().get(pos + i);
+			pixel[i] = doubleView().get(pos + i);
 		}
 	}
 
@@ -823,6 +1248,7 @@ public class IplImage extends BasePointer{
 	 */
 	public void setBytePixel(int x, int y, byte[] pixel) throws UnsupportedOperationException,
 		IndexOutOfBoundsException, IllegalArgumentException {
+		beforeWrite();
 
 		if (getPixelDepth() != PixelDepth.IPL_DEPTH_8U) {
 			throw new UnsupportedOperationException("Operation only available for " +
@@ -893,6 +1319,7 @@ public class IplImage extends BasePointer{
 	 */
 	public void setShortPixel(int x, int y, short[] pixel) throws UnsupportedOperationException,
 		IndexOutOfBoundsException, IllegalArgumentException {
+		beforeWrite();
 
 		if (getPixelDepth() != PixelDepth.IPL_DEPTH_16U) {
 			throw new UnsupportedOperationException("Operation only available for " +
@@ -907,9 +1334,9 @@ public class IplImage extends BasePointer{
 					+ getNumberOfChannels() + " and not " + pixel.length);
 		}
 
-		int pos = y * getWidthStep() + x * getNumberOfChannels();
+		int pos = y * getWidthStep() / 2 + x * getNumberOfChannels();
 		for (int i=0 ; i < getNumberOfChannels() ; i++) {
-			imageData.asShortBuffer().put(pos + i, pixel[i]);
+			shortView().put(pos + i, pixel[i]);
 		}
 	}
 
@@ -963,6 +1390,7 @@ public class IplImage extends BasePointer{
 	 */
 	public void setFloatPixel(int x, int y, float[] pixel) throws UnsupportedOperationException,
 		IndexOutOfBoundsException, IllegalArgumentException {
+		beforeWrite();
 
 		if (getPixelDepth() != PixelDepth.IPL_DEPTH_32F) {
 			throw new UnsupportedOperationException("Operation only available for " +
@@ -977,9 +1405,9 @@ public class IplImage extends BasePointer{
 					+ getNumberOfChannels() + " and not " + pixel.length);
 		}
 
-		int pos = y * getWidthStep() + x * getNumberOfChannels();
+		int pos = y * getWidthStep() / 4 + x * getNumberOfChannels();
 		for (int i=0 ; i < getNumberOfChannels() ; i++) {
-			imageData.asFloatBuffer().put(pos + i, pixel[i]);
+			floatView().put(pos + i, pixel[i]);
 		}
 	}
 
@@ -1033,6 +1461,7 @@ public class IplImage extends BasePointer{
 	 */
 	public void setDoublePixel(int x, int y, double[] pixel) throws UnsupportedOperationException,
 		IndexOutOfBoundsException, IllegalArgumentException {
+		beforeWrite();
 
 		if (getPixelDepth() != PixelDepth.IPL_DEPTH_64F) {
 			throw new UnsupportedOperationException("Operation only available for " +
@@ -1047,9 +1476,9 @@ public class IplImage extends BasePointer{
 					+ getNumberOfChannels() + " and not " + pixel.length);
 		}
 
-		int pos = y * getWidthStep() + x * getNumberOfChannels();
+		int pos = y * getWidthStep() / 8 + x * getNumberOfChannels();
 		for (int i=0 ; i < getNumberOfChannels() ; i++) {
-			imageData.asDoubleBuffer().put(pos + i, pixel[i]);
+			doubleView().put(pos + i, pixel[i]);
 		}
 	}
 
@@ -1089,14 +1518,446 @@ public class IplImage extends BasePointer{
 //		}
 //	}
 
+	/* ******************************************************************************
+	 *  						BULK ACCESS			                                *
+	 * ******************************************************************************/
+
+	// IplImage { int nSize, ID, nChannels, alphaChannel, depth; char colorModel[4], channelSeq[4]; int dataOrder, origin, align, width, height; IplROI* roi; ... }
+	private static final int IPL_ROI_OFFSET = 48;
+
+	/**
+	 * @return the IplROI of the image, or null if no ROI is set.
+	 * The ROI is read from the header every time since native functions may change it, so the bulk
+	 * accessors read it once per call and pass it on. Nothing is allocated if no ROI is set.
+	 */
+	private Pointer getROIPointer(){
+		// heap backed images have no header and so no ROI
+		if( pointer == null ) return null;
+		return pointer.getPointer(IPL_ROI_OFFSET);
+	}
+
+	/**
+	 * @return width of the ROI, or of the image if no ROI is set
+	 */
+	private int regionWidth(Pointer roi){
+		// IplROI { int coi, xOffset, yOffset, width, height; }
+		return roi == null ? width : roi.getInt(12);
+	}
+
+	/**
+	 * @return the ROI in image coordinates, or the whole image if no ROI is set
+	 */
+	Rectangle regionBounds(){
+		Pointer roi = getROIPointer();
+		if( roi == null ) return new Rectangle(0, 0, width, height);
+		return new Rectangle(roi.getInt(4), roi.getInt(8), roi.getInt(12), roi.getInt(16));
+	}
+
+	/**
+	 * Creates a bare native header for the ROI rows [y, y+rows) of this image, without a ROI of its
+	 * own. Used to run native functions on bands of an image in parallel, release it with
+	 * <code>cvReleaseImageHeader</code>.
+	 */
+	JNAIplImage createBandHeader(Rectangle region, int y, int rows){
+		int bytes_per_pixel = getNumberOfChannels() * depth.getBytesPerPixel();
+		long offset = (long) (region.y + y) * widthStep + (long) region.x * bytes_per_pixel;
+
+		JNAIplImage jnaim = CXCORE.cvCreateImageHeader(new CvSize.ByValue(region.width, rows), depth.getConstant(), getNumberOfChannels());
+		jnaim.imageData = getJNAIPLImage().imageData.share(offset);
+		jnaim.widthStep = widthStep;
+		jnaim.imageSize = (rows - 1) * widthStep + region.width * bytes_per_pixel;
+		jnaim.write();
+		return jnaim;
+	}
+
+	/**
+	 * Checks a region given in ROI coordinates and returns the byte offset of its first
+	 * pixel in the image data.
+	 */
+	private long regionStart(Pointer roi, int x, int y, int w, int h, int array_length, int array_offset){
+		int ox = 0, oy = 0, rw = width, rh = height;
+		if( roi != null ){
+			ox = roi.getInt(4);
+			oy = roi.getInt(8);
+			rw = roi.getInt(12);
+			rh = roi.getInt(16);
+		}
+		if( x < 0 || y < 0 || w < 0 || h < 0 || x + w > rw || y + h > rh ){
+			throw new IndexOutOfBoundsException("Region (" + x + "," + y + " " + w + "x" + h + ") is outside of this image's bounds (" + rw + "x" + rh + ").");
+		}
+		if( array_offset < 0 || (long) w * h * getNumberOfChannels() > array_length - array_offset ){
+			throw new IllegalArgumentException("Array of length " + array_length + " can't hold " + w + "x" + h + "x" + getNumberOfChannels() + " values at offset " + array_offset);
+		}
+		return (long) (oy + y) * widthStep + (long) (ox + x) * getNumberOfChannels() * depth.getBytesPerPixel();
+	}
+
+	/*
+	 * Copies between arrays and the pixel memory at a byte offset, from the java array while the image is
+	 * heap backed and from native memory otherwise. Used by the bulk accessors, PixelKernels and JavaOps.
+	 * Writes call beforeWrite(), so they never change pixels that snapshots still share.
+	 */
+
+	void readData(long offset, byte[] dst, int index, int length){
+		byte[] h = heap;
+		if( h != null ) System.arraycopy(h, (int) offset, dst, index, length);
+		else jnaiplimage.imageData.read(offset, dst, index, length);
+	}
+
+	void writeData(long offset, byte[] src, int index, int length){
+		beforeWrite();
+		byte[] h = heap;
+		if( h != null ) System.arraycopy(src, index, h, (int) offset, length);
+		else jnaiplimage.imageData.write(offset, src, index, length);
+	}
+
+	void readData(long offset, short[] dst, int index, int length){
+		ByteBuffer h = heap_buffer;
+		if( h != null ){
+			int at = (int) offset;
+			for(int i=0; i<length; i++, at+=2) dst[index + i] = h.getShort(at);
+		}
+		else jnaiplimage.imageData.read(offset, dst, index, length);
+	}
+
+	void writeData(long offset, short[] src, int index, int length){
+		beforeWrite();
+		ByteBuffer h = heap_buffer;
+		if( h != null ){
+			int at = (int) offset;
+			for(int i=0; i<length; i++, at+=2) h.putShort(at, src[index + i]);
+		}
+		else jnaiplimage.imageData.write(offset, src, index, length);
+	}
+
+	void readData(long offset, float[] dst, int index, int length){
+		ByteBuffer h = heap_buffer;
+		if( h != null ){
+			int at = (int) offset;
+			for(int i=0; i<length; i++, at+=4) dst[index + i] = h.getFloat(at);
+		}
+		else jnaiplimage.imageData.read(offset, dst, index, length);
+	}
+
+	void writeData(long offset, float[] src, int index, int length){
+		beforeWrite();
+		ByteBuffer h = heap_buffer;
+		if( h != null ){
+			int at = (int) offset;
+			for(int i=0; i<length; i++, at+=4) h.putFloat(at, src[index + i]);
+		}
+		else jnaiplimage.imageData.write(offset, src, index, length);
+	}
+
+	void readData(long offset, double[] dst, int index, int length){
+		ByteBuffer h = heap_buffer;
+		if( h != null ){
+			int at = (int) offset;
+			for(int i=0; i<length; i++, at+=8) dst[index + i] = h.getDouble(at);
+		}
+		else jnaiplimage.imageData.read(offset, dst, index, length);
+	}
+
+	void writeData(long offset, double[] src, int index, int length){
+		beforeWrite();
+		ByteBuffer h = heap_buffer;
+		if( h != null ){
+			int at = (int) offset;
+			for(int i=0; i<length; i++, at+=8) h.putDouble(at, src[index + i]);
+		}
+		else jnaiplimage.imageData.write(offset, src, index, length);
+	}
+
+	void zeroData(long offset, long length){
+		beforeWrite();
+		byte[] h = heap;
+		if( h != null ) Arrays.fill(h, (int) offset, (int) (offset + length), (byte) 0);
+		else jnaiplimage.imageData.setMemory(offset, length, (byte) 0);
+	}
+
+	private void checkDepth(PixelDepth requiredDepth, PixelDepth otherDepth) throws UnsupportedOperationException {
+		if( getPixelDepth() != requiredDepth && getPixelDepth() != otherDepth ){
+			throw new UnsupportedOperationException("Operation only available for " +
+					"images of depth " + requiredDepth.toString() + (otherDepth == null ? "" : " or " + otherDepth.toString()));
+		}
+	}
+
+	/**
+	 * Copies a rectangular region into <code>dst</code>, row after row without padding.
+	 * Coordinates are relative to the ROI if one is set, all channels are copied.
+	 * Only available for images of depth <code>IPL_DEPTH_8U</code> or <code>IPL_DEPTH_8S</code>.
+	 *
+	 * @param dst receives <code>w*h*channels</code> values starting at <code>offset</code>
+	 * @throws IndexOutOfBoundsException If the region is not inside the image (or ROI).
+	 * @throws IllegalArgumentException If the array is too small.
+	 */
+	public void getRegion(int x, int y, int w, int h, byte[] dst, int offset){
+		checkDepth(PixelDepth.IPL_DEPTH_8U, PixelDepth.IPL_DEPTH_8S);
+		long start = regionStart(getROIPointer(), x, y, w, h, dst.length, offset);
+		int n = w * getNumberOfChannels();
+		for(int r=0; r<h; r++){
+			readData(start + (long) r * widthStep, dst, offset + r * n, n);
+		}
+	}
+
+	/**
+	 * Copies <code>w*h*channels</code> values from <code>src</code> into a rectangular region,
+	 * the inverse of {@link #getRegion(int, int, int, int, byte[], int)}.
+	 */
+	public void putRegion(int x, int y, int w, int h, byte[] src, int offset){
+		beforeWrite();
+		checkDepth(PixelDepth.IPL_DEPTH_8U, PixelDepth.IPL_DEPTH_8S);
+		long start = regionStart(getROIPointer(), x, y, w, h, src.length, offset);
+		int n = w * getNumberOfChannels();
+		for(int r=0; r<h; r++){
+			writeData(start + (long) r * widthStep, src, offset + r * n, n);
+		}
+	}
+
 	/**
-	 * Clears the image buffer by setting all values to zero.
+	 * Copies row <code>y</code> (of the ROI if one is set) into <code>dst</code>.
+	 * @return the number of values copied, the row width times the number of channels
+	 * @see #getRegion(int, int, int, int, byte[], int)
+	 */
+	public int getRow(int y, byte[] dst, int offset){
+		checkDepth(PixelDepth.IPL_DEPTH_8U, PixelDepth.IPL_DEPTH_8S);
+		Pointer roi = getROIPointer();
+		int w = regionWidth(roi);
+		int n = w * getNumberOfChannels();
+		readData(regionStart(roi, 0, y, w, 1, dst.length, offset), dst, offset, n);
+		return n;
+	}
+
+	/**
+	 * Copies one row of values from <code>src</code> into row <code>y</code> (of the ROI if one is set).
+	 * @return the number of values copied, the row width times the number of channels
+	 * @see #putRegion(int, int, int, int, byte[], int)
+	 */
+	public int putRow(int y, byte[] src, int offset){
+		checkDepth(PixelDepth.IPL_DEPTH_8U, PixelDepth.IPL_DEPTH_8S);
+		Pointer roi = getROIPointer();
+		int w = regionWidth(roi);
+		int n = w * getNumberOfChannels();
+		writeData(regionStart(roi, 0, y, w, 1, src.length, offset), src, offset, n);
+		return n;
+	}
+
+	/**
+	 * Copies a rectangular region into <code>dst</code>, row after row without padding.
+	 * Coordinates are relative to the ROI if one is set, all channels are copied.
+	 * Only available for images of depth <code>IPL_DEPTH_16U</code> or <code>IPL_DEPTH_16S</code>.
+	 *
+	 * @param dst receives <code>w*h*channels</code> values starting at <code>offset</code>
+	 * @throws IndexOutOfBoundsException If the region is not inside the image (or ROI).
+	 * @throws IllegalArgumentException If the array is too small.
+	 */
+	public void getRegion(int x, int y, int w, int h, short[] dst, int offset){
+		checkDepth(PixelDepth.IPL_DEPTH_16U, PixelDepth.IPL_DEPTH_16S);
+		long start = regionStart(getROIPointer(), x, y, w, h, dst.length, offset);
+		int n = w * getNumberOfChannels();
+		for(int r=0; r<h; r++){
+			readData(start + (long) r * widthStep, dst, offset + r * n, n);
+		}
+	}
+
+	/**
+	 * Copies <code>w*h*channels</code> values from <code>src</code> into a rectangular region,
+	 * the inverse of {@link #getRegion(int, int, int, int, short[], int)}.
+	 */
+	public void putRegion(int x, int y, int w, int h, short[] src, int offset){
+		beforeWrite();
+		checkDepth(PixelDepth.IPL_DEPTH_16U, PixelDepth.IPL_DEPTH_16S);
+		long start = regionStart(getROIPointer(), x, y, w, h, src.length, offset);
+		int n = w * getNumberOfChannels();
+		for(int r=0; r<h; r++){
+			writeData(start + (long) r * widthStep, src, offset + r * n, n);
+		}
+	}
+
+	/**
+	 * Copies row <code>y</code> (of the ROI if one is set) into <code>dst</code>.
+	 * @return the number of values copied, the row width times the number of channels
+	 * @see #getRegion(int, int, int, int, short[], int)
+	 */
+	public int getRow(int y, short[] dst, int offset){
+		checkDepth(PixelDepth.IPL_DEPTH_16U, PixelDepth.IPL_DEPTH_16S);
+		Pointer roi = getROIPointer();
+		int w = regionWidth(roi);
+		int n = w * getNumberOfChannels();
+		readData(regionStart(roi, 0, y, w, 1, dst.length, offset), dst, offset, n);
+		return n;
+	}
+
+	/**
+	 * Copies one row of values from <code>src</code> into row <code>y</code> (of the ROI if one is set).
+	 * @return the number of values copied, the row width times the number of channels
+	 * @see #putRegion(int, int, int, int, short[], int)
+	 */
+	public int putRow(int y, short[] src, int offset){
+		checkDepth(PixelDepth.IPL_DEPTH_16U, PixelDepth.IPL_DEPTH_16S);
+		Pointer roi = getROIPointer();
+		int w = regionWidth(roi);
+		int n = w * getNumberOfChannels();
+		writeData(regionStart(roi, 0, y, w, 1, src.length, offset), src, offset, n);
+		return n;
+	}
+
+	/**
+	 * Copies a rectangular region into <code>dst</code>, row after row without padding.
+	 * Coordinates are relative to the ROI if one is set, all channels are copied.
+	 * Only available for images of depth <code>IPL_DEPTH_32F</code>.
+	 *
+	 * @param dst receives <code>w*h*channels</code> values starting at <code>offset</code>
+	 * @throws IndexOutOfBoundsException If the region is not inside the image (or ROI).
+	 * @throws IllegalArgumentException If the array is too small.
+	 */
+	public void getRegion(int x, int y, int w, int h, float[] dst, int offset){
+		checkDepth(PixelDepth.IPL_DEPTH_32F, null);
+		long start = regionStart(getROIPointer(), x, y, w, h, dst.length, offset);
+		int n = w * getNumberOfChannels();
+		for(int r=0; r<h; r++){
+			readData(start + (long) r * widthStep, dst, offset + r * n, n);
+		}
+	}
+
+	/**
+	 * Copies <code>w*h*channels</code> values from <code>src</code> into a rectangular region,
+	 * the inverse of {@link #getRegion(int, int, int, int, float[], int)}.
+	 */
+	public void putRegion(int x, int y, int w, int h, float[] src, int offset){
+		beforeWrite();
+		checkDepth(PixelDepth.IPL_DEPTH_32F, null);
+		long start = regionStart(getROIPointer(), x, y, w, h, src.length, offset);
+		int n = w * getNumberOfChannels();
+		for(int r=0; r<h; r++){
+			writeData(start + (long) r * widthStep, src, offset + r * n, n);
+		}
+	}
+
+	/**
+	 * Copies row <code>y</code> (of the ROI if one is set) into <code>dst</code>.
+	 * @return the number of values copied, the row width times the number of channels
+	 * @see #getRegion(int, int, int, int, float[], int)
+	 */
+	public int getRow(int y, float[] dst, int offset){
+		checkDepth(PixelDepth.IPL_DEPTH_32F, null);
+		Pointer roi = getROIPointer();
+		int w = regionWidth(roi);
+		int n = w * getNumberOfChannels();
+		readData(regionStart(roi, 0, y, w, 1, dst.length, offset), dst, offset, n);
+		return n;
+	}
+
+	/**
+	 * Copies one row of values from <code>src</code> into row <code>y</code> (of the ROI if one is set).
+	 * @return the number of values copied, the row width times the number of channels
+	 * @see #putRegion(int, int, int, int, float[], int)
+	 */
+	public int putRow(int y, float[] src, int offset){
+		checkDepth(PixelDepth.IPL_DEPTH_32F, null);
+		Pointer roi = getROIPointer();
+		int w = regionWidth(roi);
+		int n = w * getNumberOfChannels();
+		writeData(regionStart(roi, 0, y, w, 1, src.length, offset), src, offset, n);
+		return n;
+	}
+
+	/**
+	 * Copies a rectangular region into <code>dst</code>, row after row without padding.
+	 * Coordinates are relative to the ROI if one is set, all channels are copied.
+	 * Only available for images of depth <code>IPL_DEPTH_64F</code>.
+	 *
+	 * @param dst receives <code>w*h*channels</code> values starting at <code>offset</code>
+	 * @throws IndexOutOfBoundsException If the region is not inside the image (or ROI).
+	 * @throws IllegalArgumentException If the array is too small.
+	 */
+	public void getRegion(int x, int y, int w, int h, double[] dst, int offset){
+		checkDepth(PixelDepth.IPL_DEPTH_64F, null);
+		long start = regionStart(getROIPointer(), x, y, w, h, dst.length, offset);
+		int n = w * getNumberOfChannels();
+		for(int r=0; r<h; r++){
+			readData(start + (long) r * widthStep, dst, offset + r * n, n);
+		}
+	}
+
+	/**
+	 * Copies <code>w*h*channels</code> values from <code>src</code> into a rectangular region,
+	 * the inverse of {@link #getRegion(int, int, int, int, double[], int)}.
+	 */
+	public void putRegion(int x, int y, int w, int h, double[] src, int offset){
+		beforeWrite();
+		checkDepth(PixelDepth.IPL_DEPTH_64F, null);
+		long start = regionStart(getROIPointer(), x, y, w, h, src.length, offset);
+		int n = w * getNumberOfChannels();
+		for(int r=0; r<h; r++){
+			writeData(start + (long) r * widthStep, src, offset + r * n, n);
+		}
+	}
+
+	/**
+	 * Copies row <code>y</code> (of the ROI if one is set) into <code>dst</code>.
+	 * @return the number of values copied, the row width times the number of channels
+	 * @see #getRegion(int, int, int, int, double[], int)
+	 */
+	public int getRow(int y, double[] dst, int offset){
+		checkDepth(PixelDepth.IPL_DEPTH_64F, null);
+		Pointer roi = getROIPointer();
+		int w = regionWidth(roi);
+		int n = w * getNumberOfChannels();
+		readData(regionStart(roi, 0, y, w, 1, dst.length, offset), dst, offset, n);
+		return n;
+	}
+
+	/**
+	 * Copies one row of values from <code>src</code> into row <code>y</code> (of the ROI if one is set).
+	 * @return the number of values copied, the row width times the number of channels
+	 * @see #putRegion(int, int, int, int, double[], int)
+	 */
+	public int putRow(int y, double[] src, int offset){
+		checkDepth(PixelDepth.IPL_DEPTH_64F, null);
+		Pointer roi = getROIPointer();
+		int w = regionWidth(roi);
+		int n = w * getNumberOfChannels();
+		writeData(regionStart(roi, 0, y, w, 1, src.length, offset), src, offset, n);
+		return n;
+	}
+
+	/**
+	 * Clears the image buffer by setting all values to zero, ignoring the ROI.
+	 * Nothing is allocated, native memory is set natively.
 	 */
 	public void clear() {
-		byte[] zeros = new byte[imageData.capacity()];
-		imageData.clear();
-		imageData.put(zeros);
-		imageData.rewind();
+		if( parent == null ){
+			beforeOverwrite();
+			zeroData(0, imageData.capacity());
+		}
+		else{
+			// the bytes between the rows of a view belong to other pixels of the parent
+			beforeWrite();
+			long row_bytes = (long) width * getNumberOfChannels() * depth.getBytesPerPixel();
+			for(int y=0; y<height; y++){
+				zeroData((long) y * widthStep, row_bytes);
+			}
+		}
+	}
+
+	/**
+	 * Sets every pixel inside the ROI (or the whole image) to the value, see {@link CxCore#set(IplImage, Scalar, IplImage)}.
+	 */
+	public void fill(Scalar value) {
+		// without a ROI every pixel is replaced, so there is nothing to keep
+		if( parent == null && getROIPointer() == null ) beforeOverwrite();
+		else beforeWrite();
+		CxCore.set(this, value, null);
+	}
+
+	/**
+	 * Sets every pixel inside the ROI (or the whole image) where the mask is non zero to the value.
+	 *
+	 * @param mask 8-bit single channel image of the same (ROI) size
+	 */
+	public void fill(Scalar value, IplImage mask) {
+		beforeWrite();
+		CxCore.set(this, value, mask);
 	}
 
 	/**
@@ -1134,12 +1995,29 @@ public class IplImage extends BasePointer{
 		}
 	}
 
-	@Override
-	protected void deAllocateNativeResource() {
-		if( jnaiplimage != null ){
+	private static class Releaser implements Runnable {
+		private final Pointer pointer;
+		private final Shared shared;
+		Releaser(Pointer pointer){ this(pointer, null); }
+		Releaser(Pointer pointer, Shared shared){ this.pointer = pointer; this.shared = shared; }
+
+		@Override
+		public void run() {
 			CXCORE.cvReleaseImage( new JNAIplImage.ByReference[]{ new JNAIplImage.ByReference(pointer) } );
-			jnaiplimage = null;
-			cvarr = null;
+			// snapshots give up their reference here, so snapshots reclaimed by the cleaner count too
+			if( shared != null ){
+				shared.release();
+			}
 		}
 	}
+
+	@Override
+	protected void clearReferences() {
+		jnaiplimage = null;
+		cvarr = null;
+		parent = null;
+		heap_buffer = null;
+		heap = null;
+		shared = null;
+	}
 }
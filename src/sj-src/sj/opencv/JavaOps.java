@@ -0,0 +1,520 @@
+/* Description and License
+ * A Java library that wraps the functionality of the native image 
+ * processing library OpenCV
+ *
+ * (c) Sigurdur Orn Adalgeirsson (siggi@alum.mit.edu)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+ 
+package sj.opencv;
+
+import sj.opencv.Constants.PixelDepth;
+import sj.opencv.CxCore.CompareMode;
+import sj.opencv.PixelKernels.Region;
+import sj.opencv.PixelKernels.Rows;
+import sj.opencv.jna.JNAOpenCV;
+
+/**
+ * Pure Java implementations of the element-wise CxCore operations for <code>IPL_DEPTH_8U</code>,
+ * <code>IPL_DEPTH_16U</code> and <code>IPL_DEPTH_32F</code> images. Results match OpenCV: integer
+ * depths saturate, scalars added to integer images are rounded half to even like cvRound and scalars
+ * used with 32F images are converted to float first.
+ * <p>
+ * CxCore calls these instead of the native functions depending on {@link #getDispatch()}: by default
+ * (<code>AUTO</code>) only for heap backed images or if the OpenCV core library can't be loaded on this machine. The system property
+ * <code>sj.opencv.ops</code> (<code>auto</code>, <code>native</code> or <code>java</code>) sets the initial mode.
+ * Calls with a mask or an unsupported depth always go to OpenCV.
+ * <p>
+ * Rows are processed in parallel for large images, see {@link PixelKernels#getParallelThreshold()}.
+ */
+public final class JavaOps {
+
+	public enum Dispatch { AUTO, NATIVE, JAVA }
+
+	private static volatile Dispatch dispatch = parseDispatch(System.getProperty("sj.opencv.ops"));
+	private static volatile Boolean native_available;
+
+	private static final int ADD = 0, SUB = 1, ABS_DIFF = 2, AND = 3;
+
+	private JavaOps(){
+	}
+
+	private static Dispatch parseDispatch(String value){
+		if( value == null ) return Dispatch.AUTO;
+		return Dispatch.valueOf(value.trim().toUpperCase());
+	}
+
+	public static Dispatch getDispatch(){
+		return dispatch;
+	}
+
+	public static void setDispatch(Dispatch d){
+		dispatch = d;
+	}
+
+	/**
+	 * @return true if the OpenCV core library could be loaded, only tried once
+	 */
+	public static boolean isNativeAvailable(){
+		Boolean available = native_available;
+		if( available == null ){
+			try{
+				JNAOpenCV.Core.load();
+				available = Boolean.TRUE;
+			}catch(Throwable t){
+				available = Boolean.FALSE;
+			}
+			native_available = available;
+		}
+		return available.booleanValue();
+	}
+
+	/**
+	 * @return true if CxCore should run the operation on these images in Java. In AUTO mode heap backed
+	 * images are also processed in Java, so they don't have to be moved to native memory.
+	 */
+	static boolean use(IplImage im, IplImage mask){
+		Dispatch d = dispatch;
+		if( d == Dispatch.NATIVE || mask != null || !isSupported(im.getPixelDepth()) ) return false;
+		return d == Dispatch.JAVA || im.isHeapBacked() || !isNativeAvailable();
+	}
+
+	/**
+	 * @return true if the depth is implemented in Java
+	 */
+	public static boolean isSupported(PixelDepth depth){
+		return depth == PixelDepth.IPL_DEPTH_8U || depth == PixelDepth.IPL_DEPTH_16U || depth == PixelDepth.IPL_DEPTH_32F;
+	}
+
+	/* ******************************************************************************
+	 *  						OPERATIONS			                                *
+	 * ******************************************************************************/
+
+	/**
+	 * <code>dst(i) = saturate(src1(i) + src2(i))</code>
+	 */
+	public static void add(IplImage src1, IplImage src2, IplImage dst){
+		binary(ADD, src1, src2, dst);
+	}
+
+	/**
+	 * <code>dst(i) = saturate(src1(i) - src2(i))</code>
+	 */
+	public static void sub(IplImage src1, IplImage src2, IplImage dst){
+		binary(SUB, src1, src2, dst);
+	}
+
+	/**
+	 * <code>dst(i) = | src1(i) - src2(i) |</code>
+	 */
+	public static void absDiff(IplImage src1, IplImage src2, IplImage dst){
+		binary(ABS_DIFF, src1, src2, dst);
+	}
+
+	/**
+	 * <code>dst(i) = src1(i) & src2(i)</code>, float values are combined by their bit representation
+	 */
+	public static void and(IplImage src1, IplImage src2, IplImage dst){
+		binary(AND, src1, src2, dst);
+	}
+
+	/**
+	 * <code>dst(i) = saturate(src(i) + value(c))</code> where c is the channel of element i. Like OpenCV the
+	 * value is rounded once for integer images, so 101 + 2.5 gives 103 and not 104.
+	 */
+	public static void addS(IplImage src, Scalar value, final IplImage dst){
+		checkDepth(src);
+		final Region in = new Region(src);
+		final Region out = new Region(dst);
+		checkMatch(src, in, dst, out, src.getPixelDepth(), src.getNumberOfChannels());
+		final int channels = src.getNumberOfChannels();
+		final float[] v = new float[channels];
+		final int[] iv = new int[channels];
+		for(int c=0; c<channels; c++){
+			// OpenCV converts the scalar to the image depth before adding
+			v[c] = (float) value.get(c);
+			// beyond the range of 16 bit images every value saturates the same way
+			iv[c] = (int) Math.max(-65536, Math.min(65536, Math.rint(value.get(c))));
+		}
+		final PixelDepth depth = src.getPixelDepth();
+
+		dst.beforeWrite();
+		PixelKernels.execute(in, new Rows() {
+			@Override
+			void run(int from, int to) {
+				int n = in.elements;
+				if( depth == PixelDepth.IPL_DEPTH_8U ){
+					byte[] row = new byte[n];
+					for(int y=from; y<to; y++){
+						in.image.readData(in.row(y), row, 0, n);
+						for(int i=0; i<n; i+=channels){
+							for(int c=0; c<channels; c++){
+								int s = (row[i+c] & 0xff) + iv[c];
+								row[i+c] = (byte) (s < 0 ? 0 : s > 255 ? 255 : s);
+							}
+						}
+						out.image.writeData(out.row(y), row, 0, n);
+					}
+				}
+				else if( depth == PixelDepth.IPL_DEPTH_16U ){
+					short[] row = new short[n];
+					for(int y=from; y<to; y++){
+						in.image.readData(in.row(y), row, 0, n);
+						for(int i=0; i<n; i+=channels){
+							for(int c=0; c<channels; c++){
+								int s = (row[i+c] & 0xffff) + iv[c];
+								row[i+c] = (short) (s < 0 ? 0 : s > 65535 ? 65535 : s);
+							}
+						}
+						out.image.writeData(out.row(y), row, 0, n);
+					}
+				}
+				else{
+					float[] row = new float[n];
+					for(int y=from; y<to; y++){
+						in.image.readData(in.row(y), row, 0, n);
+						for(int i=0; i<n; i+=channels){
+							for(int c=0; c<channels; c++){
+								row[i+c] = row[i+c] + v[c];
+							}
+						}
+						out.image.writeData(out.row(y), row, 0, n);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * <code>dst(i) = src(i) op value ? 255 : 0</code>, src must have a single channel and dst must be 8U
+	 */
+	public static void cmpS(IplImage src, double value, IplImage dst, final CompareMode mode){
+		checkDepth(src);
+		if( src.getNumberOfChannels() != 1 ) throw new IllegalArgumentException("Source image must have a single channel");
+		final Region in = new Region(src);
+		final Region out = new Region(dst);
+		checkMatch(src, in, dst, out, PixelDepth.IPL_DEPTH_8U, 1);
+		final PixelDepth depth = src.getPixelDepth();
+		final double v = toDepth(value, depth);
+
+		dst.beforeWrite();
+		PixelKernels.execute(in, new Rows() {
+			@Override
+			void run(int from, int to) {
+				int n = in.elements;
+				RowReader reader = new RowReader(in, depth);
+				double[] vals = new double[n];
+				byte[] mask = new byte[n];
+				for(int y=from; y<to; y++){
+					reader.read(y, vals);
+					switch( mode ){
+					case CV_CMP_EQUAL:				for(int i=0; i<n; i++) mask[i] = (byte) (vals[i] == v ? 255 : 0); break;
+					case CV_CMP_NOT_EQUAL:			for(int i=0; i<n; i++) mask[i] = (byte) (vals[i] != v ? 255 : 0); break;
+					case CV_CMP_GREATER_THAN:		for(int i=0; i<n; i++) mask[i] = (byte) (vals[i] > v ? 255 : 0); break;
+					case CV_CMP_GREATER_OR_EQUAL:	for(int i=0; i<n; i++) mask[i] = (byte) (vals[i] >= v ? 255 : 0); break;
+					case CV_CMP_LESS_THAN:			for(int i=0; i<n; i++) mask[i] = (byte) (vals[i] < v ? 255 : 0); break;
+					case CV_CMP_LESS_OR_EQUAL:		for(int i=0; i<n; i++) mask[i] = (byte) (vals[i] <= v ? 255 : 0); break;
+					}
+					out.image.writeData(out.row(y), mask, 0, n);
+				}
+			}
+		});
+	}
+
+	/**
+	 * <code>dst(x,y) = 255</code> if <code>lower(c) <= src(x,y,c) <= upper(c)</code> for every channel c,
+	 * 0 otherwise. dst must be a single channel 8U image.
+	 */
+	public static void inRangeS(IplImage src, Scalar lower, Scalar upper, IplImage dst){
+		checkDepth(src);
+		final Region in = new Region(src);
+		final Region out = new Region(dst);
+		final int channels = src.getNumberOfChannels();
+		if( dst.getPixelDepth() != PixelDepth.IPL_DEPTH_8U || dst.getNumberOfChannels() != 1 || in.width != out.width || in.height != out.height ){
+			throw new IllegalArgumentException("Destination image must be a single channel 8U image of the same size");
+		}
+		final double[] lo = new double[channels];
+		final double[] hi = new double[channels];
+		for(int c=0; c<channels; c++){
+			lo[c] = toDepth(lower.get(c), src.getPixelDepth());
+			hi[c] = toDepth(upper.get(c), src.getPixelDepth());
+		}
+		final PixelDepth depth = src.getPixelDepth();
+
+		dst.beforeWrite();
+		PixelKernels.execute(in, new Rows() {
+			@Override
+			void run(int from, int to) {
+				RowReader reader = new RowReader(in, depth);
+				double[] vals = new double[in.elements];
+				byte[] mask = new byte[in.width];
+				for(int y=from; y<to; y++){
+					reader.read(y, vals);
+					for(int x=0, i=0; x<mask.length; x++, i+=channels){
+						boolean inside = true;
+						for(int c=0; c<channels; c++){
+							double v = vals[i+c];
+							inside &= v >= lo[c] && v <= hi[c];
+						}
+						mask[x] = (byte) (inside ? 255 : 0);
+					}
+					out.image.writeData(out.row(y), mask, 0, mask.length);
+				}
+			}
+		});
+	}
+
+	/**
+	 * <code>dst(i) = saturate(value(c))</code> where c is the channel of element i
+	 */
+	public static void set(IplImage im, Scalar value){
+		checkDepth(im);
+		final Region reg = new Region(im);
+		int channels = im.getNumberOfChannels();
+		PixelDepth depth = im.getPixelDepth();
+
+		// one row of the value is built once and copied to every row
+		final Object row;
+		if( depth == PixelDepth.IPL_DEPTH_8U ){
+			byte[] r = new byte[reg.elements];
+			for(int i=0; i<r.length; i++) r[i] = (byte) saturate8U(Math.rint(value.get(i % channels)));
+			row = r;
+		}
+		else if( depth == PixelDepth.IPL_DEPTH_16U ){
+			short[] r = new short[reg.elements];
+			for(int i=0; i<r.length; i++) r[i] = (short) saturate16U(Math.rint(value.get(i % channels)));
+			row = r;
+		}
+		else{
+			float[] r = new float[reg.elements];
+			for(int i=0; i<r.length; i++) r[i] = (float) value.get(i % channels);
+			row = r;
+		}
+
+		im.beforeWrite();
+		PixelKernels.execute(reg, new Rows() {
+			@Override
+			void run(int from, int to) {
+				for(int y=from; y<to; y++){
+					if( row instanceof byte[] ) reg.image.writeData(reg.row(y), (byte[]) row, 0, reg.elements);
+					else if( row instanceof short[] ) reg.image.writeData(reg.row(y), (short[]) row, 0, reg.elements);
+					else reg.image.writeData(reg.row(y), (float[]) row, 0, reg.elements);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sets every value inside the ROI to zero
+	 */
+	public static void setZero(IplImage im){
+		Region reg = new Region(im);
+		long row_bytes = (long) reg.elements * im.getPixelDepth().getBytesPerPixel();
+		for(int y=0; y<reg.height; y++){
+			reg.image.zeroData(reg.row(y), row_bytes);
+		}
+	}
+
+	/* ******************************************************************************
+	 *  						ROWS			                                    *
+	 * ******************************************************************************/
+
+	private static void binary(final int op, IplImage src1, IplImage src2, IplImage dst){
+		checkDepth(src1);
+		final Region a = new Region(src1);
+		final Region b = new Region(src2);
+		final Region out = new Region(dst);
+		checkMatch(src1, a, src2, b, src1.getPixelDepth(), src1.getNumberOfChannels());
+		checkMatch(src1, a, dst, out, src1.getPixelDepth(), src1.getNumberOfChannels());
+		final PixelDepth depth = src1.getPixelDepth();
+
+		dst.beforeWrite();
+		PixelKernels.execute(a, new Rows() {
+			@Override
+			void run(int from, int to) {
+				int n = a.elements;
+				if( depth == PixelDepth.IPL_DEPTH_8U ){
+					byte[] r1 = new byte[n], r2 = new byte[n];
+					for(int y=from; y<to; y++){
+						a.image.readData(a.row(y), r1, 0, n);
+						b.image.readData(b.row(y), r2, 0, n);
+						binary8U(op, r1, r2);
+						out.image.writeData(out.row(y), r1, 0, n);
+					}
+				}
+				else if( depth == PixelDepth.IPL_DEPTH_16U ){
+					short[] r1 = new short[n], r2 = new short[n];
+					for(int y=from; y<to; y++){
+						a.image.readData(a.row(y), r1, 0, n);
+						b.image.readData(b.row(y), r2, 0, n);
+						binary16U(op, r1, r2);
+						out.image.writeData(out.row(y), r1, 0, n);
+					}
+				}
+				else{
+					float[] r1 = new float[n], r2 = new float[n];
+					for(int y=from; y<to; y++){
+						a.image.readData(a.row(y), r1, 0, n);
+						b.image.readData(b.row(y), r2, 0, n);
+						binary32F(op, r1, r2);
+						out.image.writeData(out.row(y), r1, 0, n);
+					}
+				}
+			}
+		});
+	}
+
+	// The operation is selected outside of the loops so every loop is a plain pass over two arrays
+
+	private static void binary8U(int op, byte[] r1, byte[] r2){
+		switch( op ){
+		case ADD:
+			for(int i=0; i<r1.length; i++){
+				int v = (r1[i] & 0xff) + (r2[i] & 0xff);
+				r1[i] = (byte) (v > 255 ? 255 : v);
+			}
+			break;
+		case SUB:
+			for(int i=0; i<r1.length; i++){
+				int v = (r1[i] & 0xff) - (r2[i] & 0xff);
+				r1[i] = (byte) (v < 0 ? 0 : v);
+			}
+			break;
+		case ABS_DIFF:
+			for(int i=0; i<r1.length; i++){
+				int v = (r1[i] & 0xff) - (r2[i] & 0xff);
+				r1[i] = (byte) (v < 0 ? -v : v);
+			}
+			break;
+		case AND:
+			for(int i=0; i<r1.length; i++){
+				r1[i] &= r2[i];
+			}
+			break;
+		}
+	}
+
+	private static void binary16U(int op, short[] r1, short[] r2){
+		switch( op ){
+		case ADD:
+			for(int i=0; i<r1.length; i++){
+				int v = (r1[i] & 0xffff) + (r2[i] & 0xffff);
+				r1[i] = (short) (v > 65535 ? 65535 : v);
+			}
+			break;
+		case SUB:
+			for(int i=0; i<r1.length; i++){
+				int v = (r1[i] & 0xffff) - (r2[i] & 0xffff);
+				r1[i] = (short) (v < 0 ? 0 : v);
+			}
+			break;
+		case ABS_DIFF:
+			for(int i=0; i<r1.length; i++){
+				int v = (r1[i] & 0xffff) - (r2[i] & 0xffff);
+				r1[i] = (short) (v < 0 ? -v : v);
+			}
+			break;
+		case AND:
+			for(int i=0; i<r1.length; i++){
+				r1[i] &= r2[i];
+			}
+			break;
+		}
+	}
+
+	private static void binary32F(int op, float[] r1, float[] r2){
+		switch( op ){
+		case ADD:
+			for(int i=0; i<r1.length; i++) r1[i] += r2[i];
+			break;
+		case SUB:
+			for(int i=0; i<r1.length; i++) r1[i] -= r2[i];
+			break;
+		case ABS_DIFF:
+			for(int i=0; i<r1.length; i++) r1[i] = Math.abs(r1[i] - r2[i]);
+			break;
+		case AND:
+			for(int i=0; i<r1.length; i++){
+				r1[i] = Float.intBitsToFloat(Float.floatToRawIntBits(r1[i]) & Float.floatToRawIntBits(r2[i]));
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Reads rows of a supported depth as doubles, which hold every 8U, 16U and 32F value exactly
+	 */
+	private static final class RowReader {
+		private final Region reg;
+		private final PixelDepth depth;
+		private final byte[] bytes;
+		private final short[] shorts;
+		private final float[] floats;
+
+		RowReader(Region reg, PixelDepth depth){
+			this.reg = reg;
+			this.depth = depth;
+			bytes = depth == PixelDepth.IPL_DEPTH_8U ? new byte[reg.elements] : null;
+			shorts = depth == PixelDepth.IPL_DEPTH_16U ? new short[reg.elements] : null;
+			floats = depth == PixelDepth.IPL_DEPTH_32F ? new float[reg.elements] : null;
+		}
+
+		void read(int y, double[] dst){
+			int n = reg.elements;
+			if( depth == PixelDepth.IPL_DEPTH_8U ){
+				reg.image.readData(reg.row(y), bytes, 0, n);
+				for(int i=0; i<n; i++) dst[i] = bytes[i] & 0xff;
+			}
+			else if( depth == PixelDepth.IPL_DEPTH_16U ){
+				reg.image.readData(reg.row(y), shorts, 0, n);
+				for(int i=0; i<n; i++) dst[i] = shorts[i] & 0xffff;
+			}
+			else{
+				reg.image.readData(reg.row(y), floats, 0, n);
+				for(int i=0; i<n; i++) dst[i] = floats[i];
+			}
+		}
+	}
+
+	/**
+	 * @return a scalar the way OpenCV converts it for an image of that depth, 32F images see it as a float
+	 */
+	static double toDepth(double value, PixelDepth depth){
+		return depth == PixelDepth.IPL_DEPTH_32F ? (float) value : value;
+	}
+
+	static int saturate8U(double v){
+		return v < 0 ? 0 : v > 255 ? 255 : (int) v;
+	}
+
+	static int saturate16U(double v){
+		return v < 0 ? 0 : v > 65535 ? 65535 : (int) v;
+	}
+
+	private static void checkDepth(IplImage im){
+		if( !isSupported(im.getPixelDepth()) ){
+			throw new UnsupportedOperationException("Operation only available for images of depth " +
+					PixelDepth.IPL_DEPTH_8U + ", " + PixelDepth.IPL_DEPTH_16U + " or " + PixelDepth.IPL_DEPTH_32F);
+		}
+	}
+
+	private static void checkMatch(IplImage src, Region in, IplImage dst, Region out, PixelDepth depth, int channels){
+		if( dst.getPixelDepth() != depth || dst.getNumberOfChannels() != channels || in.width != out.width || in.height != out.height ){
+			throw new IllegalArgumentException("Images must have depth " + depth + ", " + channels + " channel(s) and the same size as the source");
+		}
+	}
+}
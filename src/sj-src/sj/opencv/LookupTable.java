@@ -0,0 +1,361 @@
+/* Description and License
+ * A Java library that wraps the functionality of the native image 
+ * processing library OpenCV
+ *
+ * (c) Sigurdur Orn Adalgeirsson (siggi@alum.mit.edu)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+ 
+package sj.opencv;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import sj.opencv.Constants.ColorModel;
+import sj.opencv.Constants.PixelDepth;
+import sj.opencv.ImgProc.ThresholdType;
+import sj.opencv.PixelKernels.Region;
+import sj.opencv.PixelKernels.Rows;
+
+/**
+ * A 256 entry table for <code>IPL_DEPTH_8U</code> images that any chain of point operations composes
+ * into, so the whole chain costs one pass over the image instead of one pass per operation.
+ * <pre>
+ * LookupTable enhance = LookupTable.identity().stretch(16, 235).gamma(0.8).threshold(40, 255, ThresholdType.CV_THRESH_TOZERO);
+ * ...
+ * enhance.apply(frame, dst);
+ * </pre>
+ * Every step rounds and saturates to 8 bit like the CxCore or ImgProc function it replaces, so results
+ * match the unfused chain. Tables are immutable. Tables built from the same chain of operations are the
+ * same cached instance, which also shares the native table used by <code>cvLUT</code>.
+ * Tables built with {@link #of(byte[])} or {@link #map(PixelKernels.ByteKernel)} are not cached.
+ * <p>
+ * A table has one channel that maps all channels of an image, or one table per channel, see
+ * {@link #perChannel(LookupTable...)}. {@link #apply(IplImage, IplImage)} calls <code>cvLUT</code>,
+ * or runs in Java under the same conditions as {@link JavaOps}.
+ */
+public final class LookupTable {
+
+	private static final int CACHE_SIZE = 64;
+
+	private static final Map<String, LookupTable> CACHE = Collections.synchronizedMap(
+			new LinkedHashMap<String, LookupTable>(16, 0.75f, true){
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, LookupTable> eldest) {
+					return size() > CACHE_SIZE;
+				}
+			});
+
+	private static final LookupTable IDENTITY;
+	static{
+		byte[] table = new byte[256];
+		for(int i=0; i<256; i++) table[i] = (byte) i;
+		IDENTITY = new LookupTable(table, 1, "");
+	}
+
+	/** channel c maps value v to <code>table[c*256 + v]</code> */
+	private final byte[] table;
+	private final int channels;
+	/** the chain of operations, null if the table isn't cached */
+	private final String key;
+	private IplImage native_table;
+
+	private LookupTable(byte[] table, int channels, String key){
+		this.table = table;
+		this.channels = channels;
+		this.key = key;
+	}
+
+	/**
+	 * @return the table that maps every value to itself
+	 */
+	public static LookupTable identity(){
+		return IDENTITY;
+	}
+
+	/**
+	 * @param table 256 entries, or 256 entries per channel one channel after the other
+	 * @return a table with a copy of the entries
+	 */
+	public static LookupTable of(byte[] table){
+		if( table.length == 0 || table.length % 256 != 0 || table.length > 4 * 256 ){
+			throw new IllegalArgumentException("A table has 256 entries per channel and 1 to 4 channels, not " + table.length + " entries");
+		}
+		return new LookupTable(table.clone(), table.length / 256, null);
+	}
+
+	/**
+	 * @param tables one single channel table per channel of the images
+	 * @return a table that maps channel c with tables[c]
+	 */
+	public static LookupTable perChannel(LookupTable... tables){
+		if( tables.length < 1 || tables.length > 4 ){
+			throw new IllegalArgumentException("A table has 1 to 4 channels, not " + tables.length);
+		}
+		StringBuilder key = new StringBuilder("channels(");
+		for(LookupTable t : tables){
+			if( t.channels != 1 ){
+				throw new IllegalArgumentException("Tables per channel must have a single channel");
+			}
+			if( key != null && t.key != null ){
+				key.append(t.key).append(';');
+			}
+			else{
+				key = null;
+			}
+		}
+		String k = key == null ? null : key.append(") ").toString();
+		LookupTable cached = cached(k);
+		if( cached != null ) return cached;
+
+		byte[] table = new byte[tables.length * 256];
+		for(int c=0; c<tables.length; c++){
+			System.arraycopy(tables[c].table, 0, table, c * 256, 256);
+		}
+		return cache(new LookupTable(table, tables.length, k));
+	}
+
+	/* ******************************************************************************
+	 *  						OPERATIONS			                                *
+	 * ******************************************************************************/
+
+	/**
+	 * Follows this table with <code>v * scale + shift</code>, like {@link CxCore#convertScale(IplImage, IplImage, double, double)}
+	 */
+	public LookupTable convertScale(final double scale, final double shift){
+		return derive("scale(" + scale + "," + shift + ") ", new Point() {
+			double apply(int v){ return v * scale + shift; }
+		});
+	}
+
+	/**
+	 * Follows this table with <code>| v * scale + shift |</code>, like <code>cvConvertScaleAbs</code>
+	 */
+	public LookupTable convertScaleAbs(final double scale, final double shift){
+		return derive("scaleAbs(" + scale + "," + shift + ") ", new Point() {
+			double apply(int v){ return Math.abs(v * scale + shift); }
+		});
+	}
+
+	/**
+	 * Follows this table with a fixed threshold, like {@link ImgProc#threshold(IplImage, IplImage, double, double, ThresholdType)}
+	 *
+	 * @param type any type except <code>CV_THRESH_MASK</code> and <code>CV_THRESH_OTSU</code>, which depend on the image
+	 */
+	public LookupTable threshold(double threshold, double max_value, final ThresholdType type){
+		if( type == ThresholdType.CV_THRESH_MASK || type == ThresholdType.CV_THRESH_OTSU ){
+			throw new IllegalArgumentException(type + " can't be expressed as a table");
+		}
+		// 8 bit thresholds are whole numbers in OpenCV
+		final int t = (int) Math.floor(threshold);
+		final int max = JavaOps.saturate8U(Math.rint(max_value));
+		return derive("threshold(" + t + "," + max + "," + type + ") ", new Point() {
+			double apply(int v){
+				switch( type ){
+				case CV_THRESH_BINARY:		return v > t ? max : 0;
+				case CV_THRESH_BINARY_INV:	return v > t ? 0 : max;
+				case CV_THRESH_TRUNC:		return v > t ? t : v;
+				case CV_THRESH_TOZERO:		return v > t ? v : 0;
+				default:					return v > t ? 0 : v;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Follows this table with the gamma correction <code>255 * (v / 255)^gamma</code>
+	 */
+	public LookupTable gamma(final double gamma){
+		return derive("gamma(" + gamma + ") ", new Point() {
+			double apply(int v){ return 255 * Math.pow(v / 255.0, gamma); }
+		});
+	}
+
+	/**
+	 * Follows this table with a contrast stretch that maps low to 0 and high to 255
+	 */
+	public LookupTable stretch(final int low, final int high){
+		if( high <= low ){
+			throw new IllegalArgumentException("high must be greater than low");
+		}
+		return derive("stretch(" + low + "," + high + ") ", new Point() {
+			double apply(int v){ return (v - low) * 255.0 / (high - low); }
+		});
+	}
+
+	/**
+	 * Follows this table with <code>255 - v</code>
+	 */
+	public LookupTable invert(){
+		return derive("invert ", new Point() {
+			double apply(int v){ return 255 - v; }
+		});
+	}
+
+	/**
+	 * Follows this table with a kernel, the result is not cached
+	 */
+	public LookupTable map(final PixelKernels.ByteKernel kernel){
+		return derive(null, new Point() {
+			double apply(int v){ return kernel.apply(v); }
+		});
+	}
+
+	/**
+	 * @return the table that applies this table and then next
+	 */
+	public LookupTable then(LookupTable next){
+		if( channels != 1 && next.channels != 1 && channels != next.channels ){
+			throw new IllegalArgumentException("Tables have " + channels + " and " + next.channels + " channels");
+		}
+		String k = key == null || next.key == null ? null : key + "then(" + next.key + ") ";
+		LookupTable cached = cached(k);
+		if( cached != null ) return cached;
+
+		int n = Math.max(channels, next.channels);
+		byte[] result = new byte[n * 256];
+		for(int c=0; c<n; c++){
+			int from = channels == 1 ? 0 : c * 256;
+			int to = next.channels == 1 ? 0 : c * 256;
+			for(int i=0; i<256; i++){
+				result[c * 256 + i] = next.table[to + (table[from + i] & 0xff)];
+			}
+		}
+		return cache(new LookupTable(result, n, k));
+	}
+
+	public int getNumberOfChannels(){
+		return channels;
+	}
+
+	/**
+	 * @return the entry of channel c for value v
+	 */
+	public int get(int c, int v){
+		return table[c * 256 + v] & 0xff;
+	}
+
+	/**
+	 * Removes all tables from the cache
+	 */
+	public static void clearCache(){
+		CACHE.clear();
+	}
+
+	/* ******************************************************************************
+	 *  						APPLY			                                    *
+	 * ******************************************************************************/
+
+	/**
+	 * Maps every value of src through the table into dst in one pass. src and dst may be the same image.
+	 *
+	 * @param src an <code>IPL_DEPTH_8U</code> image with as many channels as the table, or any number for a single channel table
+	 * @param dst an <code>IPL_DEPTH_8U</code> image of the same (ROI) size and channels as src
+	 */
+	public void apply(IplImage src, IplImage dst){
+		final int image_channels = src.getNumberOfChannels();
+		if( src.getPixelDepth() != PixelDepth.IPL_DEPTH_8U || dst.getPixelDepth() != PixelDepth.IPL_DEPTH_8U ||
+				dst.getNumberOfChannels() != image_channels || (channels != 1 && channels != image_channels) ){
+			throw new IllegalArgumentException("Images must be " + PixelDepth.IPL_DEPTH_8U + " with " +
+					(channels == 1 ? "the same number of" : channels) + " channel(s)");
+		}
+		if( !JavaOps.use(src, null) ){
+			CxCore.lut(src, dst, getNativeTable());
+			return;
+		}
+
+		final Region in = new Region(src);
+		final Region out = new Region(dst);
+		if( in.width != out.width || in.height != out.height ){
+			throw new IllegalArgumentException("Source and destination images must have the same size");
+		}
+		dst.beforeWrite();
+		PixelKernels.execute(in, new Rows() {
+			@Override
+			void run(int from, int to) {
+				byte[] row = new byte[in.elements];
+				byte[] t = table;
+				for(int y=from; y<to; y++){
+					in.image.readData(in.row(y), row, 0, row.length);
+					if( channels == 1 ){
+						for(int i=0; i<row.length; i++) row[i] = t[row[i] & 0xff];
+					}
+					else{
+						for(int i=0; i<row.length; i+=channels){
+							for(int c=0; c<channels; c++){
+								row[i+c] = t[(c << 8) | (row[i+c] & 0xff)];
+							}
+						}
+					}
+					out.image.writeData(out.row(y), row, 0, row.length);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the table as a 256x1 image with one channel per table channel, for {@link CxCore#lut(IplImage, IplImage, IplImage)}.
+	 * It belongs to this table and must not be changed or released.
+	 */
+	public synchronized IplImage getNativeTable(){
+		if( native_table == null ){
+			IplImage im = CxCore.createImage(256, 1, PixelDepth.IPL_DEPTH_8U, ColorModel.getGeneric(channels));
+			// released by the cleaner together with this table
+			ImageScope.untrack(im);
+			byte[] interleaved = new byte[channels * 256];
+			for(int c=0; c<channels; c++){
+				for(int i=0; i<256; i++) interleaved[i * channels + c] = table[c * 256 + i];
+			}
+			im.putRow(0, interleaved, 0);
+			native_table = im;
+		}
+		return native_table;
+	}
+
+	/**
+	 * One point operation on 8 bit values
+	 */
+	private static abstract class Point {
+		abstract double apply(int v);
+	}
+
+	private LookupTable derive(String op, Point p){
+		String k = key == null || op == null ? null : key + op;
+		LookupTable cached = cached(k);
+		if( cached != null ) return cached;
+
+		byte[] result = new byte[table.length];
+		for(int i=0; i<table.length; i++){
+			result[i] = (byte) JavaOps.saturate8U(Math.rint(p.apply(table[i] & 0xff)));
+		}
+		return cache(new LookupTable(result, channels, k));
+	}
+
+	private static LookupTable cached(String key){
+		return key == null ? null : CACHE.get(key);
+	}
+
+	private static LookupTable cache(LookupTable t){
+		if( t.key != null ){
+			CACHE.put(t.key, t);
+		}
+		return t;
+	}
+}
@@ -25,6 +25,7 @@ package sj.opencv;
 import sj.opencv.jna.JNAOpenCV;
 import sj.opencv.jna.cxcore.CvMat;
 
+import com.sun.jna.Pointer;
 import com.sun.jna.ptr.PointerByReference;
 
 /**
@@ -39,19 +40,27 @@ public class Mat extends BasePointer{
 	 * @param pointer
 	 */
 	protected Mat(CvMat jnamat) {
-		super(jnamat.getPointer());
+		super(jnamat.getPointer(), new Releaser(jnamat.getPointer()));
 		this.jnamat = jnamat;
+		ImageScope.track(this);
 	}
 
 	public CvMat getJNACvMat(){
 		return jnamat;
 	}
 
-	@Override
-	protected void deAllocateNativeResource() {
-		if( jnamat != null ){
-			JNAOpenCV.CXCORE.cvReleaseMat( new PointerByReference(jnamat.getPointer()) );
-			jnamat = null;
+	private static class Releaser implements Runnable {
+		private final Pointer pointer;
+		Releaser(Pointer pointer){ this.pointer = pointer; }
+
+		@Override
+		public void run() {
+			JNAOpenCV.Core.CXCORE.cvReleaseMat( new PointerByReference(pointer) );
 		}
 	}
+
+	@Override
+	protected void clearReferences() {
+		jnamat = null;
+	}
 }
@@ -22,31 +22,41 @@
  
 package sj.opencv;
 
-import static sj.opencv.jna.JNAOpenCV.CXCORE;
+import static sj.opencv.jna.JNAOpenCV.Core.CXCORE;
 import sj.opencv.jna.cxcore.CvMemStorage;
 
+import com.sun.jna.Pointer;
+
 
 public class MemStorage extends BasePointer {
 
 	private CvMemStorage jnamemstorage;
 
 	protected MemStorage(CvMemStorage jnamemstorage) {
-		super(jnamemstorage.getPointer());
+		super(jnamemstorage.getPointer(), new Releaser(jnamemstorage.getPointer()));
 
 		this.jnamemstorage = jnamemstorage;
 
 		addToManagedPointerSet();
+		ImageScope.track(this);
 	}
 
 	protected CvMemStorage getJNACvMemStorage(){
 		return jnamemstorage;
 	}
 
-	@Override
-	protected void deAllocateNativeResource() {
-		if( jnamemstorage != null ){
+	private static class Releaser implements Runnable {
+		private final Pointer pointer;
+		Releaser(Pointer pointer){ this.pointer = pointer; }
+
+		@Override
+		public void run() {
 			CXCORE.cvReleaseMemStorage( new CvMemStorage.ByReference[]{ new CvMemStorage.ByReference(pointer) } );
-			jnamemstorage = null;
 		}
 	}
+
+	@Override
+	protected void clearReferences() {
+		jnamemstorage = null;
+	}
 }
@@ -0,0 +1,205 @@
+/* Description and License
+ * A Java library that wraps the functionality of the native image 
+ * processing library OpenCV
+ *
+ * (c) Sigurdur Orn Adalgeirsson (siggi@alum.mit.edu)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+ 
+package sj.opencv;
+
+import static sj.opencv.jna.JNAOpenCV.Core.CXCORE;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sj.opencv.jna.cxcore.CvMemStorage;
+import sj.opencv.jna.cxcore.CvMemStoragePos;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Keeps one memory storage per thread and resets it between uses, so functions that build sequences
+ * (contours, detected objects, ...) don't have to create and release a storage on every call.
+ * <p>
+ * The outermost acquire on a thread gets the storage as it is, releasing it clears it with
+ * cvClearMemStorage. Nested acquires save the current storage position and releasing restores it,
+ * so sequences of an outer caller stay valid. Cleared storage keeps its blocks for reuse, once it holds
+ * more than the configured number of bytes it is released and created anew on the next acquire.
+ * <pre>
+ * MemStorage storage = pool.acquire();
+ * try{
+ *   ...
+ * }finally{
+ *   pool.release(storage);
+ * }
+ * </pre>
+ * Anything stored in the storage must be copied out before it is released.
+ */
+public class MemStoragePool {
+
+	private static final MemStoragePool default_pool = new MemStoragePool(0, 1 << 20);
+
+	/**
+	 * @return a process wide pool with default sized blocks that keeps at most 1MB of storage per thread
+	 */
+	public static MemStoragePool getDefault(){
+		return default_pool;
+	}
+
+	private static final class Slot {
+		MemStorage storage;
+		final ArrayDeque<CvMemStoragePos> saved = new ArrayDeque<CvMemStoragePos>();
+		int depth;
+	}
+
+	private final int block_size;
+	private final long max_retained_bytes;
+
+	private final ThreadLocal<Slot> local = new ThreadLocal<Slot>(){
+		@Override
+		protected Slot initialValue() {
+			return new Slot();
+		}
+	};
+
+	private final AtomicLong acquisitions = new AtomicLong();
+	private final AtomicLong creations = new AtomicLong();
+	private final AtomicLong trims = new AtomicLong();
+	private final AtomicLong max_bytes = new AtomicLong();
+
+	/**
+	 * @param block_size size of the storage blocks in bytes, 0 for the OpenCV default (about 64K)
+	 * @param max_retained_bytes storage holding more than this many bytes when it is released is freed
+	 */
+	public MemStoragePool(int block_size, long max_retained_bytes){
+		if( block_size < 0 || max_retained_bytes < 0 ) throw new IllegalArgumentException("Sizes can't be negative");
+		this.block_size = block_size;
+		this.max_retained_bytes = max_retained_bytes;
+	}
+
+	/**
+	 * Returns the storage of the calling thread. Every acquire has to be matched by a
+	 * {@link #release(MemStorage)} on the same thread.
+	 */
+	public MemStorage acquire(){
+		Slot slot = local.get();
+		acquisitions.incrementAndGet();
+
+		if( slot.storage == null || slot.storage.getPointer() == null ){
+			creations.incrementAndGet();
+			slot.storage = CxCore.createMemStorage(block_size);
+			// The pool owns the storage, not an enclosing ImageScope
+			ImageScope.untrack(slot.storage);
+		}
+
+		if( slot.depth > 0 ){
+			CvMemStoragePos pos = new CvMemStoragePos();
+			CXCORE.cvSaveMemStoragePos(slot.storage.getJNACvMemStorage(), pos);
+			slot.saved.push(pos);
+		}
+		slot.depth++;
+
+		return slot.storage;
+	}
+
+	/**
+	 * Hands the storage back. The nested case restores the position saved by the matching acquire,
+	 * the outermost release clears the storage or frees it when it grew past the limit.
+	 */
+	public void release(MemStorage storage){
+		Slot slot = local.get();
+		if( slot.depth == 0 || storage != slot.storage ) throw new IllegalArgumentException("Storage was not acquired from this pool on this thread");
+
+		slot.depth--;
+		if( slot.depth > 0 ){
+			CXCORE.cvRestoreMemStoragePos(storage.getJNACvMemStorage(), slot.saved.pop());
+			return;
+		}
+
+		long bytes = getAllocatedBytes(storage);
+		long max = max_bytes.get();
+		while( bytes > max && !max_bytes.compareAndSet(max, bytes) ){
+			max = max_bytes.get();
+		}
+
+		if( bytes > max_retained_bytes ){
+			trims.incrementAndGet();
+			slot.storage = null;
+			storage.deAllocate();
+		}else{
+			CXCORE.cvClearMemStorage(storage.getJNACvMemStorage());
+		}
+	}
+
+	/**
+	 * Frees the calling thread's storage if it is not in use. Storage of other threads
+	 * is freed when those threads call clear() or die.
+	 */
+	public void clear(){
+		Slot slot = local.get();
+		if( slot.depth == 0 && slot.storage != null ){
+			slot.storage.deAllocate();
+			slot.storage = null;
+		}
+	}
+
+	/**
+	 * Number of bytes held by the storage, the block list is walked directly
+	 * since the CvMemStorage structure would read the whole list recursively.
+	 */
+	private static long getAllocatedBytes(MemStorage storage){
+		// CvMemStorage { int signature; CvMemBlock* bottom; CvMemBlock* top; CvMemStorage* parent; int block_size; ... }
+		Pointer p = storage.getPointer();
+		int block_size = p.getInt(4 * Pointer.SIZE);
+
+		long blocks = 0;
+		// CvMemBlock { CvMemBlock* prev; CvMemBlock* next; }
+		for(Pointer block = p.getPointer(Pointer.SIZE); block != null; block = block.getPointer(Pointer.SIZE)){
+			blocks++;
+		}
+		return blocks * block_size;
+	}
+
+	/**
+	 * @return number of acquires served by the pool
+	 */
+	public long getAcquireCount(){
+		return acquisitions.get();
+	}
+
+	/**
+	 * @return number of storages that had to be created
+	 */
+	public long getCreateCount(){
+		return creations.get();
+	}
+
+	/**
+	 * @return number of storages freed because they grew past the limit
+	 */
+	public long getTrimCount(){
+		return trims.get();
+	}
+
+	/**
+	 * @return the largest number of bytes a storage held when it was released
+	 */
+	public long getMaxStorageBytes(){
+		return max_bytes.get();
+	}
+}
@@ -0,0 +1,121 @@
+/* Description and License
+ * A Java library that wraps the functionality of the native image 
+ * processing library OpenCV
+ *
+ * (c) Sigurdur Orn Adalgeirsson (siggi@alum.mit.edu)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+ 
+package sj.opencv;
+
+import java.awt.Rectangle;
+
+import com.sun.jna.Pointer;
+
+import sj.opencv.PixelKernels.Region;
+import sj.opencv.PixelKernels.Rows;
+import sj.opencv.jna.cxcore.JNAIplImage;
+
+import static sj.opencv.jna.JNAOpenCV.Core.CXCORE;
+
+/**
+ * Runs single threaded OpenCV functions on bands of rows in parallel. Every image of a call is cut
+ * into the same horizontal bands (of its ROI) by temporary image headers that share the pixels, and
+ * the native function runs once per band on the shared pool of {@link PixelKernels}.
+ * <p>
+ * CxCore uses this for <code>add</code>, <code>sub</code>, <code>mul</code>, <code>convertScale</code>,
+ * <code>cmp</code> and <code>addWeighted</code> on images with at least {@link #getParallelThreshold()}
+ * values, smaller images stay on the calling thread. The pool size is set by the system property
+ * <code>sj.opencv.kernels.parallelism</code>.
+ */
+public final class NativeBands {
+
+	private static volatile int parallel_threshold = Integer.getInteger("sj.opencv.cxcore.parallelThreshold", 1 << 20);
+
+	private NativeBands(){
+	}
+
+	/**
+	 * @return the number of values (pixels times channels) from which on CxCore splits images into bands
+	 */
+	public static int getParallelThreshold(){
+		return parallel_threshold;
+	}
+
+	/**
+	 * @param values number of values (pixels times channels) from which on CxCore splits images into bands,
+	 * Integer.MAX_VALUE to always call OpenCV once on the calling thread. Defaults to the system property
+	 * <code>sj.opencv.cxcore.parallelThreshold</code> or 1048576.
+	 */
+	public static void setParallelThreshold(int values){
+		parallel_threshold = values;
+	}
+
+	/**
+	 * A native call on one band, gets the band headers in the order of the images, null for null images
+	 */
+	static abstract class Op {
+		abstract void run(Pointer[] bands);
+	}
+
+	/**
+	 * Runs op on bands of the images if the first image is large enough.
+	 *
+	 * @param dst the index of the image the call writes to, which gets its own pixels if snapshots share them
+	 * @param images the arguments of the call, may contain null for optional arguments like masks
+	 * @return false if nothing was run and the caller should make the call itself
+	 */
+	static boolean run(final Op op, int dst, final IplImage... images){
+		int threshold = parallel_threshold;
+		if( threshold == Integer.MAX_VALUE ) return false;
+
+		final Rectangle[] regions = new Rectangle[images.length];
+		for(int i=0; i<images.length; i++){
+			if( images[i] == null ) continue;
+			regions[i] = images[i].regionBounds();
+		}
+		Region reg = new Region(images[0]);
+		if( reg.height < 2 || (long) reg.height * reg.elements < threshold ) return false;
+		for(Rectangle r : regions){
+			// let OpenCV report mismatched sizes
+			if( r != null && (r.width != reg.width || r.height != reg.height) ) return false;
+		}
+
+		images[dst].beforeWrite();
+		PixelKernels.execute(reg, new Rows() {
+			@Override
+			void run(int from, int to) {
+				JNAIplImage[] headers = new JNAIplImage[images.length];
+				Pointer[] bands = new Pointer[images.length];
+				try{
+					for(int i=0; i<images.length; i++){
+						if( images[i] == null ) continue;
+						headers[i] = images[i].createBandHeader(regions[i], from, to - from);
+						bands[i] = headers[i].getPointer();
+					}
+					op.run(bands);
+				}finally{
+					for(JNAIplImage header : headers){
+						if( header == null ) continue;
+						CXCORE.cvReleaseImageHeader( new JNAIplImage.ByReference[]{ new JNAIplImage.ByReference(header.getPointer()) } );
+					}
+				}
+			}
+		}, threshold);
+		return true;
+	}
+}
@@ -0,0 +1,244 @@
+/* Description and License
+ * A Java library that wraps the functionality of the native image 
+ * processing library OpenCV
+ *
+ * (c) Sigurdur Orn Adalgeirsson (siggi@alum.mit.edu)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+ 
+package sj.opencv;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+/**
+ * Accounts for the native memory held by {@link BasePointer} objects, per type (IplImage, Mat, ...).
+ * The factory methods record the bytes they allocate and the count drops again when the object is
+ * released, either explicitly or by the cleaner.
+ * <p>
+ * The gauges are registered as the MXBean <code>sj.opencv:type=NativeMemory</code>. Allocation stack traces
+ * are sampled every n-th allocation when the sample rate is set (system property
+ * <code>sj.opencv.memory.sampleRate</code> or {@link #setStackSampleRate(int)}), 0 turns sampling off.
+ * Setting the system property <code>sj.opencv.memory.leakReport</code> to <code>true</code> keeps a record of every
+ * live object and lists those that were never released on System.err at shutdown, with their allocation
+ * site where it was sampled.
+ * <p>
+ * Sizes are what was requested at allocation, memory storages are counted with their first block only.
+ */
+public class NativeMemoryTracker {
+
+	/**
+	 * JMX view of the tracker
+	 */
+	public interface NativeMemoryMXBean {
+		long getLiveBytes();
+		long getHighWaterBytes();
+		long getLiveCount();
+		Map<String, Long> getLiveBytesByType();
+		Map<String, Long> getHighWaterBytesByType();
+		Map<String, Long> getLiveCountByType();
+		int getStackSampleRate();
+		void setStackSampleRate(int rate);
+	}
+
+	private static final class TypeStats {
+		final AtomicLong live_bytes = new AtomicLong();
+		final AtomicLong high_water_bytes = new AtomicLong();
+		final AtomicLong live_count = new AtomicLong();
+	}
+
+	/**
+	 * One tracked allocation, held by the cleanup of the owning BasePointer
+	 */
+	static final class Allocation {
+		final String type;
+		final long bytes;
+		final Throwable site;
+		private final TypeStats stats;
+
+		private Allocation(String type, long bytes, Throwable site, TypeStats stats){
+			this.type = type;
+			this.bytes = bytes;
+			this.site = site;
+			this.stats = stats;
+		}
+	}
+
+	private static final ConcurrentHashMap<String, TypeStats> types = new ConcurrentHashMap<String, TypeStats>();
+	private static final AtomicLong live_bytes = new AtomicLong();
+	private static final AtomicLong high_water_bytes = new AtomicLong();
+	private static final AtomicLong live_count = new AtomicLong();
+	private static final AtomicLong allocation_counter = new AtomicLong();
+	// sampled allocations, or every allocation while the leak report is on
+	private static final Set<Allocation> listed = Collections.newSetFromMap(new ConcurrentHashMap<Allocation, Boolean>());
+	private static volatile int sample_rate = Integer.getInteger("sj.opencv.memory.sampleRate", 0);
+	private static final boolean leak_report = Boolean.getBoolean("sj.opencv.memory.leakReport");
+	// individual objects printed by a report, the rest is only counted
+	private static final int MAX_LISTED = 100;
+
+	static{
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new NativeMemoryMXBean() {
+				public long getLiveBytes() { return NativeMemoryTracker.getLiveBytes(); }
+				public long getHighWaterBytes() { return NativeMemoryTracker.getHighWaterBytes(); }
+				public long getLiveCount() { return NativeMemoryTracker.getLiveCount(); }
+				public Map<String, Long> getLiveBytesByType() { return NativeMemoryTracker.getLiveBytesByType(); }
+				public Map<String, Long> getHighWaterBytesByType() { return NativeMemoryTracker.getHighWaterBytesByType(); }
+				public Map<String, Long> getLiveCountByType() { return NativeMemoryTracker.getLiveCountByType(); }
+				public int getStackSampleRate() { return NativeMemoryTracker.getStackSampleRate(); }
+				public void setStackSampleRate(int rate) { NativeMemoryTracker.setStackSampleRate(rate); }
+			}, new ObjectName("sj.opencv:type=NativeMemory"));
+		} catch (Exception e) {
+			// JMX is optional, the static getters still work
+			System.err.println("Could not register native memory MXBean: "+e);
+		}
+	}
+
+	private NativeMemoryTracker(){
+	}
+
+	static Allocation allocated(Class<?> type, long bytes){
+		String name = type.getSimpleName();
+		TypeStats stats = types.get(name);
+		if( stats == null ){
+			TypeStats fresh = new TypeStats();
+			stats = types.putIfAbsent(name, fresh);
+			if( stats == null ) stats = fresh;
+		}
+
+		raise(stats.high_water_bytes, stats.live_bytes.addAndGet(bytes));
+		stats.live_count.incrementAndGet();
+		raise(high_water_bytes, live_bytes.addAndGet(bytes));
+		live_count.incrementAndGet();
+
+		int rate = sample_rate;
+		Throwable site = null;
+		if( rate > 0 && allocation_counter.incrementAndGet() % rate == 0 ){
+			site = new Throwable(name+" allocated here");
+		}
+
+		Allocation a = new Allocation(name, bytes, site, stats);
+		if( site != null || leak_report ) listed.add(a);
+		return a;
+	}
+
+	static void released(Allocation a){
+		a.stats.live_bytes.addAndGet(-a.bytes);
+		a.stats.live_count.decrementAndGet();
+		live_bytes.addAndGet(-a.bytes);
+		live_count.decrementAndGet();
+		if( a.site != null || leak_report ) listed.remove(a);
+	}
+
+	private static void raise(AtomicLong max, long value){
+		long current = max.get();
+		while( value > current && !max.compareAndSet(current, value) ){
+			current = max.get();
+		}
+	}
+
+	/**
+	 * @return bytes held by all live objects
+	 */
+	public static long getLiveBytes(){
+		return live_bytes.get();
+	}
+
+	/**
+	 * @return the largest number of bytes that were live at the same time
+	 */
+	public static long getHighWaterBytes(){
+		return high_water_bytes.get();
+	}
+
+	/**
+	 * @return number of tracked objects that were not released yet
+	 */
+	public static long getLiveCount(){
+		return live_count.get();
+	}
+
+	public static Map<String, Long> getLiveBytesByType(){
+		Map<String, Long> out = new HashMap<String, Long>();
+		for (Map.Entry<String, TypeStats> e : types.entrySet()) out.put(e.getKey(), e.getValue().live_bytes.get());
+		return out;
+	}
+
+	public static Map<String, Long> getHighWaterBytesByType(){
+		Map<String, Long> out = new HashMap<String, Long>();
+		for (Map.Entry<String, TypeStats> e : types.entrySet()) out.put(e.getKey(), e.getValue().high_water_bytes.get());
+		return out;
+	}
+
+	public static Map<String, Long> getLiveCountByType(){
+		Map<String, Long> out = new HashMap<String, Long>();
+		for (Map.Entry<String, TypeStats> e : types.entrySet()) out.put(e.getKey(), e.getValue().live_count.get());
+		return out;
+	}
+
+	public static int getStackSampleRate(){
+		return sample_rate;
+	}
+
+	/**
+	 * @param rate record the stack trace of every n-th allocation, 0 turns sampling off
+	 */
+	public static void setStackSampleRate(int rate){
+		if( rate < 0 ) throw new IllegalArgumentException("Sample rate can't be negative");
+		sample_rate = rate;
+	}
+
+	/**
+	 * Prints the live objects per type, followed by the individual live objects that are known: those with a
+	 * sampled allocation site, or all of them if the leak report is on. At most 100 objects are listed.
+	 */
+	public static void printReport(PrintStream out){
+		out.println("Native memory: "+getLiveCount()+" live objects, "+getLiveBytes()+" bytes (high water "+getHighWaterBytes()+" bytes)");
+		for (Map.Entry<String, TypeStats> e : new TreeMap<String, TypeStats>(types).entrySet()) {
+			TypeStats stats = e.getValue();
+			out.println("  "+e.getKey()+": "+stats.live_count.get()+" live, "+stats.live_bytes.get()+" bytes (high water "+stats.high_water_bytes.get()+" bytes)");
+		}
+		int n = 0, more = 0;
+		for (Allocation a : listed) {
+			if( n++ >= MAX_LISTED ){
+				more++;
+				continue;
+			}
+			out.println("  unreleased "+a.type+" of "+a.bytes+" bytes"+(a.site == null ? " (allocation site not sampled)" : ""));
+			if( a.site != null ) a.site.printStackTrace(out);
+		}
+		if( more > 0 ) out.println("  ... and "+more+" more");
+	}
+
+	/**
+	 * Called from the shutdown hook after the managed resources have been released
+	 */
+	static void reportLeaks(){
+		if( !leak_report || getLiveCount() == 0 ) return;
+		System.err.println("opencv-java: objects that were never released at shutdown");
+		printReport(System.err);
+	}
+}
@@ -43,7 +43,8 @@ import sj.opencv.jna.cxcore.CxcoreLibrary;
 import sj.opencv.jna.highgui.HighguiLibrary.CvCapture;
 import sj.opencv.jna.objdetect.CvHaarClassifierCascade;
 import sj.opencv.jna.objdetect.ObjdetectLibrary;
-import static sj.opencv.jna.JNAOpenCV.*;
+import static sj.opencv.jna.JNAOpenCV.Core.CXCORE;
+import static sj.opencv.jna.JNAOpenCV.Objdetect.OBJDETECT;
 
 /**
  * @author siggi
@@ -84,6 +85,8 @@ public class ObjDetect {
 		casc.read();
 
 		HaarClassifierCascade ret = new  HaarClassifierCascade(casc);
+		// the size of a loaded cascade isn't known, it is only counted
+		ret.trackNativeMemory(0);
 
 		return ret;
 	}
@@ -102,6 +105,33 @@ public class ObjDetect {
 		return haarDetectObjects(img, cascade, storage, 1.2, 2, new HaarClassifierFlag[]{HaarClassifierFlag.CV_HAAR_DO_CANNY_PRUNING}, new Dimension(5,5), new Dimension(300,300));
 	}
 
+	/**
+	 * Default version of <code>haarDetectObjects</code> using the calling thread's storage
+	 * from {@link MemStoragePool#getDefault()}.
+	 *
+	 * @param img - The image to detect objects in.
+	 * @param cascade - A Haar classifier cascade object.
+	 * @return An array with the rectangles containing the detected objects.
+	 */
+	public static Rectangle[] haarDetectObjects(IplImage img, HaarClassifierCascade cascade) {
+		return haarDetectObjects(img, cascade, 1.2, 2, new HaarClassifierFlag[]{HaarClassifierFlag.CV_HAAR_DO_CANNY_PRUNING}, new Dimension(5,5), new Dimension(300,300));
+	}
+
+	/**
+	 * Same as {@link #haarDetectObjects(IplImage, HaarClassifierCascade, MemStorage, double, int, HaarClassifierFlag[], Dimension, Dimension)}
+	 * but the candidate rectangles are stored in the calling thread's storage from
+	 * {@link MemStoragePool#getDefault()}, which is reset afterwards.
+	 */
+	public static Rectangle[] haarDetectObjects(IplImage img, HaarClassifierCascade cascade, double scaleFactor, int minNeighbors, HaarClassifierFlag[] flags, Dimension minSize, Dimension maxSize) {
+		MemStoragePool pool = MemStoragePool.getDefault();
+		MemStorage storage = pool.acquire();
+		try{
+			return haarDetectObjects(img, cascade, storage, scaleFactor, minNeighbors, flags, minSize, maxSize);
+		}finally{
+			pool.release(storage);
+		}
+	}
+
 	/**
 	 * Detects objects the cascade has been trained for and returns those regions as a
 	 * sequence of rectangles.
@@ -125,7 +155,6 @@ public class ObjDetect {
 
 		CvSeq cvHaarDetectObjects = OBJDETECT.cvHaarDetectObjects(img.getCvArr(), cascade.getJNACvHaarCascade(), storage.getJNACvMemStorage(), scaleFactor, minNeighbors, flags_int, new CvSize.ByValue(minSize.width, minSize.height), new CvSize.ByValue(maxSize.width, maxSize.height));
 
-		System.out.println();
 		Rectangle[] ret = new Rectangle[cvHaarDetectObjects.total];
 		for(int i=0; i<cvHaarDetectObjects.total; i++){
 			Pointer cvGetSeqElem = CXCORE.cvGetSeqElem(cvHaarDetectObjects, i);
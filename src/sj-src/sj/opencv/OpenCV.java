@@ -49,6 +49,7 @@ import sj.opencv.Constants.ColorModel;
 import sj.opencv.jna.cxcore.CvContour;
 import sj.opencv.jna.cxcore.CvMat;
 import sj.opencv.jna.cxcore.CvMemStorage;
+import sj.opencv.jna.CxcoreDirect;
 import sj.opencv.jna.cxcore.CvPoint;
 import sj.opencv.jna.cxcore.CvRect;
 import sj.opencv.jna.cxcore.CvScalar;
@@ -62,7 +63,8 @@ import sj.opencv.jna.highgui.HighguiLibrary.CvArr;
 import sj.opencv.jna.highgui.HighguiLibrary.CvCapture;
 import sj.opencv.jna.imgproc.CvMoments;
 import sj.opencv.jna.imgproc.ImgprocLibrary;
-import static sj.opencv.jna.JNAOpenCV.*;
+import static sj.opencv.jna.JNAOpenCV.Core.CXCORE;
+import static sj.opencv.jna.JNAOpenCV.Imgproc.IMGPROC;
 
 /**
  * Author: Siggi & Julián
@@ -124,26 +126,21 @@ public class OpenCV {
 			throw new RuntimeException("Can not convert input color model of "+im_src.getColorModel());
 		}
 
-		CXCORE.cvSet(new CvArr(im_dest.getPointer()), new CvScalar.ByValue(new double[]{255,255,255,255}), null);
+		CallScratch scratch = CallScratch.get();
+		CxcoreDirect.cvSet(im_dest.getPointer(), scratch.scalar(255, 255, 255, 255), null);
 
-		if( type == 0 ){
-			int from_to[] = { 0,1,  0,2,  0,3 };
-			CXCORE.cvMixChannels(new PointerByReference(im_src.getPointer()), 1, new PointerByReference(im_dest.getPointer()), 1, from_to, 3);
-		}
-		else if( type == 1 ){
-			int from_to[] = { 0,1,  1,2,  2,3 };
-			CXCORE.cvMixChannels(new PointerByReference(im_src.getPointer()), 1, new PointerByReference(im_dest.getPointer()), 1, from_to, 3);
-		}
-		else if( type == 2 ){
-			int from_to[] = { 0,3,  1,2,  2,1 };
-			CXCORE.cvMixChannels(new PointerByReference(im_src.getPointer()), 1, new PointerByReference(im_dest.getPointer()), 1, from_to, 3);
-		}
-		else if( type == 3 ){
-			int from_to[] = { 0,3,  1,2,  2,1,  3,0 };
-			CXCORE.cvMixChannels(new PointerByReference(im_src.getPointer()), 1, new PointerByReference(im_dest.getPointer()), 1, from_to, 4);
-		}
+		int[] from_to = ARGB_FROM_TO[(int)type];
+		CxcoreDirect.cvMixChannels(scratch.src(im_src.getPointer()), 1, scratch.dst(im_dest.getPointer()), 1, from_to, from_to.length/2);
 	}
 
+	/** channel pairs for convert2ARGB, indexed by the source type */
+	private static final int[][] ARGB_FROM_TO = {
+		{ 0,1,  0,2,  0,3 },
+		{ 0,1,  1,2,  2,3 },
+		{ 0,3,  1,2,  2,1 },
+		{ 0,3,  1,2,  2,1,  3,0 }
+	};
+
 
 //	/* ******************************************************************************
 //	 *  							CLUSTERING                                      *
@@ -497,97 +494,98 @@ public class OpenCV {
 		CvRect roi = CXCORE.cvGetImageROI(im.getJNAIPLImage());
 
 		// memory storage for analysis
-		CvMemStorage storage = CXCORE.cvCreateMemStorage(0);
-		// to calculate gravity center, area, etcÔøΩ
-		CvMoments moments = new CvMoments();
-		// the valid contour list
-		CvSeq.ByReference[] first_contour =  (sj.opencv.jna.cxcore.CvSeq.ByReference[]) new CvSeq.ByReference().toArray(256);
-		// contour index that will walk through starting at 0 address
-
-		int nr_contours = IMGPROC.cvFindContours(im.getCvArr(), storage, first_contour, new CvContour().size(), findHoles?1:0, 2, new CvPoint.ByValue(0, 0));
-
-		List<BlobInner> blobs = new ArrayList<BlobInner>();
-
-		CvSeq.ByReference index = first_contour[0];
-		for(int i=0; i<nr_contours; i++){
-			double area = Math.abs( IMGPROC.cvContourArea(index.getPointer(), CV_WHOLE_SEQ, 0) );
-			if ( area >= minArea && area <= maxArea ){
-				BlobInner b = new BlobInner();
-				b.contour = index;
-				b.area = (float) area;
-				blobs.add(b);
+		MemStorage pooled_storage = MemStoragePool.getDefault().acquire();
+		try{
+			CvMemStorage storage = pooled_storage.getJNACvMemStorage();
+			// to calculate gravity center, area, etcÔøΩ
+			CvMoments moments = new CvMoments();
+			// the valid contour list
+			CvSeq.ByReference[] first_contour =  (sj.opencv.jna.cxcore.CvSeq.ByReference[]) new CvSeq.ByReference().toArray(256);
+			// contour index that will walk through starting at 0 address
+
+			int nr_contours = IMGPROC.cvFindContours(im.getCvArr(), storage, first_contour, new CvContour().size(), findHoles?1:0, 2, new CvPoint.ByValue(0, 0));
+
+			List<BlobInner> blobs = new ArrayList<BlobInner>();
+
+			CvSeq.ByReference index = first_contour[0];
+			for(int i=0; i<nr_contours; i++){
+				double area = Math.abs( IMGPROC.cvContourArea(index.getPointer(), CV_WHOLE_SEQ, 0) );
+				if ( area >= minArea && area <= maxArea ){
+					BlobInner b = new BlobInner();
+					b.contour = index;
+					b.area = (float) area;
+					blobs.add(b);
+				}
+				index = index.h_next;
+				if(index == null) break;
 			}
-			index = index.h_next;
-			if(index == null) break;
-		}
 
-		List<Blob> out = new ArrayList<Blob>();
+			List<Blob> out = new ArrayList<Blob>();
 
-		// convert the CV formatted contour data into our Java Blob object
-		for (BlobInner blob : blobs) {
-			CvArr cvarr = new CvArr(blob.contour.getPointer());
+			// convert the CV formatted contour data into our Java Blob object
+			for (BlobInner blob : blobs) {
+				CvArr cvarr = new CvArr(blob.contour.getPointer());
 
-			// calculates all moments up to third order of a polygon or rasterized shape
-			IMGPROC.cvMoments( cvarr, moments, 0 );
+				// calculates all moments up to third order of a polygon or rasterized shape
+				IMGPROC.cvMoments( cvarr, moments, 0 );
 
-			// retrieve CV blob's properties (area, arc length, bounding rectangle, gravity center)
-			float length = (float) IMGPROC.cvArcLength(blob.contour.getPointer(), CV_WHOLE_SEQ, -1);
-			CvRect rect	 = IMGPROC.cvBoundingRect(cvarr, 0 );
-			int center_x = (int) ( moments.m10/moments.m00 ) + roi.x;
-			int center_y = (int) ( moments.m01/moments.m00 ) + roi.y;
+				// retrieve CV blob's properties (area, arc length, bounding rectangle, gravity center)
+				float length = (float) IMGPROC.cvArcLength(blob.contour.getPointer(), CV_WHOLE_SEQ, -1);
+				CvRect rect	 = IMGPROC.cvBoundingRect(cvarr, 0 );
+				int center_x = (int) ( moments.m10/moments.m00 ) + roi.x;
+				int center_y = (int) ( moments.m01/moments.m00 ) + roi.y;
 
-			double mu00 = IMGPROC.cvGetCentralMoment(moments,0,0);
-			double mu11 = IMGPROC.cvGetCentralMoment(moments,1,1)/mu00;
-			double mu20 = IMGPROC.cvGetCentralMoment(moments,2,0)/mu00;
-			double mu02 = IMGPROC.cvGetCentralMoment(moments,0,2)/mu00;
+				double mu00 = IMGPROC.cvGetCentralMoment(moments,0,0);
+				double mu11 = IMGPROC.cvGetCentralMoment(moments,1,1)/mu00;
+				double mu20 = IMGPROC.cvGetCentralMoment(moments,2,0)/mu00;
+				double mu02 = IMGPROC.cvGetCentralMoment(moments,0,2)/mu00;
 
-			float rMajor = (float) (2*Math.sqrt((((mu20+mu02)+Math.sqrt(((4*mu11*mu11)+((mu20-mu02)*(mu20-mu02))))/2))));
-			float rMinor = (float) (2*Math.sqrt((((mu20+mu02)-Math.sqrt(((4*mu11*mu11)+((mu20-mu02)*(mu20-mu02))))/2))));
+				float rMajor = (float) (2*Math.sqrt((((mu20+mu02)+Math.sqrt(((4*mu11*mu11)+((mu20-mu02)*(mu20-mu02))))/2))));
+				float rMinor = (float) (2*Math.sqrt((((mu20+mu02)-Math.sqrt(((4*mu11*mu11)+((mu20-mu02)*(mu20-mu02))))/2))));
 
-			float var1 = (float) (2*mu11);
-			float var2 = (float) (mu20 - mu02);
-			//		float rAngle = 0.5 * atan( var1 / var2 );
-			float rAngle = (float) (0.5 * Math.atan2( var1, var2 ));
+				float var1 = (float) (2*mu11);
+				float var2 = (float) (mu20 - mu02);
+				//		float rAngle = 0.5 * atan( var1 / var2 );
+				float rAngle = (float) (0.5 * Math.atan2( var1, var2 ));
 
-			// create Java objects : hypermedia.video.Blob, Rectangle, Point, Point array
-			Blob blobout = new Blob();
-			blobout.area = blob.area;
-			out.add(blobout);
+				// create Java objects : hypermedia.video.Blob, Rectangle, Point, Point array
+				Blob blobout = new Blob();
+				blobout.area = blob.area;
+				out.add(blobout);
 
-			blobout.points = new Point[blob.contour.total];
+				blobout.points = new Point[blob.contour.total];
 
-			System.out.println();
+				// list contour points
+				sj.opencv.jna.cxcore.CvSeqBlock.ByReference running = blob.contour.first;
+				int cnt = 0;
+				do{
+					CvPoint rect_start = new CvPoint(running.data);
+					CvPoint[] arr = (sj.opencv.jna.cxcore.CvPoint[]) rect_start.toArray(running.count);
 
-			// list contour points
-			sj.opencv.jna.cxcore.CvSeqBlock.ByReference running = blob.contour.first;
-			int cnt = 0;
-			do{
-				CvPoint rect_start = new CvPoint(running.data);
-				CvPoint[] arr = (sj.opencv.jna.cxcore.CvPoint[]) rect_start.toArray(running.count);
+					for (CvPoint byReference : arr) {
+						byReference.read();
+						blobout.points[cnt++] = new Point(byReference.x, byReference.y);
+					}
 
-				for (CvPoint byReference : arr) {
-					byReference.read();
-					blobout.points[cnt++] = new Point(byReference.x, byReference.y);
-				}
-
-				running = running.next;
-			}while( running != blob.contour.first );
-
-			blobout.centroid = new Point(center_x, center_y);
-			blobout.rectangle = new Rectangle(rect.x, rect.y, rect.width, rect.height);
-			blobout.length = length;
-			blobout.isHole = blobout.area > 0;
+					running = running.next;
+				}while( running != blob.contour.first );
 
-			blobout.major_axis_length = rMajor;
-			blobout.minor_axis_length = rMinor;
-			blobout.major_axis_angle = rAngle;
-		}
+				blobout.centroid = new Point(center_x, center_y);
+				blobout.rectangle = new Rectangle(rect.x, rect.y, rect.width, rect.height);
+				blobout.length = length;
+				blobout.isHole = blobout.area > 0;
 
-		CXCORE.cvReleaseMemStorage(new CvMemStorage.ByReference[]{ new CvMemStorage.ByReference(storage.getPointer()) });
+				blobout.major_axis_length = rMajor;
+				blobout.minor_axis_length = rMinor;
+				blobout.major_axis_angle = rAngle;
+			}
 
-		Collections.sort(out);
+			Collections.sort(out);
 
-		return out;
+			return out;
+		}finally{
+			MemStoragePool.getDefault().release(pooled_storage);
+		}
 	}
 
 //	public static void findOutliers(float[] points, int pointSize, int nPoints, int[] outliers, int kdTrees, int knn, int searchChecks, double stdDevFactor) {
@@ -26,9 +26,11 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Properties;
@@ -117,12 +119,19 @@ public class OpenCVLibLoader {
 
 		// If native loading has not been disabled then we "guess" the absolute location of the lib folder
 		if( native_lib_path != null && native_lib_path.length() == 0 ){
-			native_lib_path = guessAbsoluteLibFolderLocation();
+			String cache_key = PUtils.getExecutionFolder() + relative_lib_path;
+			native_lib_path = readCachedLibFolderLocation(cache_key);
 			if( native_lib_path == null ){
-				throw new RuntimeException("Can't guess absolute location of opencv native libraries");
-			}
-			if( !new File(native_lib_path +SEP+ platform_specific_library_beginning+"opencv_core"+platform_specific_library_version+platform_specific_library_ending).exists() ){
-				throw new RuntimeException("Can't load native opencv library from guessed location: "+native_lib_path +SEP+ platform_specific_library_beginning+"opencv_core"+platform_specific_library_version+platform_specific_library_ending);
+				String guessed = guessAbsoluteLibFolderLocation();
+				if( guessed == null || !containsCoreLibrary(guessed) ){
+					// No bundled libraries, leave it to jna's default search path. If OpenCV isn't installed either
+					// the first native call fails, while the pure java operations (see JavaOps) keep working.
+					if( DEBUG ) System.err.println("No bundled opencv native libraries found" + (guessed == null ? "" : " in "+guessed));
+					native_lib_path = null;
+					return;
+				}
+				native_lib_path = guessed;
+				writeCachedLibFolderLocation(cache_key, native_lib_path);
 			}
 		}
 
@@ -139,6 +148,76 @@ public class OpenCVLibLoader {
 	}
 
 
+	private static boolean containsCoreLibrary(String folder){
+		return new File(folder +SEP+ platform_specific_library_beginning+"opencv_core"+platform_specific_library_version+platform_specific_library_ending).exists();
+	}
+
+	/**
+	 * The guessed library folder is remembered per execution folder in a small properties file,
+	 * by default ~/.opencv-java/libpath.properties. The system property sj.opencv.libPathCache
+	 * sets another file, an empty value turns the cache off.
+	 */
+	private static File getLibPathCacheFile(){
+		String location = System.getProperty("sj.opencv.libPathCache");
+		if( location == null ) return new File(System.getProperty("user.home") +SEP+ ".opencv-java" +SEP+ "libpath.properties");
+		if( location.length() == 0 ) return null;
+		return new File(location);
+	}
+
+	private static String readCachedLibFolderLocation(String key){
+		File cache = getLibPathCacheFile();
+		if( cache == null || !cache.isFile() ) return null;
+
+		Properties prop = new Properties();
+		try {
+			InputStream in = new FileInputStream(cache);
+			try {
+				prop.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			if(DEBUG) System.err.println("LibLoc: can't read cache "+cache+": "+e);
+			return null;
+		}
+
+		String path = prop.getProperty(key);
+		// a stale entry is ignored, the guess below overwrites it
+		if( path == null || !containsCoreLibrary(path) ) return null;
+		if(DEBUG) System.err.println("LibLoc: cached location: "+path);
+		return path;
+	}
+
+	private static void writeCachedLibFolderLocation(String key, String path){
+		File cache = getLibPathCacheFile();
+		if( cache == null ) return;
+
+		try {
+			Properties prop = new Properties();
+			if( cache.isFile() ){
+				InputStream in = new FileInputStream(cache);
+				try {
+					prop.load(in);
+				} finally {
+					in.close();
+				}
+			}
+			prop.setProperty(key, path);
+
+			File parent = cache.getAbsoluteFile().getParentFile();
+			if( parent != null ) parent.mkdirs();
+			OutputStream out = new FileOutputStream(cache);
+			try {
+				prop.store(out, "opencv-java native library folders");
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			// the cache is only an optimization
+			if(DEBUG) System.err.println("LibLoc: can't write cache "+cache+": "+e);
+		}
+	}
+
 	private static boolean folderContainsLibraryFolder(File folder){
 		File[] files = folder.listFiles();
 		if( files == null ){
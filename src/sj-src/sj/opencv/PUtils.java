@@ -24,6 +24,8 @@ package sj.opencv;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 
 import processing.core.PApplet;
@@ -82,7 +84,10 @@ public class PUtils {
 		}
 
 		// Here we transfer the pixel data
-		IntBuffer.wrap(out.pixels).put( im_to_use.getByteBuffer().asIntBuffer() );
+		// The bytes are laid out A,R,G,B, which is a big endian int regardless of the image byte order
+		ByteBuffer argb = im_to_use.getByteBuffer().duplicate();
+		argb.order( ByteOrder.BIG_ENDIAN );
+		IntBuffer.wrap(out.pixels).put( argb.asIntBuffer() );
 		out.updatePixels();
 
 		return out;
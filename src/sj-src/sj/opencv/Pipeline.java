@@ -0,0 +1,126 @@
+/* Description and License
+ * A Java library that wraps the functionality of the native image 
+ * processing library OpenCV
+ *
+ * (c) Sigurdur Orn Adalgeirsson (siggi@alum.mit.edu)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+ 
+package sj.opencv;
+
+import sj.opencv.Constants.ColorModel;
+import sj.opencv.Constants.PixelDepth;
+import sj.opencv.jna.CallProfiler;
+
+import com.sun.jna.Function;
+import com.sun.jna.Pointer;
+
+/**
+ * A fixed chain of operations compiled by {@link PipelineBuilder}. The native functions are
+ * resolved, the argument arrays are built and the intermediate images are allocated once,
+ * so {@link #execute(IplImage)} only swaps in the source image and makes the native calls.
+ * <p>
+ * A pipeline is not thread safe, use one per thread. {@link #close()} frees the intermediate images.
+ */
+public class Pipeline implements AutoCloseable {
+
+	static final int RETURNS_VOID = 0;
+	static final int RETURNS_INT = 1;
+	static final int RETURNS_DOUBLE = 2;
+
+	private final Function[] functions;
+	private final Object[][] arguments;
+	private final int[] returns;
+	private final boolean[] reads_source;
+	private final IplImage[] images;
+	private final IplImage output;
+
+	private final int width, height, channels;
+	private final PixelDepth pixel_depth;
+
+	Pipeline(Function[] functions, Object[][] arguments, int[] returns, boolean[] reads_source, IplImage[] images, IplImage output,
+			int width, int height, PixelDepth pixel_depth, ColorModel color_model){
+		this.functions = functions;
+		this.arguments = arguments;
+		this.returns = returns;
+		this.reads_source = reads_source;
+		this.images = images;
+		this.output = output;
+		this.width = width;
+		this.height = height;
+		this.pixel_depth = pixel_depth;
+		this.channels = color_model.getNumberOfChannels();
+	}
+
+	/**
+	 * Runs every stage on <code>src</code>, which must have the format the pipeline was built for.
+	 * The source image is never written to.
+	 *
+	 * @return the value of the last stage that returns one (countNonZero, threshold), NaN if there is none
+	 */
+	public double execute(IplImage src){
+		if( src.getWidth() != width || src.getHeight() != height || src.getPixelDepth() != pixel_depth || src.getNumberOfChannels() != channels ){
+			throw new IllegalArgumentException("Image doesn't have the format the pipeline was built for: "+width+"x"+height+" "+pixel_depth+" "+channels+" channels");
+		}
+
+		Pointer source = src.getPointer();
+		double result = Double.NaN;
+		for(int i=0; i<functions.length; i++){
+			Object[] args = arguments[i];
+			if( reads_source[i] ) args[0] = source;
+
+			long t = CallProfiler.start();
+			switch (returns[i]) {
+			case RETURNS_INT:
+				result = functions[i].invokeInt(args);
+				break;
+			case RETURNS_DOUBLE:
+				result = functions[i].invokeDouble(args);
+				break;
+			default:
+				functions[i].invokeVoid(args);
+			}
+			CallProfiler.stop(t, functions[i].getName(), reads_source[i] ? source : null);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the image written by the last image producing stage, or null if no stage produces an image.
+	 * It is overwritten by the next call to execute.
+	 */
+	public IplImage getOutput(){
+		return output;
+	}
+
+	/**
+	 * @return number of native calls made per execute
+	 */
+	public int getStageCount(){
+		return functions.length;
+	}
+
+	/**
+	 * Frees the intermediate images
+	 */
+	@Override
+	public void close(){
+		for (IplImage im : images) {
+			im.deAllocate();
+		}
+	}
+}
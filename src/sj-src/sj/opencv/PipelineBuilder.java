@@ -0,0 +1,263 @@
+/* Description and License
+ * A Java library that wraps the functionality of the native image 
+ * processing library OpenCV
+ *
+ * (c) Sigurdur Orn Adalgeirsson (siggi@alum.mit.edu)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+ 
+package sj.opencv;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import sj.opencv.Constants.ColorModel;
+import sj.opencv.Constants.PixelDepth;
+import sj.opencv.CxCore.CompareMode;
+import sj.opencv.ImgProc.ColorConversion;
+import sj.opencv.ImgProc.InterpType;
+import sj.opencv.ImgProc.SmoothType;
+import sj.opencv.ImgProc.ThresholdType;
+import sj.opencv.jna.JNAOpenCV;
+
+import com.sun.jna.Function;
+import com.sun.jna.NativeLibrary;
+
+/**
+ * Builds a {@link Pipeline} for a fixed chain of operations on images of one format.
+ * Every operation is validated once here, instead of on every frame.
+ * Each operation reads the image written by the previous one, the first one reads the source.
+ * <pre>
+ * Pipeline motion = new PipelineBuilder(640, 480, PixelDepth.IPL_DEPTH_8U, ColorModel.BGR)
+ *     .cvtColor(ColorConversion.CV_BGR2GRAY, ColorModel.GRAY)
+ *     .smooth(SmoothType.CV_GAUSSIAN, 5, 5, 0, 0)
+ *     .threshold(40, 255, ThresholdType.CV_THRESH_BINARY)
+ *     .dilate(2)
+ *     .countNonZero()
+ *     .build();
+ *
+ * int moving = (int) motion.execute(frame);
+ * </pre>
+ */
+public class PipelineBuilder {
+
+	private static final String CORE = "opencv_core";
+	private static final String IMGPROC = "opencv_imgproc";
+
+	/** placeholders in the argument templates, replaced when the pipeline is built */
+	private static final Object SOURCE = new Object();
+	private static final Object TARGET = new Object();
+
+	private static final class Stage {
+		final String library;
+		final String function;
+		final Object[] arguments;
+		final int returns;
+		// format of the image written by the stage, null if it doesn't write one
+		final int width, height;
+		final PixelDepth pixel_depth;
+		final ColorModel color_model;
+
+		Stage(String library, String function, Object[] arguments, int returns, int width, int height, PixelDepth pixel_depth, ColorModel color_model){
+			this.library = library;
+			this.function = function;
+			this.arguments = arguments;
+			this.returns = returns;
+			this.width = width;
+			this.height = height;
+			this.pixel_depth = pixel_depth;
+			this.color_model = color_model;
+		}
+	}
+
+	private final int src_width, src_height;
+	private final PixelDepth src_pixel_depth;
+	private final ColorModel src_color_model;
+
+	// format of the image the next operation reads
+	private int width, height;
+	private PixelDepth pixel_depth;
+	private ColorModel color_model;
+
+	private final List<Stage> stages = new ArrayList<Stage>();
+
+	/**
+	 * @param width of the source images
+	 * @param height of the source images
+	 * @param pixel_depth of the source images
+	 * @param color_model of the source images
+	 */
+	public PipelineBuilder(int width, int height, PixelDepth pixel_depth, ColorModel color_model){
+		this.src_width = this.width = width;
+		this.src_height = this.height = height;
+		this.src_pixel_depth = this.pixel_depth = pixel_depth;
+		this.src_color_model = this.color_model = color_model;
+	}
+
+	private PipelineBuilder add(String library, String function, Object[] arguments, int returns){
+		stages.add(new Stage(library, function, arguments, returns, 0, 0, null, null));
+		return this;
+	}
+
+	private PipelineBuilder add(String library, String function, Object[] arguments, int returns, int width, int height, PixelDepth pixel_depth, ColorModel color_model){
+		stages.add(new Stage(library, function, arguments, returns, width, height, pixel_depth, color_model));
+		this.width = width;
+		this.height = height;
+		this.pixel_depth = pixel_depth;
+		this.color_model = color_model;
+		return this;
+	}
+
+	private void requireSingleChannel(String operation){
+		if( color_model.getNumberOfChannels() != 1 ) throw new IllegalArgumentException(operation+" needs a single channel image, got "+color_model);
+	}
+
+	/**
+	 * @see ImgProc#cvtColor(IplImage, IplImage, ColorConversion)
+	 */
+	public PipelineBuilder cvtColor(ColorConversion conversion, ColorModel dst_color_model){
+		if( conversion.getSrcChannels() != color_model.getNumberOfChannels() ) throw new IllegalArgumentException(conversion+" needs "+conversion.getSrcChannels()+" channels, got "+color_model);
+		if( conversion.getDstChannels() != dst_color_model.getNumberOfChannels() ) throw new IllegalArgumentException(conversion+" writes "+conversion.getDstChannels()+" channels, "+dst_color_model+" has "+dst_color_model.getNumberOfChannels());
+		return add(IMGPROC, "cvCvtColor", new Object[]{SOURCE, TARGET, conversion.getConstant()}, Pipeline.RETURNS_VOID, width, height, pixel_depth, dst_color_model);
+	}
+
+	/**
+	 * @see ImgProc#resize(IplImage, IplImage, InterpType)
+	 */
+	public PipelineBuilder resize(int dst_width, int dst_height, InterpType interpolation){
+		if( dst_width <= 0 || dst_height <= 0 ) throw new IllegalArgumentException("Invalid size "+dst_width+"x"+dst_height);
+		return add(IMGPROC, "cvResize", new Object[]{SOURCE, TARGET, interpolation.getConstant()}, Pipeline.RETURNS_VOID, dst_width, dst_height, pixel_depth, color_model);
+	}
+
+	/**
+	 * @see ImgProc#smooth(IplImage, IplImage, SmoothType, int, int, double, double)
+	 */
+	public PipelineBuilder smooth(SmoothType smooth_type, int size1, int size2, double sigma1, double sigma2){
+		if( size1%2 == 0 || size2%2 == 0) throw new IllegalArgumentException("size1 and size2 need to be odd numbers");
+		return add(IMGPROC, "cvSmooth", new Object[]{SOURCE, TARGET, smooth_type.getConstant(), size1, size2, sigma1, sigma2}, Pipeline.RETURNS_VOID, width, height, pixel_depth, color_model);
+	}
+
+	/**
+	 * The value returned by the pipeline is the threshold used, which is useful with CV_THRESH_OTSU.
+	 * @see ImgProc#threshold(IplImage, IplImage, double, double, ThresholdType)
+	 */
+	public PipelineBuilder threshold(double threshold, double max_value, ThresholdType threshold_type){
+		requireSingleChannel("threshold");
+		return add(IMGPROC, "cvThreshold", new Object[]{SOURCE, TARGET, threshold, max_value, threshold_type.getConstant()}, Pipeline.RETURNS_DOUBLE, width, height, pixel_depth, color_model);
+	}
+
+	/**
+	 * @see ImgProc#canny(IplImage, IplImage, double, double, int)
+	 */
+	public PipelineBuilder canny(double threshold1, double threshold2, int aperture_size){
+		if( !(aperture_size == 3 || aperture_size == 5 || aperture_size == 7)) throw new IllegalArgumentException("aperture_size needs to be one of 1, 3, 5 or 7");
+		requireSingleChannel("canny");
+		if( pixel_depth != PixelDepth.IPL_DEPTH_8U ) throw new IllegalArgumentException("canny needs an 8 bit image");
+		return add(IMGPROC, "cvCanny", new Object[]{SOURCE, TARGET, threshold1, threshold2, aperture_size}, Pipeline.RETURNS_VOID, width, height, pixel_depth, color_model);
+	}
+
+	/**
+	 * Erodes with a 3x3 rectangular element
+	 */
+	public PipelineBuilder erode(int iterations){
+		if( iterations < 1 ) throw new IllegalArgumentException("iterations must be positive");
+		return add(IMGPROC, "cvErode", new Object[]{SOURCE, TARGET, null, iterations}, Pipeline.RETURNS_VOID, width, height, pixel_depth, color_model);
+	}
+
+	/**
+	 * Dilates with a 3x3 rectangular element
+	 */
+	public PipelineBuilder dilate(int iterations){
+		if( iterations < 1 ) throw new IllegalArgumentException("iterations must be positive");
+		return add(IMGPROC, "cvDilate", new Object[]{SOURCE, TARGET, null, iterations}, Pipeline.RETURNS_VOID, width, height, pixel_depth, color_model);
+	}
+
+	/**
+	 * @see CxCore#convertScale(IplImage, IplImage, double, double)
+	 */
+	public PipelineBuilder convertScale(PixelDepth dst_pixel_depth, double scale, double shift){
+		return add(CORE, "cvConvertScale", new Object[]{SOURCE, TARGET, scale, shift}, Pipeline.RETURNS_VOID, width, height, dst_pixel_depth, color_model);
+	}
+
+	/**
+	 * Writes an 8 bit mask of the pixels for which the comparison holds
+	 * @see CxCore#cmpS(IplImage, double, IplImage, CompareMode)
+	 */
+	public PipelineBuilder cmpS(double value, CompareMode mode){
+		requireSingleChannel("cmpS");
+		return add(CORE, "cvCmpS", new Object[]{SOURCE, value, TARGET, mode.getConstant()}, Pipeline.RETURNS_VOID, width, height, PixelDepth.IPL_DEPTH_8U, ColorModel.GRAY);
+	}
+
+	/**
+	 * Counts the non zero pixels of the current image, the value returned by the pipeline.
+	 * The next operation still reads the image counted here.
+	 */
+	public PipelineBuilder countNonZero(){
+		requireSingleChannel("countNonZero");
+		return add(CORE, "cvCountNonZero", new Object[]{SOURCE}, Pipeline.RETURNS_INT);
+	}
+
+	/**
+	 * Resolves the native functions and allocates the intermediate images.
+	 */
+	public Pipeline build(){
+		if( stages.isEmpty() ) throw new IllegalStateException("Pipeline has no operations");
+
+		JNAOpenCV.Imgproc.load();
+		String version = OpenCVLibLoader.getPlatformLibraryVersion();
+
+		int n = stages.size();
+		Function[] functions = new Function[n];
+		Object[][] arguments = new Object[n][];
+		int[] returns = new int[n];
+		boolean[] reads_source = new boolean[n];
+		List<IplImage> images = new ArrayList<IplImage>();
+
+		IplImage current = null;
+		for(int i=0; i<n; i++){
+			Stage stage = stages.get(i);
+			functions[i] = NativeLibrary.getInstance(stage.library + version).getFunction(stage.function);
+			returns[i] = stage.returns;
+
+			IplImage target = null;
+			if( stage.color_model != null ){
+				target = CxCore.createImage(stage.width, stage.height, stage.pixel_depth, stage.color_model);
+				// the pipeline owns its images, not an enclosing ImageScope
+				ImageScope.untrack(target);
+				images.add(target);
+			}
+
+			Object[] args = stage.arguments.clone();
+			for(int a=0; a<args.length; a++){
+				if( args[a] == SOURCE ){
+					// the source pointer is filled in by execute, it is always the first argument
+					reads_source[i] = current == null;
+					args[a] = current == null ? null : current.getPointer();
+				}
+				else if( args[a] == TARGET ){
+					args[a] = target.getPointer();
+				}
+			}
+			arguments[i] = args;
+
+			if( target != null ) current = target;
+		}
+
+		return new Pipeline(functions, arguments, returns, reads_source, images.toArray(new IplImage[images.size()]), current,
+				src_width, src_height, src_pixel_depth, src_color_model);
+	}
+}
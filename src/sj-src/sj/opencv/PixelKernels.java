@@ -0,0 +1,407 @@
+/* Description and License
+ * A Java library that wraps the functionality of the native image 
+ * processing library OpenCV
+ *
+ * (c) Sigurdur Orn Adalgeirsson (siggi@alum.mit.edu)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+ 
+package sj.opencv;
+
+import java.awt.Rectangle;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import sj.opencv.Constants.PixelDepth;
+
+/**
+ * Runs per-pixel Java code over the pixels of an image. There is one kernel interface and one
+ * method name per pixel depth so values are never boxed, and every row is copied into a primitive array that the kernel
+ * works on, which keeps the inner loops simple enough for the JIT to remove bounds checks and
+ * vectorize them. All methods work on the ROI of the images if one is set.
+ * <p>
+ * Images with more than {@link #getParallelThreshold()} values are split into bands of rows that
+ * run on a shared fork/join pool, kernels must therefore not depend on the order rows are processed in.
+ * The pool has one thread per processor unless the system property <code>sj.opencv.kernels.parallelism</code>
+ * says otherwise.
+ * <pre>
+ * PixelKernels.mapBytes(gray, new PixelKernels.ByteKernel() {
+ *     public int apply(int value) {
+ *         return 255 - value;
+ *     }
+ * });
+ * </pre>
+ */
+public final class PixelKernels {
+
+	/**
+	 * Maps one value of an <code>IPL_DEPTH_8U</code> or <code>IPL_DEPTH_8S</code> image. The value is
+	 * unsigned for 8U and signed for 8S images, the result is saturated to the range of the depth.
+	 */
+	public interface ByteKernel {
+		int apply(int value);
+	}
+
+	/**
+	 * Maps one value of an <code>IPL_DEPTH_16U</code> or <code>IPL_DEPTH_16S</code> image. The value is
+	 * unsigned for 16U and signed for 16S images, the result is saturated to the range of the depth.
+	 */
+	public interface ShortKernel {
+		int apply(int value);
+	}
+
+	/**
+	 * Maps one value of an <code>IPL_DEPTH_32F</code> image.
+	 */
+	public interface FloatKernel {
+		float apply(float value);
+	}
+
+	/**
+	 * Processes one row of an 8 bit image in place. The row holds <code>width*channels</code>
+	 * interleaved values and is written back to the image after the call.
+	 */
+	public interface ByteRowKernel {
+		void processRow(int y, byte[] row);
+	}
+
+	/**
+	 * Processes one row of a 16 bit image in place, see {@link ByteRowKernel}.
+	 */
+	public interface ShortRowKernel {
+		void processRow(int y, short[] row);
+	}
+
+	/**
+	 * Processes one row of a 32 bit float image in place, see {@link ByteRowKernel}.
+	 */
+	public interface FloatRowKernel {
+		void processRow(int y, float[] row);
+	}
+
+	private static volatile int parallel_threshold = Integer.getInteger("sj.opencv.kernels.parallelThreshold", 1 << 16);
+
+	private static final class PoolHolder {
+		static final ForkJoinPool POOL = new ForkJoinPool(
+				Integer.getInteger("sj.opencv.kernels.parallelism", Runtime.getRuntime().availableProcessors()));
+	}
+
+	private PixelKernels(){
+	}
+
+	/**
+	 * @return the number of values (pixels times channels) from which on images are processed in parallel
+	 */
+	public static int getParallelThreshold(){
+		return parallel_threshold;
+	}
+
+	/**
+	 * @param values number of values (pixels times channels) from which on images are processed in parallel,
+	 * Integer.MAX_VALUE to always run on the calling thread. Defaults to the system property
+	 * <code>sj.opencv.kernels.parallelThreshold</code> or 65536.
+	 */
+	public static void setParallelThreshold(int values){
+		parallel_threshold = values;
+	}
+
+	/* ******************************************************************************
+	 *  						ROWS			                                    *
+	 * ******************************************************************************/
+
+	public static void forEachByteRow(IplImage im, final ByteRowKernel kernel){
+		checkDepth(im, PixelDepth.IPL_DEPTH_8U, PixelDepth.IPL_DEPTH_8S);
+		final Region reg = new Region(im);
+		// detach from snapshots once here rather than racing to do it in the bands
+		im.beforeWrite();
+		execute(reg, new Rows() {
+			@Override
+			void run(int from, int to) {
+				byte[] row = new byte[reg.elements];
+				for(int y=from; y<to; y++){
+					reg.image.readData(reg.row(y), row, 0, row.length);
+					kernel.processRow(y, row);
+					reg.image.writeData(reg.row(y), row, 0, row.length);
+				}
+			}
+		});
+	}
+
+	public static void forEachShortRow(IplImage im, final ShortRowKernel kernel){
+		checkDepth(im, PixelDepth.IPL_DEPTH_16U, PixelDepth.IPL_DEPTH_16S);
+		final Region reg = new Region(im);
+		// detach from snapshots once here rather than racing to do it in the bands
+		im.beforeWrite();
+		execute(reg, new Rows() {
+			@Override
+			void run(int from, int to) {
+				short[] row = new short[reg.elements];
+				for(int y=from; y<to; y++){
+					reg.image.readData(reg.row(y), row, 0, row.length);
+					kernel.processRow(y, row);
+					reg.image.writeData(reg.row(y), row, 0, row.length);
+				}
+			}
+		});
+	}
+
+	public static void forEachFloatRow(IplImage im, final FloatRowKernel kernel){
+		checkDepth(im, PixelDepth.IPL_DEPTH_32F, null);
+		final Region reg = new Region(im);
+		// detach from snapshots once here rather than racing to do it in the bands
+		im.beforeWrite();
+		execute(reg, new Rows() {
+			@Override
+			void run(int from, int to) {
+				float[] row = new float[reg.elements];
+				for(int y=from; y<to; y++){
+					reg.image.readData(reg.row(y), row, 0, row.length);
+					kernel.processRow(y, row);
+					reg.image.writeData(reg.row(y), row, 0, row.length);
+				}
+			}
+		});
+	}
+
+	/* ******************************************************************************
+	 *  						PIXELS			                                    *
+	 * ******************************************************************************/
+
+	/**
+	 * Replaces every value of the image with the result of the kernel.
+	 */
+	public static void mapBytes(IplImage im, ByteKernel kernel){
+		mapBytes(im, im, kernel);
+	}
+
+	/**
+	 * Replaces every value of the image with the result of the kernel.
+	 */
+	public static void mapShorts(IplImage im, ShortKernel kernel){
+		mapShorts(im, im, kernel);
+	}
+
+	/**
+	 * Replaces every value of the image with the result of the kernel.
+	 */
+	public static void mapFloats(IplImage im, FloatKernel kernel){
+		mapFloats(im, im, kernel);
+	}
+
+	/**
+	 * Writes the kernel result for every value of <code>src</code> to <code>dst</code>. Both images must have the
+	 * same depth, number of channels and (ROI) size, src and dst may be the same image.
+	 */
+	public static void mapBytes(IplImage src, IplImage dst, final ByteKernel kernel){
+		checkDepth(src, PixelDepth.IPL_DEPTH_8U, PixelDepth.IPL_DEPTH_8S);
+		final Region in = new Region(src);
+		final Region out = new Region(dst);
+		checkMatch(src, in, dst, out);
+		dst.beforeWrite();
+		final boolean signed = src.getPixelDepth() == PixelDepth.IPL_DEPTH_8S;
+		execute(in, new Rows() {
+			@Override
+			void run(int from, int to) {
+				byte[] row = new byte[in.elements];
+				for(int y=from; y<to; y++){
+					in.image.readData(in.row(y), row, 0, row.length);
+					if( signed ){
+						for(int i=0; i<row.length; i++){
+							int v = kernel.apply(row[i]);
+							row[i] = (byte) (v < -128 ? -128 : v > 127 ? 127 : v);
+						}
+					}
+					else{
+						for(int i=0; i<row.length; i++){
+							int v = kernel.apply(row[i] & 0xff);
+							row[i] = (byte) (v < 0 ? 0 : v > 255 ? 255 : v);
+						}
+					}
+					out.image.writeData(out.row(y), row, 0, row.length);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes the kernel result for every value of <code>src</code> to <code>dst</code>. Both images must have the
+	 * same depth, number of channels and (ROI) size, src and dst may be the same image.
+	 */
+	public static void mapShorts(IplImage src, IplImage dst, final ShortKernel kernel){
+		checkDepth(src, PixelDepth.IPL_DEPTH_16U, PixelDepth.IPL_DEPTH_16S);
+		final Region in = new Region(src);
+		final Region out = new Region(dst);
+		checkMatch(src, in, dst, out);
+		dst.beforeWrite();
+		final boolean signed = src.getPixelDepth() == PixelDepth.IPL_DEPTH_16S;
+		execute(in, new Rows() {
+			@Override
+			void run(int from, int to) {
+				short[] row = new short[in.elements];
+				for(int y=from; y<to; y++){
+					in.image.readData(in.row(y), row, 0, row.length);
+					if( signed ){
+						for(int i=0; i<row.length; i++){
+							int v = kernel.apply(row[i]);
+							row[i] = (short) (v < -32768 ? -32768 : v > 32767 ? 32767 : v);
+						}
+					}
+					else{
+						for(int i=0; i<row.length; i++){
+							int v = kernel.apply(row[i] & 0xffff);
+							row[i] = (short) (v < 0 ? 0 : v > 65535 ? 65535 : v);
+						}
+					}
+					out.image.writeData(out.row(y), row, 0, row.length);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes the kernel result for every value of <code>src</code> to <code>dst</code>. Both images must have the
+	 * same depth, number of channels and (ROI) size, src and dst may be the same image.
+	 */
+	public static void mapFloats(IplImage src, IplImage dst, final FloatKernel kernel){
+		checkDepth(src, PixelDepth.IPL_DEPTH_32F, null);
+		final Region in = new Region(src);
+		final Region out = new Region(dst);
+		checkMatch(src, in, dst, out);
+		dst.beforeWrite();
+		execute(in, new Rows() {
+			@Override
+			void run(int from, int to) {
+				float[] row = new float[in.elements];
+				for(int y=from; y<to; y++){
+					in.image.readData(in.row(y), row, 0, row.length);
+					for(int i=0; i<row.length; i++){
+						row[i] = kernel.apply(row[i]);
+					}
+					out.image.writeData(out.row(y), row, 0, row.length);
+				}
+			}
+		});
+	}
+
+	/* ******************************************************************************
+	 *  						EXECUTION			                                *
+	 * ******************************************************************************/
+
+	/**
+	 * The pixel memory of the ROI of an image, resolved once per call
+	 */
+	static final class Region {
+		final IplImage image;
+		final long start;
+		final int step, width, height, elements;
+
+		Region(IplImage im){
+			Rectangle r = im.regionBounds();
+			int channels = im.getNumberOfChannels();
+			image = im;
+			step = im.getWidthStep();
+			width = r.width;
+			height = r.height;
+			elements = r.width * channels;
+			start = (long) r.y * step + (long) r.x * channels * im.getPixelDepth().getBytesPerPixel();
+		}
+
+		long row(int y){
+			return start + (long) y * step;
+		}
+	}
+
+	/**
+	 * A body that processes the rows [from, to)
+	 */
+	static abstract class Rows {
+		abstract void run(int from, int to);
+	}
+
+	private static final class RowTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Rows rows;
+		private final int from, to, grain;
+
+		RowTask(Rows rows, int from, int to, int grain){
+			this.rows = rows;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if( to - from <= grain ){
+				rows.run(from, to);
+			}
+			else{
+				int mid = (from + to) >>> 1;
+				invokeAll(new RowTask(rows, from, mid, grain), new RowTask(rows, mid, to, grain));
+			}
+		}
+	}
+
+	/**
+	 * Runs the rows of the region on the calling thread, or split into bands on the shared pool if the
+	 * region is larger than the parallel threshold.
+	 */
+	static void execute(Region reg, Rows rows){
+		execute(reg, rows, parallel_threshold);
+	}
+
+	/**
+	 * Same as {@link #execute(Region, Rows)} with another threshold, in values of the region.
+	 */
+	static void execute(Region reg, Rows rows, int threshold){
+		execute(reg.height, (long) reg.height * reg.elements, rows, threshold);
+	}
+
+	/**
+	 * Runs the units [0, units) of a body that splits its work into units of its own, such as blocks of
+	 * rows, in the same way as rows. values is the total number of values the units cover.
+	 */
+	static void execute(int units, long values, Rows rows, int threshold){
+		if( units < 2 || values < threshold ){
+			rows.run(0, units);
+			return;
+		}
+		ForkJoinPool pool = PoolHolder.POOL;
+		if( pool.getParallelism() < 2 ){
+			rows.run(0, units);
+			return;
+		}
+		// a few bands per worker so uneven rows still balance out
+		int grain = Math.max(1, units / (pool.getParallelism() * 4));
+		pool.invoke(new RowTask(rows, 0, units, grain));
+	}
+
+	private static void checkDepth(IplImage im, PixelDepth depth, PixelDepth other){
+		if( im.getPixelDepth() != depth && im.getPixelDepth() != other ){
+			throw new UnsupportedOperationException("Operation only available for " +
+					"images of depth " + depth.toString() + (other == null ? "" : " or " + other.toString()));
+		}
+	}
+
+	private static void checkMatch(IplImage src, Region in, IplImage dst, Region out){
+		if( src.getPixelDepth() != dst.getPixelDepth() || src.getNumberOfChannels() != dst.getNumberOfChannels() ||
+				in.width != out.width || in.height != out.height ){
+			throw new IllegalArgumentException("Source and destination images must have the same depth, channels and size");
+		}
+	}
+}
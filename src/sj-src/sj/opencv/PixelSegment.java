@@ -0,0 +1,288 @@
+/* Description and License
+ * A Java library that wraps the functionality of the native image 
+ * processing library OpenCV
+ *
+ * (c) Sigurdur Orn Adalgeirsson (siggi@alum.mit.edu)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+ 
+package sj.opencv;
+
+import java.nio.ByteBuffer;
+
+import sj.opencv.Constants.PixelDepth;
+
+import com.sun.jna.Pointer;
+
+/**
+ * Long addressed access to the pixel memory of an image, obtained from {@link IplImage#segment()}.
+ * Unlike the ByteBuffer of an image it is not limited to 2GB and every access is checked against
+ * the size of the image data only, so loops over it stay cheap.
+ * <p>
+ * Offsets are in bytes from the first pixel of the image (ignoring the ROI), {@link #offsetOf(int, int, int)}
+ * computes the offset of a value. Values are read and written in native byte order.
+ * A segment keeps its image reachable, but it must not be used after the image has been deallocated.
+ * Writes follow the copy-on-write rules of {@link IplImage#snapshot()}: they throw for snapshots and
+ * give an image with open snapshots pixels of its own first.
+ */
+public final class PixelSegment {
+
+	private final IplImage image;
+	private final long byte_size;
+	private final PixelDepth depth;
+	private final int width_step, channels, bytes_per_value;
+
+	PixelSegment(IplImage image, long byte_size){
+		this.image = image;
+		this.byte_size = byte_size;
+		this.depth = image.getPixelDepth();
+		this.width_step = image.getWidthStep();
+		this.channels = image.getNumberOfChannels();
+		this.bytes_per_value = depth.getBytesPerPixel();
+	}
+
+	/**
+	 * @return the image this segment belongs to
+	 */
+	public IplImage getImage(){
+		return image;
+	}
+
+	/**
+	 * @return the size of the pixel memory in bytes, from the first value of the first row to the last
+	 * value of the last row
+	 */
+	public long byteSize(){
+		return byte_size;
+	}
+
+	public PixelDepth getPixelDepth(){
+		return depth;
+	}
+
+	/**
+	 * @return the byte offset of channel <code>c</code> of pixel (x, y)
+	 */
+	public long offsetOf(int x, int y, int c){
+		return (long) y * width_step + ((long) x * channels + c) * bytes_per_value;
+	}
+
+	/* ******************************************************************************
+	 *  						VALUES			                                    *
+	 * ******************************************************************************/
+
+	public byte getByte(long offset){
+		check(offset, 1);
+		return address().getByte(offset);
+	}
+
+	public int getUnsignedByte(long offset){
+		check(offset, 1);
+		return address().getByte(offset) & 0xff;
+	}
+
+	public void setByte(long offset, byte value){
+		check(offset, 1);
+		writeAddress().setByte(offset, value);
+	}
+
+	public short getShort(long offset){
+		check(offset, 2);
+		return address().getShort(offset);
+	}
+
+	public int getUnsignedShort(long offset){
+		check(offset, 2);
+		return address().getShort(offset) & 0xffff;
+	}
+
+	public void setShort(long offset, short value){
+		check(offset, 2);
+		writeAddress().setShort(offset, value);
+	}
+
+	public int getInt(long offset){
+		check(offset, 4);
+		return address().getInt(offset);
+	}
+
+	public void setInt(long offset, int value){
+		check(offset, 4);
+		writeAddress().setInt(offset, value);
+	}
+
+	public float getFloat(long offset){
+		check(offset, 4);
+		return address().getFloat(offset);
+	}
+
+	public void setFloat(long offset, float value){
+		check(offset, 4);
+		writeAddress().setFloat(offset, value);
+	}
+
+	public double getDouble(long offset){
+		check(offset, 8);
+		return address().getDouble(offset);
+	}
+
+	public void setDouble(long offset, double value){
+		check(offset, 8);
+		writeAddress().setDouble(offset, value);
+	}
+
+	/**
+	 * Reads the value at the offset according to the depth of the image, 8U and 16U values are unsigned.
+	 */
+	public double get(long offset){
+		switch( depth ){
+		case IPL_DEPTH_8U: return getUnsignedByte(offset);
+		case IPL_DEPTH_8S: return getByte(offset);
+		case IPL_DEPTH_16U: return getUnsignedShort(offset);
+		case IPL_DEPTH_16S: return getShort(offset);
+		case IPL_DEPTH_32S: return getInt(offset);
+		case IPL_DEPTH_32F: return getFloat(offset);
+		case IPL_DEPTH_64F: return getDouble(offset);
+		default: throw new UnsupportedOperationException("Unsupported depth " + depth);
+		}
+	}
+
+	/**
+	 * Writes the value at the offset according to the depth of the image, integer depths are rounded and saturated.
+	 */
+	public void set(long offset, double value){
+		switch( depth ){
+		case IPL_DEPTH_8U: setByte(offset, (byte) saturate(value, 0, 255)); break;
+		case IPL_DEPTH_8S: setByte(offset, (byte) saturate(value, Byte.MIN_VALUE, Byte.MAX_VALUE)); break;
+		case IPL_DEPTH_16U: setShort(offset, (short) saturate(value, 0, 65535)); break;
+		case IPL_DEPTH_16S: setShort(offset, (short) saturate(value, Short.MIN_VALUE, Short.MAX_VALUE)); break;
+		case IPL_DEPTH_32S: setInt(offset, (int) saturate(value, Integer.MIN_VALUE, Integer.MAX_VALUE)); break;
+		case IPL_DEPTH_32F: setFloat(offset, (float) value); break;
+		case IPL_DEPTH_64F: setDouble(offset, value); break;
+		default: throw new UnsupportedOperationException("Unsupported depth " + depth);
+		}
+	}
+
+	private static long saturate(double value, long min, long max){
+		long v = Math.round(value);
+		return v < min ? min : v > max ? max : v;
+	}
+
+	/* ******************************************************************************
+	 *  						BULK			                                    *
+	 * ******************************************************************************/
+
+	public void read(long offset, byte[] dst, int index, int length){
+		check(offset, length);
+		address().read(offset, dst, index, length);
+	}
+
+	public void write(long offset, byte[] src, int index, int length){
+		check(offset, length);
+		writeAddress().write(offset, src, index, length);
+	}
+
+	public void read(long offset, short[] dst, int index, int length){
+		check(offset, (long) length * 2);
+		address().read(offset, dst, index, length);
+	}
+
+	public void write(long offset, short[] src, int index, int length){
+		check(offset, (long) length * 2);
+		writeAddress().write(offset, src, index, length);
+	}
+
+	public void read(long offset, float[] dst, int index, int length){
+		check(offset, (long) length * 4);
+		address().read(offset, dst, index, length);
+	}
+
+	public void write(long offset, float[] src, int index, int length){
+		check(offset, (long) length * 4);
+		writeAddress().write(offset, src, index, length);
+	}
+
+	public void read(long offset, double[] dst, int index, int length){
+		check(offset, (long) length * 8);
+		address().read(offset, dst, index, length);
+	}
+
+	public void write(long offset, double[] src, int index, int length){
+		check(offset, (long) length * 8);
+		writeAddress().write(offset, src, index, length);
+	}
+
+	/**
+	 * Copies bytes from this segment into another one (or another part of this one, overlapping
+	 * ranges are handled). The copy is done natively in chunks of at most 1GB.
+	 */
+	public void copyTo(long offset, PixelSegment dst, long dst_offset, long bytes){
+		check(offset, bytes);
+		dst.check(dst_offset, bytes);
+		long chunk = 1L << 30;
+		Pointer to_address = dst.writeAddress();
+		Pointer from_address = address();
+		// copy from the end when copying forwards within overlapping memory
+		boolean backwards = Pointer.nativeValue(to_address) + dst_offset > Pointer.nativeValue(from_address) + offset;
+		for(long done = 0; done < bytes; done += chunk){
+			long n = Math.min(chunk, bytes - done);
+			long pos = backwards ? bytes - done - n : done;
+			ByteBuffer from = from_address.getByteBuffer(offset + pos, n);
+			ByteBuffer to = to_address.getByteBuffer(dst_offset + pos, n);
+			to.put(from);
+		}
+	}
+
+	/**
+	 * Sets <code>bytes</code> bytes starting at the offset to the value.
+	 */
+	public void fill(long offset, long bytes, byte value){
+		check(offset, bytes);
+		writeAddress().setMemory(offset, bytes, value);
+	}
+
+	/**
+	 * Sets every pixel value of the image to zero, leaving the memory between rows alone
+	 * (which for a view belongs to its parent).
+	 */
+	public void clear(){
+		long row_bytes = (long) image.getWidth() * channels * bytes_per_value;
+		int height = image.getHeight();
+		Pointer to = writeAddress();
+		for(int y=0; y<height; y++){
+			to.setMemory((long) y * width_step, row_bytes, (byte) 0);
+		}
+	}
+
+	/**
+	 * The pixels are looked up on every access since copy-on-write can move them
+	 */
+	private Pointer address(){
+		return image.getDataPointer();
+	}
+
+	private Pointer writeAddress(){
+		image.beforeWrite();
+		return image.getDataPointer();
+	}
+
+	private void check(long offset, long bytes){
+		if( offset < 0 || bytes < 0 || offset > byte_size - bytes ){
+			throw new IndexOutOfBoundsException("Access of " + bytes + " bytes at offset " + offset + " is outside of the segment of " + byte_size + " bytes");
+		}
+	}
+}
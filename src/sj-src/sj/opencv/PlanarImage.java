@@ -0,0 +1,247 @@
+/* Description and License
+ * A Java library that wraps the functionality of the native image 
+ * processing library OpenCV
+ *
+ * (c) Sigurdur Orn Adalgeirsson (siggi@alum.mit.edu)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+ 
+package sj.opencv;
+
+import java.awt.Rectangle;
+
+import sj.opencv.Constants.ColorModel;
+import sj.opencv.Constants.PixelDepth;
+import sj.opencv.PixelKernels.Region;
+import sj.opencv.PixelKernels.Rows;
+
+/**
+ * An image stored channel by channel: every channel is a contiguous plane, and all planes are
+ * stacked in one native allocation. {@link #channel(int)} returns a single channel IplImage view of a
+ * plane, which works with every CxCore and ImgProc function and with {@link PixelKernels} without copying.
+ * <pre>
+ * PlanarImage hsv_planes = new PlanarImage(w, h, PixelDepth.IPL_DEPTH_8U, 3);
+ * ...
+ * hsv_planes.deinterleave(hsv);
+ * CxCore.inRangeS(hsv_planes.channel(0), lower, upper, mask);
+ * </pre>
+ * A planar image is reused from frame to frame, unlike {@link CxCore#split(IplImage, IplImage, IplImage, IplImage, IplImage)}
+ * into freshly created images. Release it with {@link #close()}.
+ */
+public class PlanarImage implements AutoCloseable {
+
+	private final int width, height, channels;
+	private final PixelDepth depth;
+	private final IplImage planes;
+	private final IplImage[] channel_views;
+
+	/**
+	 * @param channels between 1 and 4
+	 */
+	public PlanarImage(int width, int height, PixelDepth depth, int channels){
+		if( channels < 1 || channels > 4 ){
+			throw new IllegalArgumentException("A planar image has 1 to 4 channels, not " + channels);
+		}
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.channels = channels;
+
+		// the planes are stacked vertically in one single channel image
+		planes = CxCore.createImage(width, height * channels, depth, ColorModel.GENERIC_1_CHANNEL);
+		channel_views = new IplImage[channels];
+		for(int c=0; c<channels; c++){
+			channel_views[c] = planes.view(new Rectangle(0, c * height, width, height));
+		}
+		// owned by this object rather than by the scope of the caller
+		ImageScope.untrack(planes);
+		for (IplImage view : channel_views) {
+			ImageScope.untrack(view);
+		}
+	}
+
+	public int getWidth(){
+		return width;
+	}
+
+	public int getHeight(){
+		return height;
+	}
+
+	public int getNumberOfChannels(){
+		return channels;
+	}
+
+	public PixelDepth getPixelDepth(){
+		return depth;
+	}
+
+	/**
+	 * @return a single channel view of plane c, the same image on every call
+	 */
+	public IplImage channel(int c){
+		return channel_views[c];
+	}
+
+	/**
+	 * @return all planes as one single channel image that is <code>channels</code> times as high as this image
+	 */
+	public IplImage getPlanes(){
+		return planes;
+	}
+
+	/**
+	 * Copies the channels of an interleaved image into the planes in one pass.
+	 *
+	 * @param src an image of the same size, depth and number of channels
+	 */
+	public void deinterleave(IplImage src){
+		checkFormat(src);
+		if( JavaOps.use(src, null) ){
+			transfer(src, true);
+		}
+		else if( channels == 1 ){
+			CxCore.copy(src, channel_views[0]);
+		}
+		else{
+			CxCore.split(src, view(0), view(1), view(2), view(3));
+		}
+	}
+
+	/**
+	 * Copies the planes into the channels of an interleaved image in one pass.
+	 *
+	 * @param dst an image of the same size, depth and number of channels
+	 */
+	public void interleave(IplImage dst){
+		checkFormat(dst);
+		if( JavaOps.use(dst, null) ){
+			transfer(dst, false);
+		}
+		else if( channels == 1 ){
+			CxCore.copy(channel_views[0], dst);
+		}
+		else{
+			CxCore.merge(view(0), view(1), view(2), view(3), dst);
+		}
+	}
+
+	/**
+	 * Releases the planes, the channel views must not be used afterwards
+	 */
+	@Override
+	public void close(){
+		for (IplImage view : channel_views) {
+			view.deAllocate();
+		}
+		planes.deAllocate();
+	}
+
+	private IplImage view(int c){
+		return c < channels ? channel_views[c] : null;
+	}
+
+	private void checkFormat(IplImage im){
+		if( im.getWidth() != width || im.getHeight() != height || im.getPixelDepth() != depth || im.getNumberOfChannels() != channels ){
+			throw new IllegalArgumentException("Image must be " + width + "x" + height + " with depth " + depth + " and " + channels + " channel(s)");
+		}
+	}
+
+	/**
+	 * The java version of split and merge, one pass over the rows of the interleaved image
+	 */
+	private void transfer(IplImage interleaved, final boolean split){
+		final Region mixed = new Region(interleaved);
+		final Region[] plane = new Region[channels];
+		for(int c=0; c<channels; c++){
+			plane[c] = new Region(channel_views[c]);
+		}
+		if( mixed.width != width || mixed.height != height ){
+			throw new IllegalArgumentException("The ROI of the image must cover the whole image");
+		}
+		if( split ){
+			for(int c=0; c<channels; c++) channel_views[c].beforeWrite();
+		}
+		else{
+			interleaved.beforeWrite();
+		}
+
+		PixelKernels.execute(mixed, new Rows() {
+			@Override
+			void run(int from, int to) {
+				int n = mixed.elements;
+				if( depth == PixelDepth.IPL_DEPTH_8U ){
+					byte[] row = new byte[n], p = new byte[width];
+					for(int y=from; y<to; y++){
+						if( split ){
+							mixed.image.readData(mixed.row(y), row, 0, n);
+							for(int c=0; c<channels; c++){
+								for(int x=0, i=c; x<width; x++, i+=channels) p[x] = row[i];
+								plane[c].image.writeData(plane[c].row(y), p, 0, width);
+							}
+						}
+						else{
+							for(int c=0; c<channels; c++){
+								plane[c].image.readData(plane[c].row(y), p, 0, width);
+								for(int x=0, i=c; x<width; x++, i+=channels) row[i] = p[x];
+							}
+							mixed.image.writeData(mixed.row(y), row, 0, n);
+						}
+					}
+				}
+				else if( depth == PixelDepth.IPL_DEPTH_16U ){
+					short[] row = new short[n], p = new short[width];
+					for(int y=from; y<to; y++){
+						if( split ){
+							mixed.image.readData(mixed.row(y), row, 0, n);
+							for(int c=0; c<channels; c++){
+								for(int x=0, i=c; x<width; x++, i+=channels) p[x] = row[i];
+								plane[c].image.writeData(plane[c].row(y), p, 0, width);
+							}
+						}
+						else{
+							for(int c=0; c<channels; c++){
+								plane[c].image.readData(plane[c].row(y), p, 0, width);
+								for(int x=0, i=c; x<width; x++, i+=channels) row[i] = p[x];
+							}
+							mixed.image.writeData(mixed.row(y), row, 0, n);
+						}
+					}
+				}
+				else{
+					float[] row = new float[n], p = new float[width];
+					for(int y=from; y<to; y++){
+						if( split ){
+							mixed.image.readData(mixed.row(y), row, 0, n);
+							for(int c=0; c<channels; c++){
+								for(int x=0, i=c; x<width; x++, i+=channels) p[x] = row[i];
+								plane[c].image.writeData(plane[c].row(y), p, 0, width);
+							}
+						}
+						else{
+							for(int c=0; c<channels; c++){
+								plane[c].image.readData(plane[c].row(y), p, 0, width);
+								for(int x=0, i=c; x<width; x++, i+=channels) row[i] = p[x];
+							}
+							mixed.image.writeData(mixed.row(y), row, 0, n);
+						}
+					}
+				}
+			}
+		});
+	}
+}
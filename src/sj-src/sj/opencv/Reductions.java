@@ -0,0 +1,384 @@
+/* Description and License
+ * A Java library that wraps the functionality of the native image 
+ * processing library OpenCV
+ *
+ * (c) Sigurdur Orn Adalgeirsson (siggi@alum.mit.edu)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+ 
+package sj.opencv;
+
+import java.util.Arrays;
+
+import sj.opencv.Constants.PixelDepth;
+import sj.opencv.PixelKernels.Region;
+import sj.opencv.PixelKernels.Rows;
+
+/**
+ * Computes the sum, sum of squares, minimum and maximum with their locations and the number of non
+ * zero values of every channel of an image in one pass. The results go into primitive arrays of a
+ * {@link Result} that can be reused from frame to frame. Only pixels with a non zero mask value are
+ * counted if a mask is given, and only the ROI of the image and of the mask is read.
+ * <pre>
+ * Reductions.Result stats = new Reductions.Result(1);
+ * ...
+ * Reductions.compute(gray, mask, stats);
+ * double mean = stats.mean(0), deviation = stats.stdDev(0);
+ * </pre>
+ * Images are reduced in blocks of rows of a fixed size, and the block results are merged in row order, so
+ * floating point sums are the same whether the blocks of large images run in parallel on the pool of
+ * {@link PixelKernels} (see {@link PixelKernels#getParallelThreshold()}) or not, and however many threads
+ * there are. Minima and maxima report their first location like <code>cvMinMaxLoc</code>.
+ * The convenience methods keep their result per thread, so only {@link #compute(IplImage, IplImage, Result)}
+ * with a new Result allocates per call.
+ * <p>
+ * Supported depths are <code>IPL_DEPTH_8U</code>, <code>IPL_DEPTH_8S</code>, <code>IPL_DEPTH_16U</code>,
+ * <code>IPL_DEPTH_16S</code>, <code>IPL_DEPTH_32F</code> and <code>IPL_DEPTH_64F</code>.
+ */
+public final class Reductions {
+
+	/**
+	 * The statistics of one image, one entry per channel. Locations are stored as x,y pairs in ROI
+	 * coordinates, <code>minLoc[2*c]</code> and <code>minLoc[2*c+1]</code> for channel c.
+	 * If no pixel was counted minima and maxima are 0 and their locations -1. A result must not be
+	 * passed to two computations running at the same time.
+	 */
+	public static final class Result {
+		// block results of the last compute, kept for the next one
+		private Result[] parts;
+
+		public final int channels;
+		public final double[] sum, sumSq, min, max;
+		public final int[] minLoc, maxLoc;
+		public final long[] nonZero;
+		/** number of pixels that were counted */
+		public long count;
+
+		public Result(int channels){
+			this.channels = channels;
+			sum = new double[channels];
+			sumSq = new double[channels];
+			min = new double[channels];
+			max = new double[channels];
+			minLoc = new int[2 * channels];
+			maxLoc = new int[2 * channels];
+			nonZero = new long[channels];
+			reset();
+		}
+
+		public double mean(int c){
+			return count == 0 ? 0 : sum[c] / count;
+		}
+
+		/**
+		 * @return the standard deviation of channel c over the counted pixels, like cvAvgSdv
+		 */
+		public double stdDev(int c){
+			if( count == 0 ) return 0;
+			double mean = sum[c] / count;
+			return Math.sqrt(Math.max(0, sumSq[c] / count - mean * mean));
+		}
+
+		void reset(){
+			count = 0;
+			for(int c=0; c<channels; c++){
+				sum[c] = 0;
+				sumSq[c] = 0;
+				min[c] = Double.POSITIVE_INFINITY;
+				max[c] = Double.NEGATIVE_INFINITY;
+				nonZero[c] = 0;
+			}
+			Arrays.fill(minLoc, -1);
+			Arrays.fill(maxLoc, -1);
+		}
+
+		/**
+		 * Adds the partial result of rows that come after the rows of this result
+		 */
+		void merge(Result o){
+			count += o.count;
+			for(int c=0; c<channels; c++){
+				sum[c] += o.sum[c];
+				sumSq[c] += o.sumSq[c];
+				nonZero[c] += o.nonZero[c];
+				if( o.min[c] < min[c] ){
+					min[c] = o.min[c];
+					minLoc[2*c] = o.minLoc[2*c];
+					minLoc[2*c+1] = o.minLoc[2*c+1];
+				}
+				if( o.max[c] > max[c] ){
+					max[c] = o.max[c];
+					maxLoc[2*c] = o.maxLoc[2*c];
+					maxLoc[2*c+1] = o.maxLoc[2*c+1];
+				}
+			}
+		}
+
+		/**
+		 * @return n partial results with the channels of this one
+		 */
+		Result[] parts(int n){
+			if( parts == null || parts.length < n ){
+				Result[] grown = new Result[n];
+				if( parts != null ) System.arraycopy(parts, 0, grown, 0, parts.length);
+				parts = grown;
+			}
+			for(int i=0; i<n; i++){
+				if( parts[i] == null ) parts[i] = new Result(channels);
+			}
+			return parts;
+		}
+
+		void finish(){
+			for(int c=0; c<channels; c++){
+				if( minLoc[2*c] < 0 ) min[c] = 0;
+				if( maxLoc[2*c] < 0 ) max[c] = 0;
+			}
+		}
+	}
+
+	// values per block of rows, independent of the number of threads so sums are reproducible
+	private static final int BLOCK_VALUES = 1 << 14;
+
+	private static final ThreadLocal<Result[]> scratch = new ThreadLocal<Result[]>(){
+		@Override
+		protected Result[] initialValue() {
+			return new Result[4];
+		}
+	};
+
+	private Reductions(){
+	}
+
+	/**
+	 * @return the result of this thread for images with that many channels
+	 */
+	private static Result scratch(int channels){
+		Result[] results = scratch.get();
+		if( channels > results.length ) return new Result(channels);
+		Result r = results[channels - 1];
+		if( r == null ){
+			r = new Result(channels);
+			results[channels - 1] = r;
+		}
+		return r;
+	}
+
+	/* ******************************************************************************
+	 *  						REDUCTIONS			                                *
+	 * ******************************************************************************/
+
+	/**
+	 * Computes all statistics of im in one pass.
+	 *
+	 * @param mask optional 8 bit single channel mask of the same (ROI) size, null to count every pixel
+	 * @param result where the statistics are stored, must have as many channels as im, null to create one
+	 * @return result
+	 */
+	public static Result compute(IplImage im, IplImage mask, Result result){
+		final int channels = im.getNumberOfChannels();
+		if( result == null ){
+			result = new Result(channels);
+		}
+		else if( result.channels != channels ){
+			throw new IllegalArgumentException("Result has " + result.channels + " channel(s), image has " + channels);
+		}
+		final PixelDepth depth = im.getPixelDepth();
+		checkDepth(depth);
+
+		final Region reg = new Region(im);
+		final Region mask_reg = mask == null ? null : new Region(mask);
+		if( mask_reg != null && (mask.getPixelDepth() != PixelDepth.IPL_DEPTH_8U || mask.getNumberOfChannels() != 1 ||
+				mask_reg.width != reg.width || mask_reg.height != reg.height) ){
+			throw new IllegalArgumentException("Mask must be an 8 bit single channel image of the same size as the image");
+		}
+
+		// one partial per block of rows, merged in row order
+		final int block = Math.max(1, BLOCK_VALUES / Math.max(1, reg.elements));
+		final int blocks = (reg.height + block - 1) / block;
+		final Result[] partials = result.parts(blocks);
+		PixelKernels.execute(blocks, (long) reg.height * reg.elements, new Rows() {
+			@Override
+			void run(int from, int to) {
+				double[] values = new double[reg.elements];
+				Object raw = newRow(depth, reg.elements);
+				byte[] mask_row = mask_reg == null ? null : new byte[reg.width];
+				for(int b=from; b<to; b++){
+					Result part = partials[b];
+					part.reset();
+					for(int y=b*block, end=Math.min(reg.height, y+block); y<end; y++){
+						readRow(reg, y, depth, raw, values);
+						if( mask_row != null ){
+							mask_reg.image.readData(mask_reg.row(y), mask_row, 0, reg.width);
+						}
+						reduceRow(part, y, values, mask_row);
+					}
+				}
+			}
+		}, PixelKernels.getParallelThreshold());
+
+		result.reset();
+		for(int b=0; b<blocks; b++){
+			result.merge(partials[b]);
+		}
+		result.finish();
+		return result;
+	}
+
+	/**
+	 * @param sum receives the sum of every channel
+	 */
+	public static void sum(IplImage im, IplImage mask, double[] sum){
+		Result r = compute(im, mask, scratch(im.getNumberOfChannels()));
+		System.arraycopy(r.sum, 0, sum, 0, r.channels);
+	}
+
+	/**
+	 * @param mean receives the mean of every channel
+	 * @param std_dev receives the standard deviation of every channel, may be null
+	 */
+	public static void meanStdDev(IplImage im, IplImage mask, double[] mean, double[] std_dev){
+		Result r = compute(im, mask, scratch(im.getNumberOfChannels()));
+		for(int c=0; c<r.channels; c++){
+			mean[c] = r.mean(c);
+			if( std_dev != null ) std_dev[c] = r.stdDev(c);
+		}
+	}
+
+	/**
+	 * @param min_max receives minimum and maximum of every channel, <code>{min0, max0, min1, max1, ...}</code>
+	 * @param locations receives their locations, <code>{min_x0, min_y0, max_x0, max_y0, ...}</code>, may be null
+	 */
+	public static void minMaxLoc(IplImage im, IplImage mask, double[] min_max, int[] locations){
+		Result r = compute(im, mask, scratch(im.getNumberOfChannels()));
+		for(int c=0; c<r.channels; c++){
+			min_max[2*c] = r.min[c];
+			min_max[2*c+1] = r.max[c];
+			if( locations != null ){
+				locations[4*c] = r.minLoc[2*c];
+				locations[4*c+1] = r.minLoc[2*c+1];
+				locations[4*c+2] = r.maxLoc[2*c];
+				locations[4*c+3] = r.maxLoc[2*c+1];
+			}
+		}
+	}
+
+	/**
+	 * @return the number of non zero values over all channels of the counted pixels
+	 */
+	public static long countNonZero(IplImage im, IplImage mask){
+		Result r = compute(im, mask, scratch(im.getNumberOfChannels()));
+		long n = 0;
+		for(long c : r.nonZero) n += c;
+		return n;
+	}
+
+	/* ******************************************************************************
+	 *  						ROWS			                                    *
+	 * ******************************************************************************/
+
+	private static void reduceRow(Result r, int y, double[] values, byte[] mask_row){
+		int channels = r.channels;
+		int width = values.length / channels;
+		double[] sum = r.sum, sq = r.sumSq, min = r.min, max = r.max;
+		long[] non_zero = r.nonZero;
+		long count = 0;
+		for(int x=0, i=0; x<width; x++, i+=channels){
+			if( mask_row != null && mask_row[x] == 0 ) continue;
+			count++;
+			for(int c=0; c<channels; c++){
+				double v = values[i+c];
+				sum[c] += v;
+				sq[c] += v * v;
+				if( v != 0 ) non_zero[c]++;
+				if( v < min[c] ){
+					min[c] = v;
+					r.minLoc[2*c] = x;
+					r.minLoc[2*c+1] = y;
+				}
+				if( v > max[c] ){
+					max[c] = v;
+					r.maxLoc[2*c] = x;
+					r.maxLoc[2*c+1] = y;
+				}
+			}
+		}
+		r.count += count;
+	}
+
+	/**
+	 * @return a row buffer for {@link #readRow(Region, int, PixelDepth, Object, double[])}
+	 */
+	static Object newRow(PixelDepth depth, int n){
+		switch( depth ){
+		case IPL_DEPTH_8U:
+		case IPL_DEPTH_8S:	return new byte[n];
+		case IPL_DEPTH_16U:
+		case IPL_DEPTH_16S:	return new short[n];
+		case IPL_DEPTH_32F:	return new float[n];
+		default:			return null;
+		}
+	}
+
+	/**
+	 * Reads row y of the region into values, converting through the row buffer raw
+	 */
+	static void readRow(Region reg, int y, PixelDepth depth, Object raw, double[] values){
+		int n = values.length;
+		long offset = reg.row(y);
+		switch( depth ){
+		case IPL_DEPTH_8U: {
+			byte[] row = (byte[]) raw;
+			reg.image.readData(offset, row, 0, n);
+			for(int i=0; i<n; i++) values[i] = row[i] & 0xff;
+			break;
+		}
+		case IPL_DEPTH_8S: {
+			byte[] row = (byte[]) raw;
+			reg.image.readData(offset, row, 0, n);
+			for(int i=0; i<n; i++) values[i] = row[i];
+			break;
+		}
+		case IPL_DEPTH_16U: {
+			short[] row = (short[]) raw;
+			reg.image.readData(offset, row, 0, n);
+			for(int i=0; i<n; i++) values[i] = row[i] & 0xffff;
+			break;
+		}
+		case IPL_DEPTH_16S: {
+			short[] row = (short[]) raw;
+			reg.image.readData(offset, row, 0, n);
+			for(int i=0; i<n; i++) values[i] = row[i];
+			break;
+		}
+		case IPL_DEPTH_32F: {
+			float[] row = (float[]) raw;
+			reg.image.readData(offset, row, 0, n);
+			for(int i=0; i<n; i++) values[i] = row[i];
+			break;
+		}
+		default:
+			reg.image.readData(offset, values, 0, n);
+		}
+	}
+
+	private static void checkDepth(PixelDepth depth){
+		if( depth == PixelDepth.IPL_DEPTH_32S ){
+			throw new UnsupportedOperationException("Reductions are not available for images of depth " + depth);
+		}
+	}
+}
@@ -22,7 +22,7 @@
  
 package sj.opencv;
 
-import static sj.opencv.jna.JNAOpenCV.HIGHGUI;
+import static sj.opencv.jna.JNAOpenCV.Highgui.HIGHGUI;
 import sj.opencv.jna.highgui.HighguiLibrary;
 import sj.opencv.jna.highgui.HighguiLibrary.CvVideoWriter;
 
@@ -35,7 +35,7 @@ public class VideoWriter extends BasePointer {
 	private CvVideoWriter jnawriter;
 
 	protected VideoWriter(CvVideoWriter jnawriter) {
-		super(jnawriter.getPointer());
+		super(jnawriter.getPointer(), new Releaser(jnawriter));
 
 		this.jnawriter = jnawriter;
 		addToManagedPointerSet();
@@ -45,11 +45,18 @@ public class VideoWriter extends BasePointer {
 		return jnawriter;
 	}
 
-	@Override
-	protected void deAllocateNativeResource() {
-		if( jnawriter != null ){
+	private static class Releaser implements Runnable {
+		private final CvVideoWriter jnawriter;
+		Releaser(CvVideoWriter jnawriter){ this.jnawriter = jnawriter; }
+
+		@Override
+		public void run() {
 			HIGHGUI.cvReleaseVideoWriter( new HighguiLibrary.CvVideoWriter[]{ jnawriter } );
-			jnawriter = null;
 		}
 	}
+
+	@Override
+	protected void clearReferences() {
+		jnawriter = null;
+	}
 }
@@ -0,0 +1,333 @@
+/* Description and License
+ * A Java library that wraps the functionality of the native image 
+ * processing library OpenCV
+ *
+ * (c) Sigurdur Orn Adalgeirsson (siggi@alum.mit.edu)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+ 
+package sj.opencv.jna;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.ObjectName;
+
+import sj.opencv.jna.cxcore.JNAIplImage;
+import sj.opencv.jna.highgui.HighguiLibrary.CvArr;
+
+import com.sun.jna.FunctionMapper;
+import com.sun.jna.Library;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.Pointer;
+
+/**
+ * Records call counts, latency histograms and image sizes per native OpenCV function.
+ * <p>
+ * While the profiler is off the {@link JNAOpenCV} libraries are the plain JNA proxies and the direct
+ * mapped calls only read one volatile flag, so there is no measurable cost. Enabling it swaps in
+ * instrumented proxies. The profiler is controlled with {@link #setEnabled(boolean)}, the MXBean
+ * <code>sj.opencv:type=NativeCalls</code> or the system property <code>sj.opencv.profile=true</code>.
+ * With <code>sj.opencv.profile.dumpInterval</code> set to a number of seconds the report is printed
+ * to System.err periodically, see also {@link #startDump(long, PrintStream)}.
+ * <p>
+ * The image size of a call is taken from its first argument when that is an IplImage.
+ */
+public class CallProfiler {
+
+	/**
+	 * JMX view of the profiler
+	 */
+	public interface NativeCallsMXBean {
+		boolean isEnabled();
+		void setEnabled(boolean enabled);
+		Map<String, Long> getCallCounts();
+		Map<String, Long> getTotalNanos();
+		String getReport();
+		void reset();
+	}
+
+	/**
+	 * Swaps a library between its plain and instrumented version, implemented by the library holders
+	 */
+	interface Toggle {
+		void setInstrumented(boolean on);
+	}
+
+	// latency buckets: < 1us, < 2us, < 4us, ... the last one collects everything above
+	private static final int NR_BUCKETS = 20;
+
+	private static final class FunctionStats {
+		final String name;
+		final AtomicLong calls = new AtomicLong();
+		final AtomicLong nanos = new AtomicLong();
+		final AtomicLong max_nanos = new AtomicLong();
+		final AtomicLong image_calls = new AtomicLong();
+		final AtomicLong pixels = new AtomicLong();
+		final AtomicLong max_pixels = new AtomicLong();
+		final AtomicLongArray buckets = new AtomicLongArray(NR_BUCKETS);
+
+		FunctionStats(String name){
+			this.name = name;
+		}
+
+		/** @return the upper bound in microseconds of the bucket holding the given fraction of calls */
+		long percentileMicros(double fraction){
+			long total = 0;
+			for(int i=0; i<NR_BUCKETS; i++) total += buckets.get(i);
+			long needed = (long) Math.ceil(total * fraction), seen = 0;
+			for(int i=0; i<NR_BUCKETS; i++){
+				seen += buckets.get(i);
+				if( seen >= needed && seen > 0 ) return 1L << i;
+			}
+			return 1L << NR_BUCKETS;
+		}
+	}
+
+	private static volatile boolean enabled = false;
+	private static final ConcurrentHashMap<String, FunctionStats> stats = new ConcurrentHashMap<String, FunctionStats>();
+	private static final List<Toggle> toggles = new CopyOnWriteArrayList<Toggle>();
+	private static final int IPL_IMAGE_SIZE = new JNAIplImage().size();
+	private static Timer dump_timer;
+
+	static{
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new NativeCallsMXBean() {
+				public boolean isEnabled() { return CallProfiler.isEnabled(); }
+				public void setEnabled(boolean on) { CallProfiler.setEnabled(on); }
+				public Map<String, Long> getCallCounts() { return CallProfiler.getCallCounts(); }
+				public Map<String, Long> getTotalNanos() { return CallProfiler.getTotalNanos(); }
+				public String getReport() { return CallProfiler.getReport(); }
+				public void reset() { CallProfiler.reset(); }
+			}, new ObjectName("sj.opencv:type=NativeCalls"));
+		} catch (Exception e) {
+			// JMX is optional, the static methods still work
+			System.err.println("Could not register native call MXBean: "+e);
+		}
+
+		if( Boolean.getBoolean("sj.opencv.profile") ) setEnabled(true);
+		long interval = Long.getLong("sj.opencv.profile.dumpInterval", 0);
+		if( interval > 0 ) startDump(interval * 1000, System.err);
+	}
+
+	private CallProfiler(){
+	}
+
+	public static boolean isEnabled(){
+		return enabled;
+	}
+
+	public static synchronized void setEnabled(boolean on){
+		enabled = on;
+		for (Toggle toggle : toggles) {
+			toggle.setInstrumented(on);
+		}
+	}
+
+	static synchronized void addToggle(Toggle toggle){
+		toggles.add(toggle);
+		toggle.setInstrumented(enabled);
+	}
+
+	/**
+	 * @return a proxy of <code>library</code> that records every call
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> T instrument(final T library, Class<T> library_class){
+		return (T) Proxy.newProxyInstance(library_class.getClassLoader(), new Class<?>[]{library_class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				long start = System.nanoTime();
+				try {
+					return method.invoke(library, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				} finally {
+					// only typed image arguments are inspected, a raw Pointer could be any native object
+					Object first = args == null || args.length == 0 ? null : args[0];
+					record(method.getName(), start, first instanceof Pointer ? null : first);
+				}
+			}
+		});
+	}
+
+	/**
+	 * The direct mapped classes declare their natives as <code>n_cvFunction</code> behind a public
+	 * wrapper that reports to the {@link CallProfiler}, this library maps them to the OpenCV symbols.
+	 */
+	static NativeLibrary getDirectLibrary(String name){
+		Map<String, Object> options = new HashMap<String, Object>();
+		options.put(Library.OPTION_FUNCTION_MAPPER, new FunctionMapper() {
+			@Override
+			public String getFunctionName(NativeLibrary library, Method method) {
+				String name = method.getName();
+				return name.startsWith("n_") ? name.substring(2) : name;
+			}
+		});
+		return NativeLibrary.getInstance(name, options);
+	}
+
+	/**
+	 * Start of a call that doesn't go through a {@link JNAOpenCV} library (direct mapped functions, pipelines).
+	 * @return the start time, or 0 if the profiler is off
+	 */
+	public static long start(){
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * End of a direct mapped call started with {@link #start()}
+	 * @param first_argument the image the call works on, to count its pixels, or null. A Pointer must point
+	 * to an array header (CvArr*), other native objects must not be passed.
+	 */
+	public static void stop(long start, String function, Object first_argument){
+		if( start != 0 ) record(function, start, first_argument);
+	}
+
+	private static void record(String function, long start, Object first_argument){
+		long nanos = System.nanoTime() - start;
+
+		FunctionStats s = stats.get(function);
+		if( s == null ){
+			FunctionStats fresh = new FunctionStats(function);
+			s = stats.putIfAbsent(function, fresh);
+			if( s == null ) s = fresh;
+		}
+
+		s.calls.incrementAndGet();
+		s.nanos.addAndGet(nanos);
+		raise(s.max_nanos, nanos);
+		long micros = nanos / 1000;
+		s.buckets.incrementAndGet( Math.min(NR_BUCKETS-1, 64 - Long.numberOfLeadingZeros(micros)) );
+
+		long pixels = imagePixels(first_argument);
+		if( pixels > 0 ){
+			s.image_calls.incrementAndGet();
+			s.pixels.addAndGet(pixels);
+			raise(s.max_pixels, pixels);
+		}
+	}
+
+	/**
+	 * @return width*height if the argument is an IplImage header, 0 otherwise. Only array arguments are
+	 * read: JNAIplImage structures, CvArr pointers and plain Pointers, which only the direct mapped
+	 * functions pass and only for array arguments.
+	 */
+	private static long imagePixels(Object argument){
+		Pointer p = null;
+		if( argument instanceof Pointer ) p = (Pointer) argument;
+		else if( argument instanceof CvArr ) p = ((CvArr) argument).getPointer();
+		else if( argument instanceof JNAIplImage ) p = ((JNAIplImage) argument).getPointer();
+		if( p == null ) return 0;
+
+		// IplImage { int nSize; ... int width (offset 40); int height (offset 44); ... }
+		if( p.getInt(0) != IPL_IMAGE_SIZE ) return 0;
+		return (long) p.getInt(40) * p.getInt(44);
+	}
+
+	private static void raise(AtomicLong max, long value){
+		long current = max.get();
+		while( value > current && !max.compareAndSet(current, value) ){
+			current = max.get();
+		}
+	}
+
+	public static Map<String, Long> getCallCounts(){
+		Map<String, Long> out = new HashMap<String, Long>();
+		for (FunctionStats s : stats.values()) out.put(s.name, s.calls.get());
+		return out;
+	}
+
+	public static Map<String, Long> getTotalNanos(){
+		Map<String, Long> out = new HashMap<String, Long>();
+		for (FunctionStats s : stats.values()) out.put(s.name, s.nanos.get());
+		return out;
+	}
+
+	/**
+	 * Forgets everything recorded so far
+	 */
+	public static void reset(){
+		stats.clear();
+	}
+
+	/**
+	 * @return one line per function, the functions with the most total time first
+	 */
+	public static String getReport(){
+		List<FunctionStats> list = new ArrayList<FunctionStats>(stats.values());
+		Collections.sort(list, new Comparator<FunctionStats>() {
+			@Override
+			public int compare(FunctionStats a, FunctionStats b) {
+				long na = a.nanos.get(), nb = b.nanos.get();
+				return na < nb ? 1 : na > nb ? -1 : 0;
+			}
+		});
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-28s %10s %12s %10s %10s %10s %10s %12s%n", "function", "calls", "total ms", "mean us", "p50 us<", "p99 us<", "max us", "mean pixels"));
+		for (FunctionStats s : list) {
+			long calls = s.calls.get();
+			if( calls == 0 ) continue;
+			long image_calls = s.image_calls.get();
+			sb.append(String.format("%-28s %10d %12.3f %10.1f %10d %10d %10d %12d%n",
+					s.name, calls, s.nanos.get() / 1e6, s.nanos.get() / 1e3 / calls,
+					s.percentileMicros(0.5), s.percentileMicros(0.99), s.max_nanos.get() / 1000,
+					image_calls == 0 ? 0 : s.pixels.get() / image_calls));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Prints the report every <code>period_ms</code> milliseconds from a daemon thread,
+	 * replacing a dump that is already running.
+	 */
+	public static synchronized void startDump(long period_ms, final PrintStream out){
+		stopDump();
+		dump_timer = new Timer("opencv-java call profiler dump", true);
+		dump_timer.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				out.print(getReport());
+				out.flush();
+			}
+		}, period_ms, period_ms);
+	}
+
+	public static synchronized void stopDump(){
+		if( dump_timer != null ){
+			dump_timer.cancel();
+			dump_timer = null;
+		}
+	}
+}
@@ -0,0 +1,222 @@
+/* Description and License
+ * A Java library that wraps the functionality of the native image 
+ * processing library OpenCV
+ *
+ * (c) Sigurdur Orn Adalgeirsson (siggi@alum.mit.edu)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+ 
+package sj.opencv.jna;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import sj.opencv.OpenCVLibLoader;
+import sj.opencv.jna.cxcore.CvPoint;
+import sj.opencv.jna.cxcore.CvRect;
+import sj.opencv.jna.cxcore.CvScalar;
+
+/**
+ * Direct mapped bindings for the cxcore functions that sit on the per frame path.
+ * Unlike the interface mapped CXCORE library these calls don't go through a proxy
+ * and don't take a library wide lock, so threads that work on different images
+ * run in parallel. Arrays are passed as their raw header pointers (IplImage.getPointer()).
+ * Each call is timed by the {@link CallProfiler} while it is enabled.
+ */
+public class CxcoreDirect {
+
+	static{
+		Native.register(CxcoreDirect.class, CallProfiler.getDirectLibrary("opencv_core"+OpenCVLibLoader.getPlatformLibraryVersion()));
+	}
+
+	private static native void n_cvCopy(Pointer src, Pointer dst, Pointer mask);
+	public static void cvCopy(Pointer src, Pointer dst, Pointer mask){
+		long t = CallProfiler.start();
+		n_cvCopy(src, dst, mask);
+		CallProfiler.stop(t, "cvCopy", src);
+	}
+
+	private static native void n_cvSetZero(Pointer arr);
+	public static void cvSetZero(Pointer arr){
+		long t = CallProfiler.start();
+		n_cvSetZero(arr);
+		CallProfiler.stop(t, "cvSetZero", arr);
+	}
+
+	private static native void n_cvAdd(Pointer src1, Pointer src2, Pointer dst, Pointer mask);
+	public static void cvAdd(Pointer src1, Pointer src2, Pointer dst, Pointer mask){
+		long t = CallProfiler.start();
+		n_cvAdd(src1, src2, dst, mask);
+		CallProfiler.stop(t, "cvAdd", src1);
+	}
+
+	private static native void n_cvSub(Pointer src1, Pointer src2, Pointer dst, Pointer mask);
+	public static void cvSub(Pointer src1, Pointer src2, Pointer dst, Pointer mask){
+		long t = CallProfiler.start();
+		n_cvSub(src1, src2, dst, mask);
+		CallProfiler.stop(t, "cvSub", src1);
+	}
+
+	private static native void n_cvMul(Pointer src1, Pointer src2, Pointer dst, double scale);
+	public static void cvMul(Pointer src1, Pointer src2, Pointer dst, double scale){
+		long t = CallProfiler.start();
+		n_cvMul(src1, src2, dst, scale);
+		CallProfiler.stop(t, "cvMul", src1);
+	}
+
+	private static native void n_cvAbsDiff(Pointer src1, Pointer src2, Pointer dst);
+	public static void cvAbsDiff(Pointer src1, Pointer src2, Pointer dst){
+		long t = CallProfiler.start();
+		n_cvAbsDiff(src1, src2, dst);
+		CallProfiler.stop(t, "cvAbsDiff", src1);
+	}
+
+	private static native void n_cvAddWeighted(Pointer src1, double alpha, Pointer src2, double beta, double gamma, Pointer dst);
+	public static void cvAddWeighted(Pointer src1, double alpha, Pointer src2, double beta, double gamma, Pointer dst){
+		long t = CallProfiler.start();
+		n_cvAddWeighted(src1, alpha, src2, beta, gamma, dst);
+		CallProfiler.stop(t, "cvAddWeighted", src1);
+	}
+
+	private static native void n_cvAnd(Pointer src1, Pointer src2, Pointer dst, Pointer mask);
+	public static void cvAnd(Pointer src1, Pointer src2, Pointer dst, Pointer mask){
+		long t = CallProfiler.start();
+		n_cvAnd(src1, src2, dst, mask);
+		CallProfiler.stop(t, "cvAnd", src1);
+	}
+
+	private static native void n_cvOr(Pointer src1, Pointer src2, Pointer dst, Pointer mask);
+	public static void cvOr(Pointer src1, Pointer src2, Pointer dst, Pointer mask){
+		long t = CallProfiler.start();
+		n_cvOr(src1, src2, dst, mask);
+		CallProfiler.stop(t, "cvOr", src1);
+	}
+
+	private static native void n_cvCmp(Pointer src1, Pointer src2, Pointer dst, int cmp_op);
+	public static void cvCmp(Pointer src1, Pointer src2, Pointer dst, int cmp_op){
+		long t = CallProfiler.start();
+		n_cvCmp(src1, src2, dst, cmp_op);
+		CallProfiler.stop(t, "cvCmp", src1);
+	}
+
+	private static native void n_cvCmpS(Pointer src, double value, Pointer dst, int cmp_op);
+	public static void cvCmpS(Pointer src, double value, Pointer dst, int cmp_op){
+		long t = CallProfiler.start();
+		n_cvCmpS(src, value, dst, cmp_op);
+		CallProfiler.stop(t, "cvCmpS", src);
+	}
+
+	private static native void n_cvConvertScale(Pointer src, Pointer dst, double scale, double shift);
+	public static void cvConvertScale(Pointer src, Pointer dst, double scale, double shift){
+		long t = CallProfiler.start();
+		n_cvConvertScale(src, dst, scale, shift);
+		CallProfiler.stop(t, "cvConvertScale", src);
+	}
+
+	private static native void n_cvConvertScaleAbs(Pointer src, Pointer dst, double scale, double shift);
+	public static void cvConvertScaleAbs(Pointer src, Pointer dst, double scale, double shift){
+		long t = CallProfiler.start();
+		n_cvConvertScaleAbs(src, dst, scale, shift);
+		CallProfiler.stop(t, "cvConvertScaleAbs", src);
+	}
+
+	private static native int n_cvCountNonZero(Pointer arr);
+	public static int cvCountNonZero(Pointer arr){
+		long t = CallProfiler.start();
+		int r = n_cvCountNonZero(arr);
+		CallProfiler.stop(t, "cvCountNonZero", arr);
+		return r;
+	}
+
+	private static native void n_cvSet(Pointer arr, CvScalar.ByValue value, Pointer mask);
+	public static void cvSet(Pointer arr, CvScalar.ByValue value, Pointer mask){
+		long t = CallProfiler.start();
+		n_cvSet(arr, value, mask);
+		CallProfiler.stop(t, "cvSet", arr);
+	}
+
+	private static native void n_cvAddS(Pointer src, CvScalar.ByValue value, Pointer dst, Pointer mask);
+	public static void cvAddS(Pointer src, CvScalar.ByValue value, Pointer dst, Pointer mask){
+		long t = CallProfiler.start();
+		n_cvAddS(src, value, dst, mask);
+		CallProfiler.stop(t, "cvAddS", src);
+	}
+
+	private static native void n_cvSubRS(Pointer src, CvScalar.ByValue value, Pointer dst, Pointer mask);
+	public static void cvSubRS(Pointer src, CvScalar.ByValue value, Pointer dst, Pointer mask){
+		long t = CallProfiler.start();
+		n_cvSubRS(src, value, dst, mask);
+		CallProfiler.stop(t, "cvSubRS", src);
+	}
+
+	private static native void n_cvAndS(Pointer src, CvScalar.ByValue value, Pointer dst, Pointer mask);
+	public static void cvAndS(Pointer src, CvScalar.ByValue value, Pointer dst, Pointer mask){
+		long t = CallProfiler.start();
+		n_cvAndS(src, value, dst, mask);
+		CallProfiler.stop(t, "cvAndS", src);
+	}
+
+	private static native void n_cvAbsDiffS(Pointer src, Pointer dst, CvScalar.ByValue value);
+	public static void cvAbsDiffS(Pointer src, Pointer dst, CvScalar.ByValue value){
+		long t = CallProfiler.start();
+		n_cvAbsDiffS(src, dst, value);
+		CallProfiler.stop(t, "cvAbsDiffS", src);
+	}
+
+	private static native void n_cvInRangeS(Pointer src, CvScalar.ByValue lower, CvScalar.ByValue upper, Pointer dst);
+	public static void cvInRangeS(Pointer src, CvScalar.ByValue lower, CvScalar.ByValue upper, Pointer dst){
+		long t = CallProfiler.start();
+		n_cvInRangeS(src, lower, upper, dst);
+		CallProfiler.stop(t, "cvInRangeS", src);
+	}
+
+	private static native void n_cvMixChannels(Pointer src, int src_count, Pointer dst, int dst_count, int[] from_to, int pair_count);
+	/** src and dst point to arrays of header pointers */
+	public static void cvMixChannels(Pointer src, int src_count, Pointer dst, int dst_count, int[] from_to, int pair_count){
+		long t = CallProfiler.start();
+		n_cvMixChannels(src, src_count, dst, dst_count, from_to, pair_count);
+		CallProfiler.stop(t, "cvMixChannels", src);
+	}
+
+	private static native void n_cvSetImageROI(Pointer image, CvRect.ByValue rect);
+	public static void cvSetImageROI(Pointer image, CvRect.ByValue rect){
+		long t = CallProfiler.start();
+		n_cvSetImageROI(image, rect);
+		CallProfiler.stop(t, "cvSetImageROI", image);
+	}
+
+	private static native void n_cvLine(Pointer img, CvPoint.ByValue pt1, CvPoint.ByValue pt2, CvScalar.ByValue color, int thickness, int line_type, int shift);
+	public static void cvLine(Pointer img, CvPoint.ByValue pt1, CvPoint.ByValue pt2, CvScalar.ByValue color, int thickness, int line_type, int shift){
+		long t = CallProfiler.start();
+		n_cvLine(img, pt1, pt2, color, thickness, line_type, shift);
+		CallProfiler.stop(t, "cvLine", img);
+	}
+
+	private static native void n_cvRectangle(Pointer img, CvPoint.ByValue pt1, CvPoint.ByValue pt2, CvScalar.ByValue color, int thickness, int line_type, int shift);
+	public static void cvRectangle(Pointer img, CvPoint.ByValue pt1, CvPoint.ByValue pt2, CvScalar.ByValue color, int thickness, int line_type, int shift){
+		long t = CallProfiler.start();
+		n_cvRectangle(img, pt1, pt2, color, thickness, line_type, shift);
+		CallProfiler.stop(t, "cvRectangle", img);
+	}
+
+	private static native void n_cvCircle(Pointer img, CvPoint.ByValue center, int radius, CvScalar.ByValue color, int thickness, int line_type, int shift);
+	public static void cvCircle(Pointer img, CvPoint.ByValue center, int radius, CvScalar.ByValue color, int thickness, int line_type, int shift){
+		long t = CallProfiler.start();
+		n_cvCircle(img, center, radius, color, thickness, line_type, shift);
+		CallProfiler.stop(t, "cvCircle", img);
+	}
+}
@@ -0,0 +1,49 @@
+/* Description and License
+ * A Java library that wraps the functionality of the native image 
+ * processing library OpenCV
+ *
+ * (c) Sigurdur Orn Adalgeirsson (siggi@alum.mit.edu)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+ 
+package sj.opencv.jna;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import sj.opencv.OpenCVLibLoader;
+
+/**
+ * Direct mapped highgui functions used on the per frame capture path.
+ * Highgui is not thread safe, callers have to hold the lock of the capture they work on.
+ */
+public class HighguiDirect {
+
+	static{
+		JNAOpenCV.Core.load();
+		Native.register(HighguiDirect.class, CallProfiler.getDirectLibrary("opencv_highgui"+OpenCVLibLoader.getPlatformLibraryVersion()));
+	}
+
+	private static native Pointer n_cvQueryFrame(Pointer capture);
+	/** @return the IplImage* owned by the capture, it must not be released */
+	public static Pointer cvQueryFrame(Pointer capture){
+		long t = CallProfiler.start();
+		Pointer r = n_cvQueryFrame(capture);
+		CallProfiler.stop(t, "cvQueryFrame", r);
+		return r;
+	}
+}
@@ -0,0 +1,90 @@
+/* Description and License
+ * A Java library that wraps the functionality of the native image 
+ * processing library OpenCV
+ *
+ * (c) Sigurdur Orn Adalgeirsson (siggi@alum.mit.edu)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General
+ * Public License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA  02111-1307  USA
+ */
+ 
+package sj.opencv.jna;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import sj.opencv.OpenCVLibLoader;
+
+/**
+ * Direct mapped bindings for the imgproc functions that sit on the per frame path.
+ * See {@link CxcoreDirect}, the same lock free calling convention applies here.
+ */
+public class ImgprocDirect {
+
+	static{
+		JNAOpenCV.Core.load();
+		Native.register(ImgprocDirect.class, CallProfiler.getDirectLibrary("opencv_imgproc"+OpenCVLibLoader.getPlatformLibraryVersion()));
+	}
+
+	private static native void n_cvCvtColor(Pointer src, Pointer dst, int code);
+	public static void cvCvtColor(Pointer src, Pointer dst, int code){
+		long t = CallProfiler.start();
+		n_cvCvtColor(src, dst, code);
+		CallProfiler.stop(t, "cvCvtColor", src);
+	}
+
+	private static native void n_cvSmooth(Pointer src, Pointer dst, int smoothtype, int size1, int size2, double sigma1, double sigma2);
+	public static void cvSmooth(Pointer src, Pointer dst, int smoothtype, int size1, int size2, double sigma1, double sigma2){
+		long t = CallProfiler.start();
+		n_cvSmooth(src, dst, smoothtype, size1, size2, sigma1, sigma2);
+		CallProfiler.stop(t, "cvSmooth", src);
+	}
+
+	private static native double n_cvThreshold(Pointer src, Pointer dst, double threshold, double max_value, int threshold_type);
+	public static double cvThreshold(Pointer src, Pointer dst, double threshold, double max_value, int threshold_type){
+		long t = CallProfiler.start();
+		double r = n_cvThreshold(src, dst, threshold, max_value, threshold_type);
+		CallProfiler.stop(t, "cvThreshold", src);
+		return r;
+	}
+
+	private static native void n_cvResize(Pointer src, Pointer dst, int interpolation);
+	public static void cvResize(Pointer src, Pointer dst, int interpolation){
+		long t = CallProfiler.start();
+		n_cvResize(src, dst, interpolation);
+		CallProfiler.stop(t, "cvResize", src);
+	}
+
+	private static native void n_cvCanny(Pointer image, Pointer edges, double threshold1, double threshold2, int aperture_size);
+	public static void cvCanny(Pointer image, Pointer edges, double threshold1, double threshold2, int aperture_size){
+		long t = CallProfiler.start();
+		n_cvCanny(image, edges, threshold1, threshold2, aperture_size);
+		CallProfiler.stop(t, "cvCanny", image);
+	}
+
+	private static native void n_cvErode(Pointer src, Pointer dst, Pointer element, int iterations);
+	public static void cvErode(Pointer src, Pointer dst, Pointer element, int iterations){
+		long t = CallProfiler.start();
+		n_cvErode(src, dst, element, iterations);
+		CallProfiler.stop(t, "cvErode", src);
+	}
+
+	private static native void n_cvDilate(Pointer src, Pointer dst, Pointer element, int iterations);
+	public static void cvDilate(Pointer src, Pointer dst, Pointer element, int iterations){
+		long t = CallProfiler.start();
+		n_cvDilate(src, dst, element, iterations);
+		CallProfiler.stop(t, "cvDilate", src);
+	}
+}
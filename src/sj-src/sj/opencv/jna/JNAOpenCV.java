@@ -22,6 +22,11 @@
  
 package sj.opencv.jna;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
 import com.sun.jna.Library;
 import com.sun.jna.Native;
 
@@ -36,12 +41,159 @@ import sj.opencv.jna.objdetect.ObjdetectLibrary;
 /**
  * @author siggi
  * @date Jul 5, 2012
+ *
+ * The cxcore, imgproc and calib3d functions are reentrant as long as threads don't share
+ * destination arrays, so those libraries are loaded without a global lock. Highgui (windows,
+ * captures) and objdetect (cascades keep per call scratch data) stay synchronized.
+ * The hottest per frame entry points are also available lock free and direct mapped through
+ * {@link CxcoreDirect}, {@link ImgprocDirect} and {@link HighguiDirect}.
+ * <p>
+ * Every library is loaded the first time its holder class is used, e.g. <code>JNAOpenCV.Imgproc.IMGPROC</code>,
+ * so a program that only uses core and imgproc never loads highgui, objdetect or calib3d.
+ * The fields of this class are kept for compatibility. They forward every call to the current field of the
+ * holder class, so they follow the {@link CallProfiler} and only load a library when it is first called,
+ * but the extra reflective call makes them slower than the holder fields.
  */
 public class JNAOpenCV {
 
-	public static CxcoreLibrary CXCORE = (CxcoreLibrary) Native.synchronizedLibrary( (Library)Native.loadLibrary("opencv_core"+OpenCVLibLoader.getPlatformLibraryVersion(), CxcoreLibrary.class) );
-	public static HighguiLibrary HIGHGUI = (HighguiLibrary) Native.synchronizedLibrary( (Library)Native.loadLibrary("opencv_highgui"+OpenCVLibLoader.getPlatformLibraryVersion(), HighguiLibrary.class) );
-	public static ImgprocLibrary IMGPROC = (ImgprocLibrary) Native.synchronizedLibrary( (Library)Native.loadLibrary("opencv_imgproc"+OpenCVLibLoader.getPlatformLibraryVersion(), ImgprocLibrary.class) );
-	public static ObjdetectLibrary OBJDETECT = (ObjdetectLibrary) Native.synchronizedLibrary( (Library)Native.loadLibrary("opencv_objdetect"+OpenCVLibLoader.getPlatformLibraryVersion(), ObjdetectLibrary.class) );
-	public static Calib3dLibrary CALIB3D = (Calib3dLibrary) Native.synchronizedLibrary( (Library)Native.loadLibrary("opencv_calib3d"+OpenCVLibLoader.getPlatformLibraryVersion(), Calib3dLibrary.class) );
+	public static final class Core {
+		private static final CxcoreLibrary library = (CxcoreLibrary) Native.loadLibrary("opencv_core"+OpenCVLibLoader.getPlatformLibraryVersion(), CxcoreLibrary.class);
+		/** swapped for an instrumented proxy while the {@link CallProfiler} is enabled */
+		public static volatile CxcoreLibrary CXCORE = library;
+		static{
+			CallProfiler.addToggle(new CallProfiler.Toggle() {
+				@Override
+				public void setInstrumented(boolean on) {
+					CXCORE = on ? CallProfiler.instrument(library, CxcoreLibrary.class) : library;
+				}
+			});
+		}
+
+		/** Loads the library if it isn't loaded yet */
+		public static void load(){}
+	}
+
+	public static final class Highgui {
+		static{ Core.load(); }
+		private static final HighguiLibrary library = (HighguiLibrary) Native.synchronizedLibrary( (Library)Native.loadLibrary("opencv_highgui"+OpenCVLibLoader.getPlatformLibraryVersion(), HighguiLibrary.class) );
+		/** swapped for an instrumented proxy while the {@link CallProfiler} is enabled */
+		public static volatile HighguiLibrary HIGHGUI = library;
+		static{
+			CallProfiler.addToggle(new CallProfiler.Toggle() {
+				@Override
+				public void setInstrumented(boolean on) {
+					HIGHGUI = on ? CallProfiler.instrument(library, HighguiLibrary.class) : library;
+				}
+			});
+		}
+
+		/** Loads the library if it isn't loaded yet */
+		public static void load(){}
+	}
+
+	public static final class Imgproc {
+		static{ Core.load(); }
+		private static final ImgprocLibrary library = (ImgprocLibrary) Native.loadLibrary("opencv_imgproc"+OpenCVLibLoader.getPlatformLibraryVersion(), ImgprocLibrary.class);
+		/** swapped for an instrumented proxy while the {@link CallProfiler} is enabled */
+		public static volatile ImgprocLibrary IMGPROC = library;
+		static{
+			CallProfiler.addToggle(new CallProfiler.Toggle() {
+				@Override
+				public void setInstrumented(boolean on) {
+					IMGPROC = on ? CallProfiler.instrument(library, ImgprocLibrary.class) : library;
+				}
+			});
+		}
+
+		/** Loads the library if it isn't loaded yet */
+		public static void load(){}
+	}
+
+	public static final class Objdetect {
+		static{ Imgproc.load(); }
+		private static final ObjdetectLibrary library = (ObjdetectLibrary) Native.synchronizedLibrary( (Library)Native.loadLibrary("opencv_objdetect"+OpenCVLibLoader.getPlatformLibraryVersion(), ObjdetectLibrary.class) );
+		/** swapped for an instrumented proxy while the {@link CallProfiler} is enabled */
+		public static volatile ObjdetectLibrary OBJDETECT = library;
+		static{
+			CallProfiler.addToggle(new CallProfiler.Toggle() {
+				@Override
+				public void setInstrumented(boolean on) {
+					OBJDETECT = on ? CallProfiler.instrument(library, ObjdetectLibrary.class) : library;
+				}
+			});
+		}
+
+		/** Loads the library if it isn't loaded yet */
+		public static void load(){}
+	}
+
+	public static final class Calib3d {
+		static{ Imgproc.load(); }
+		private static final Calib3dLibrary library = (Calib3dLibrary) Native.loadLibrary("opencv_calib3d"+OpenCVLibLoader.getPlatformLibraryVersion(), Calib3dLibrary.class);
+		/** swapped for an instrumented proxy while the {@link CallProfiler} is enabled */
+		public static volatile Calib3dLibrary CALIB3D = library;
+		static{
+			CallProfiler.addToggle(new CallProfiler.Toggle() {
+				@Override
+				public void setInstrumented(boolean on) {
+					CALIB3D = on ? CallProfiler.instrument(library, Calib3dLibrary.class) : library;
+				}
+			});
+		}
+
+		/** Loads the library if it isn't loaded yet */
+		public static void load(){}
+	}
+
+	/**
+	 * The current library behind a deprecated field
+	 */
+	private static abstract class Target {
+		abstract Object get();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T forward(Class<T> library_class, final Target target){
+		return (T) Proxy.newProxyInstance(library_class.getClassLoader(), new Class<?>[]{library_class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				try {
+					return method.invoke(target.get(), args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		});
+	}
+
+	/** @deprecated use {@link Core#CXCORE} */
+	@Deprecated
+	public static CxcoreLibrary CXCORE = forward(CxcoreLibrary.class, new Target() {
+		@Override
+		Object get() { return Core.CXCORE; }
+	});
+	/** @deprecated use {@link Highgui#HIGHGUI} */
+	@Deprecated
+	public static HighguiLibrary HIGHGUI = forward(HighguiLibrary.class, new Target() {
+		@Override
+		Object get() { return Highgui.HIGHGUI; }
+	});
+	/** @deprecated use {@link Imgproc#IMGPROC} */
+	@Deprecated
+	public static ImgprocLibrary IMGPROC = forward(ImgprocLibrary.class, new Target() {
+		@Override
+		Object get() { return Imgproc.IMGPROC; }
+	});
+	/** @deprecated use {@link Objdetect#OBJDETECT} */
+	@Deprecated
+	public static ObjdetectLibrary OBJDETECT = forward(ObjdetectLibrary.class, new Target() {
+		@Override
+		Object get() { return Objdetect.OBJDETECT; }
+	});
+	/** @deprecated use {@link Calib3d#CALIB3D} */
+	@Deprecated
+	public static Calib3dLibrary CALIB3D = forward(Calib3dLibrary.class, new Target() {
+		@Override
+		Object get() { return Calib3d.CALIB3D; }
+	});
 }